@@ -0,0 +1,34 @@
+# Sourced by the launch scripts with BASEDIR set to the project root.
+#
+# An archive is only used with the class path it was dumped with, so the jar is always
+# given by its absolute path under target/ and a rebuilt jar needs the archives rebuilt.
+
+JAVA=${JAVA:-java}
+
+JEPMAP_JAR="$BASEDIR/target/JEPMap-1.0-SNAPSHOT.jar"
+
+JEPMAP_CDS_DIR="$BASEDIR/target/cds"
+
+if [ ! -f "$JEPMAP_JAR" ]; then
+	echo "$JEPMAP_JAR not found, build with mvn -Pcds package" >&2
+	exit 1
+fi
+
+# cds_options <archiveName> prints the options for the JEPMAP_CDS mode:
+#   app (default) maps the application archive if it has been built
+#   jdk           only the default archive of the JDK's own classes
+#   off           no class data sharing at all
+cds_options() {
+	case "${JEPMAP_CDS:-app}" in
+	off)
+		echo "-Xshare:off"
+		;;
+	jdk)
+		;;
+	*)
+		if [ -f "$JEPMAP_CDS_DIR/$1.jsa" ]; then
+			echo "-XX:SharedArchiveFile=$JEPMAP_CDS_DIR/$1.jsa -Xshare:auto"
+		fi
+		;;
+	esac
+}
@@ -0,0 +1,14 @@
+#!/bin/sh
+#
+# Runs FullJEPServer from the shaded jar with the class data sharing archive built by mvn -Pcds package.
+#
+# fulljepserver.sh <jepJsonDir> [htmlDir]
+#
+# JAVA selects the java binary (JDK 13+ for the archive), JAVA_OPTS adds JVM options,
+# JEPMAP_CDS=jdk|off runs with only the JDK archive or with no sharing.
+
+BASEDIR=$(cd "$(dirname "$0")/.." && pwd)
+
+. "$BASEDIR/bin/cds-env.sh"
+
+exec "$JAVA" $(cds_options fulljepserver) $JAVA_OPTS -cp "$JEPMAP_JAR" com.chrisnewland.jepmap.websocket.FullJEPServer "$@"
@@ -0,0 +1,15 @@
+#!/bin/sh
+#
+# Runs JEPProcessor from the shaded jar with the class data sharing archive built by mvn -Pcds package.
+# Run from the project root as the page templates are read from src/main/resources.
+#
+# jepprocessor.sh <jsonOutputDir> <htmlOutputDir> [--daemon]
+#
+# JAVA selects the java binary (JDK 13+ for the archive), JAVA_OPTS adds JVM options,
+# JEPMAP_CDS=jdk|off runs with only the JDK archive or with no sharing.
+
+BASEDIR=$(cd "$(dirname "$0")/.." && pwd)
+
+. "$BASEDIR/bin/cds-env.sh"
+
+exec "$JAVA" $(cds_options jepprocessor) $JAVA_OPTS -cp "$JEPMAP_JAR" com.chrisnewland.jepmap.JEPProcessor "$@"
@@ -0,0 +1,93 @@
+#!/bin/sh
+#
+# Compares start-up time of both entry points with no class data sharing, with the JDK's default
+# archive and with the application archives built by mvn -Pcds package.
+#
+# JEPProcessor is timed over a whole batch run on the sample corpus in target/cds/html-cache.
+# FullJEPServer is timed from launch to the first successful GET /metrics on the training corpus.
+#
+# startup-benchmark.sh [runs]    (default 10, PORT=8096 for the server)
+
+BASEDIR=$(cd "$(dirname "$0")/.." && pwd)
+
+RUNS=${1:-10}
+
+PORT=${PORT:-8096}
+
+CDS_DIR="$BASEDIR/target/cds"
+
+if [ ! -f "$CDS_DIR/jepprocessor.jsa" ] || [ ! -f "$CDS_DIR/fulljepserver.jsa" ]; then
+	echo "Archives not found in $CDS_DIR, build with mvn -Pcds package" >&2
+	exit 1
+fi
+
+WORK=$(mktemp -d)
+
+trap 'rm -rf "$WORK"' EXIT
+
+now_millis() {
+	echo $(($(date +%s%N) / 1000000))
+}
+
+time_processor() {
+	rm -rf "$WORK/out"
+
+	START=$(now_millis)
+
+	JAVA_OPTS="-Djepmap.htmlCache=$CDS_DIR/html-cache -Djepmap.history=$WORK/out/history" \
+		"$BASEDIR/bin/jepprocessor.sh" "$WORK/out/json" "$WORK/out/html" > /dev/null 2>&1 || return 1
+
+	echo $(($(now_millis) - START))
+}
+
+time_server() {
+	START=$(now_millis)
+
+	JAVA_OPTS="-Djepmap.server.port=$PORT" "$BASEDIR/bin/fulljepserver.sh" "$CDS_DIR/json" > /dev/null 2>&1 &
+	PID=$!
+
+	until curl -sf -o /dev/null "http://127.0.0.1:$PORT/metrics"; do
+		if ! kill -0 $PID 2> /dev/null; then
+			return 1
+		fi
+		sleep 0.01
+	done
+
+	ELAPSED=$(($(now_millis) - START))
+
+	kill $PID
+	wait $PID 2> /dev/null
+
+	echo $ELAPSED
+}
+
+# summary <label> <times...> prints min, median and mean
+summary() {
+	LABEL=$1
+	shift
+	printf '%s\n' "$@" | sort -n | awk -v label="$LABEL" '
+		{ t[NR] = $1; sum += $1 }
+		END { printf "  %-6s min %6d ms  median %6d ms  mean %6d ms\n", label, t[1], t[int((NR + 1) / 2)], sum / NR }'
+}
+
+cd "$BASEDIR" || exit 1
+
+echo "$("${JAVA:-java}" -version 2>&1 | head -1), $RUNS runs each"
+
+for ENTRY in processor server; do
+	echo "$ENTRY"
+
+	for MODE in off jdk app; do
+		TIMES=""
+
+		# one untimed run to warm the page cache
+		JEPMAP_CDS=$MODE time_$ENTRY > /dev/null
+
+		for RUN in $(seq "$RUNS"); do
+			TIME=$(JEPMAP_CDS=$MODE time_$ENTRY) || { echo "$ENTRY failed with JEPMAP_CDS=$MODE" >&2; exit 1; }
+			TIMES="$TIMES $TIME"
+		done
+
+		summary "$MODE" $TIMES
+	done
+done
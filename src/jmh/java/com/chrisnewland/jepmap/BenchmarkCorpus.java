@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * JEP corpora for the benchmarks.
+ * <p>
+ * The base corpus is the JSON output of JEPProcessor in the directory named by
+ * -Djepmap.bench.corpus=&lt;jsonDir&gt; and falls back to a synthetic corpus of
+ * similar size and vocabulary when that is not set. Scaled corpora repeat the
+ * base corpus with renumbered JEPs and shuffled body words so that hit counts
+ * and body volume grow with the scale factor.
+ */
+public class BenchmarkCorpus
+{
+	public static final String CORPUS_PROPERTY = "jepmap.bench.corpus";
+
+	private static final int SYNTHETIC_SIZE = 500;
+
+	private static final String[] WORDS = { "the", "garbage", "collector", "shenandoah", "valhalla", "foreign", "function", "memory", "vector",
+			"loom", "virtual", "threads", "panama", "record", "pattern", "matching", "switch", "string", "preview", "module", "class", "data",
+			"sharing", "compiler", "hotspot", "api", "incubator", "deprecate", "remove", "security", "jdk", "java", "language", "runtime" };
+
+	private static final String[] STATUSES = { "Closed / Delivered", "Candidate", "Draft", "Submitted", "Proposed to Target", "Closed / Withdrawn" };
+
+	private static final String[] PROJECTS = { "loom", "panama", "valhalla", "amber", "zgc", "shenandoah", "leyden", "babylon" };
+
+	public static List<JEP> load(int scale)
+	{
+		List<JEP> base = loadBase();
+
+		List<JEP> result = new ArrayList<>(base.size() * scale);
+
+		result.addAll(base);
+
+		Random random = new Random(42);
+
+		for (int copy = 1; copy < scale; copy++)
+		{
+			for (JEP jep : base)
+			{
+				JSONObject json = new JSONObject(jep.serialise());
+
+				json.put("number", jep.getNumber() + copy * 100_000);
+				json.put("name", "JEP " + (jep.getNumber() + copy * 100_000) + ": " + jep.getName());
+				json.put("body", shuffleWords(jep.getBody(), random));
+
+				result.add(JEP.deserialise(json));
+			}
+		}
+
+		return result;
+	}
+
+	private static List<JEP> loadBase()
+	{
+		String corpusDir = System.getProperty(CORPUS_PROPERTY);
+
+		if (corpusDir == null)
+		{
+			return synthetic();
+		}
+
+		File[] files = new File(corpusDir).listFiles((dir, name) -> name.endsWith(".json"));
+
+		if (files == null || files.length == 0)
+		{
+			throw new IllegalArgumentException("No JEP JSON files in " + corpusDir);
+		}
+
+		List<JEP> jeps = new ArrayList<>();
+
+		for (File file : files)
+		{
+			try
+			{
+				jeps.add(JEP.deserialise(new JSONObject(Files.readString(file.toPath(), StandardCharsets.UTF_8))));
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Couldn't read " + file, e);
+			}
+		}
+
+		return jeps;
+	}
+
+	private static List<JEP> synthetic()
+	{
+		Random random = new Random(1);
+
+		List<JEP> jeps = new ArrayList<>(SYNTHETIC_SIZE);
+
+		for (int number = 100; number < 100 + SYNTHETIC_SIZE; number++)
+		{
+			JEP jep = new JEP("JEP " + number + ": " + word(random) + " " + word(random) + " " + word(random), number);
+
+			StringBuilder body = new StringBuilder();
+
+			int words = 400 + random.nextInt(1600);
+
+			for (int w = 0; w < words; w++)
+			{
+				body.append(word(random));
+				body.append(random.nextInt(12) == 0 ? ". " : " ");
+			}
+
+			jep.setBody(body.toString());
+			jep.setStatus(STATUSES[random.nextInt(STATUSES.length)]);
+			jep.setCreated(String.format("20%02d/%02d/%02d 10:00", 11 + random.nextInt(14), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+			jep.setUpdated(String.format("20%02d/%02d/%02d 12:00", 11 + random.nextInt(14), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+			jep.setRelease(random.nextInt(4) == 0 ? "tbd" : Integer.toString(8 + random.nextInt(17)));
+
+			String project = PROJECTS[random.nextInt(PROJECTS.length)];
+
+			jep.setDiscussion(project + " dash dev at openjdk dot org");
+			jep.setIssue(Integer.toString(8_000_000 + number));
+			jep.addProjectId(project);
+
+			if (number > 100)
+			{
+				jep.addRelated(number - 1);
+			}
+
+			jeps.add(jep);
+		}
+
+		return jeps;
+	}
+
+	private static String word(Random random)
+	{
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+
+	private static String shuffleWords(String body, Random random)
+	{
+		String[] words = body.split(" ");
+
+		for (int i = words.length - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+
+			String tmp = words[i];
+			words[i] = words[j];
+			words[j] = tmp;
+		}
+
+		return String.join(" ", words);
+	}
+}
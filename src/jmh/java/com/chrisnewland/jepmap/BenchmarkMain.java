@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks with the usual JMH command line and writes JSON results
+ * to jmh-result-&lt;label&gt;-&lt;timestamp&gt;.json unless -rf / -rff are given.
+ * The label comes from -Djepmap.bench.label (default "local") so runs on
+ * different machines or commits can be kept side by side and compared.
+ * <p>
+ * java [-Djepmap.bench.corpus=&lt;jepJsonDir&gt;] -jar target/benchmarks.jar [JMH options] [regexp]
+ */
+public class BenchmarkMain
+{
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams() || commandLine.shouldListProfilers()
+				|| commandLine.shouldListResultFormats())
+		{
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLine);
+
+		if (!commandLine.getResultFormat().hasValue())
+		{
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+
+		if (!commandLine.getResult().hasValue())
+		{
+			String label = System.getProperty("jepmap.bench.label", "local");
+
+			String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+			builder.result("jmh-result-" + label + "-" + timestamp + ".json");
+		}
+
+		String corpus = System.getProperty(BenchmarkCorpus.CORPUS_PROPERTY);
+
+		if (corpus != null)
+		{
+			// forked benchmark JVMs need to see the corpus too
+			List<String> jvmArgsAppend = new ArrayList<>(commandLine.getJvmArgsAppend().orElse(Collections.<String>emptyList()));
+
+			jvmArgsAppend.add("-D" + BenchmarkCorpus.CORPUS_PROPERTY + "=" + corpus);
+
+			builder.jvmArgsAppend(jvmArgsAppend.toArray(new String[0]));
+		}
+
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JEP.serialise, JEP.deserialise and JEP.toHtmlValueRow over a whole corpus per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JEPBenchmark
+{
+	@Param({ "1", "10", "100" })
+	private int scale;
+
+	private List<JEP> jeps;
+
+	private List<String> serialised;
+
+	@Setup public void setup()
+	{
+		jeps = BenchmarkCorpus.load(scale);
+
+		serialised = new ArrayList<>(jeps.size());
+
+		for (JEP jep : jeps)
+		{
+			serialised.add(jep.serialise());
+		}
+	}
+
+	@Benchmark public void serialise(Blackhole blackhole)
+	{
+		for (JEP jep : jeps)
+		{
+			blackhole.consume(jep.serialise());
+		}
+	}
+
+	@Benchmark public void deserialise(Blackhole blackhole)
+	{
+		for (String json : serialised)
+		{
+			blackhole.consume(JEP.deserialise(new JSONObject(json)));
+		}
+	}
+
+	@Benchmark public void toHtmlValueRow(Blackhole blackhole)
+	{
+		for (JEP jep : jeps)
+		{
+			blackhole.consume(jep.toHtmlValueRow());
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project association, bad mapping removal and jepmap.html rendering without any crawling.
+ * Must be run from the repository root as JEPProcessor reads src/main/resources.
+ * JEPProcessor logs heavily, stdout is discarded during the trial but the formatting cost is kept.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JEPProcessorBenchmark
+{
+	private static final String[] PROJECT_IDS = { "loom", "panama", "valhalla", "amber", "zgc", "shenandoah", "leyden", "babylon" };
+
+	@Param({ "1", "10", "100" })
+	private int scale;
+
+	private JEPProcessor processor;
+
+	private Path outputDir;
+
+	private PrintStream originalOut;
+
+	@Setup(Level.Trial) public void setupTrial() throws IOException
+	{
+		originalOut = System.out;
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		outputDir = Files.createTempDirectory("jepmap-bench");
+
+		processor = new JEPProcessor(outputDir.toString(), outputDir.toString());
+
+		processor.loadBadMappings();
+
+		for (JEP jep : BenchmarkCorpus.load(scale))
+		{
+			processor.getJEPMap().put(jep.getNumber(), jep);
+		}
+
+		createProjects();
+
+		processor.associateJEPsToProjects();
+	}
+
+	@TearDown(Level.Trial) public void tearDownTrial()
+	{
+		System.setOut(originalOut);
+	}
+
+	/**
+	 * Fresh projects for each associate call so every invocation does the full work.
+	 */
+	@Setup(Level.Invocation) public void setupInvocation()
+	{
+		createProjects();
+	}
+
+	private void createProjects()
+	{
+		Map<String, Project> projectMap = processor.getProjectMap();
+
+		projectMap.clear();
+
+		for (String projectId : PROJECT_IDS)
+		{
+			Project project = new Project(projectId, projectId.substring(0, 1).toUpperCase() + projectId.substring(1));
+			project.setDescription("Project " + projectId);
+			projectMap.put(projectId, project);
+		}
+
+		for (int jdk = 6; jdk <= 24; jdk++)
+		{
+			String projectId = "jdk" + (jdk >= 10 ? "/" : "") + jdk;
+
+			Project project = new Project(projectId, "JDK" + jdk);
+			project.setDescription("JDK " + jdk);
+			projectMap.put(projectId, project);
+		}
+	}
+
+	@Benchmark public Map<String, Project> associateAndClean()
+	{
+		processor.associateJEPsToProjects();
+
+		processor.cleanBadMappings();
+
+		return processor.getProjectMap();
+	}
+
+	@Benchmark public void report() throws IOException
+	{
+		processor.associateJEPsToProjects();
+
+		processor.report();
+	}
+}
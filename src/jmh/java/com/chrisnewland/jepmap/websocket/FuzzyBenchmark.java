@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.BenchmarkCorpus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vocabulary.expand with a known word, a one edit and a two edit misspelling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FuzzyBenchmark
+{
+	@Param({ "1", "10" })
+	private int scale;
+
+	@Param({ "shenandoah", "foriegn", "shenandaoh colector" })
+	private String query;
+
+	private Vocabulary vocabulary;
+
+	@Setup public void setup()
+	{
+		vocabulary = new JEPLoader(BenchmarkCorpus.load(scale)).getVocabulary();
+	}
+
+	@Benchmark public Map<String, List<String>> expand()
+	{
+		return vocabulary.expand(query, 3);
+	}
+}
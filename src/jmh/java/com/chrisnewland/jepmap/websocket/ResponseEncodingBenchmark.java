@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.BenchmarkCorpus;
+import com.chrisnewland.jepmap.JEP;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The snippet loop and response encoding for every hit of a query.
+ * Compares the per-query allocation of the original JSONArray response building
+ * with the streaming ResponseWriter. Run with -prof gc and compare gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncodingBenchmark
+{
+	private static final BooleanSupplier NEVER_CANCELLED = new BooleanSupplier()
+	{
+		@Override public boolean getAsBoolean()
+		{
+			return false;
+		}
+	};
+
+	@Param({ "1", "10", "100" })
+	private int scale;
+
+	@Param({ "loom", "the" })
+	private String search;
+
+	private List<JEP> jeps;
+
+	@Setup public void setup()
+	{
+		jeps = new JEPLoader(BenchmarkCorpus.load(scale)).searchJEPs(search);
+	}
+
+	@Benchmark public String jsonArray()
+	{
+		JSONArray result = new JSONArray();
+
+		int context = 80;
+
+		forlabel:
+		for (JEP jep : jeps)
+		{
+			String body = jep.getBody();
+
+			String bodyLower = body.toLowerCase();
+
+			StringBuilder builder = new StringBuilder();
+
+			int pos = bodyLower.indexOf(search);
+
+			builder.append("<ul>");
+
+			do
+			{
+				String snippet = body.substring(Math.max(0, pos - context), Math.min(pos + context, body.length()));
+
+				int firstSpace = snippet.indexOf(' ');
+				int lastSpace = snippet.lastIndexOf(' ');
+
+				if (firstSpace == -1 || lastSpace == -1 || firstSpace == lastSpace)
+				{
+					continue forlabel;
+				}
+
+				builder.append("<li>...").append(snippet.substring(firstSpace + 1, lastSpace)).append("...</li>");
+
+				pos = bodyLower.indexOf(search, pos + context);
+
+			} while (pos != -1);
+
+			builder.append("</ul>");
+
+			JSONObject jsonObject = new JSONObject();
+
+			jsonObject.put("number", jep.getNumber());
+			jsonObject.put("name", jep.getName());
+			jsonObject.put("snippet", builder);
+
+			result.put(jsonObject);
+		}
+
+		return result.toString();
+	}
+
+	@Benchmark public void responseWriter(final Blackhole blackhole) throws IOException
+	{
+		ResponseWriter.FragmentSink sink = new ResponseWriter.FragmentSink()
+		{
+			@Override public void sendFragment(String fragment, boolean last)
+			{
+				blackhole.consume(fragment);
+			}
+		};
+
+		try (ResponseWriter writer = new ResponseWriter(sink))
+		{
+			new ResultEncoder(search).writeResults(writer, jeps, NEVER_CANCELLED);
+
+			writer.finish();
+		}
+	}
+}
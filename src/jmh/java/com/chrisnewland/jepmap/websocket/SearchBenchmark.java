@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.BenchmarkCorpus;
+import com.chrisnewland.jepmap.JEP;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JEPLoader.searchJEPs with a short, a medium and a broad query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark
+{
+	@Param({ "1", "10", "100" })
+	private int scale;
+
+	@Param({ "zgc", "virtual threads", "the" })
+	private String query;
+
+	private JEPLoader jepLoader;
+
+	@Setup public void setup()
+	{
+		jepLoader = new JEPLoader(BenchmarkCorpus.load(scale));
+	}
+
+	@Benchmark public List<JEP> searchJEPs()
+	{
+		return jepLoader.searchJEPs(query);
+	}
+}
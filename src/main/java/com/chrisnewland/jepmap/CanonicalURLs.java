@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+
+package com.chrisnewland.jepmap;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * One name for each page JEPProcessor fetches, so a page is fetched and cached once however it is linked.
+ * <p>
+ * A URL is canonicalised by lower casing its scheme and host and dropping its fragment and any default port.
+ * Hosts under openjdk.java.net move to openjdk.org, which the old names redirect to, and every OpenJDK host
+ * is fetched over https. Redirects seen when fetching are recorded between canonical URLs in a properties
+ * file so later runs go straight to the final page, and the cache file of a page is named from the canonical
+ * URL it ends at.
+ */
+public class CanonicalURLs
+{
+	private static final String OLD_DOMAIN = "openjdk.java.net";
+
+	private static final String DOMAIN = "openjdk.org";
+
+	// a longer chain is a loop in the recorded redirects
+	private static final int MAX_REDIRECTS = 10;
+
+	private final Path redirectsPath;
+
+	private final Properties redirects = new Properties();
+
+	public CanonicalURLs(Path redirectsPath) throws IOException
+	{
+		this.redirectsPath = redirectsPath;
+
+		if (Files.exists(redirectsPath))
+		{
+			try (Reader reader = Files.newBufferedReader(redirectsPath, StandardCharsets.UTF_8))
+			{
+				redirects.load(reader);
+			}
+		}
+	}
+
+	/**
+	 * @return the canonical form of an absolute URL, a URL that cannot be parsed is returned without its fragment
+	 */
+	public static String canonicalise(String url)
+	{
+		String trimmed = url.trim();
+
+		URI uri;
+
+		try
+		{
+			uri = new URI(trimmed);
+		}
+		catch (URISyntaxException e)
+		{
+			int hash = trimmed.indexOf('#');
+
+			return (hash != -1) ? trimmed.substring(0, hash) : trimmed;
+		}
+
+		if (uri.getScheme() == null || uri.getHost() == null)
+		{
+			return stripFragment(uri);
+		}
+
+		String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+
+		String host = getCurrentHost(uri.getHost().toLowerCase(Locale.ROOT));
+
+		int port = uri.getPort();
+
+		if (isOpenJDKHost(host))
+		{
+			scheme = "https";
+			port = -1;
+		}
+		else if ((port == 80 && "http".equals(scheme)) || (port == 443 && "https".equals(scheme)))
+		{
+			port = -1;
+		}
+
+		String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath();
+
+		String query = (uri.getRawQuery() == null || uri.getRawQuery().isEmpty()) ? "" : "?" + uri.getRawQuery();
+
+		return scheme + "://" + host + ((port != -1) ? ":" + port : "") + path + query;
+	}
+
+	private static String stripFragment(URI uri)
+	{
+		String text = uri.toString();
+
+		return (uri.getRawFragment() != null) ? text.substring(0, text.length() - uri.getRawFragment().length() - 1) : text;
+	}
+
+	private static String getCurrentHost(String host)
+	{
+		if (host.equals(OLD_DOMAIN) || host.endsWith("." + OLD_DOMAIN))
+		{
+			return host.substring(0, host.length() - OLD_DOMAIN.length()) + DOMAIN;
+		}
+
+		return host;
+	}
+
+	private static boolean isOpenJDKHost(String host)
+	{
+		return host.equals(DOMAIN) || host.endsWith("." + DOMAIN);
+	}
+
+	/**
+	 * @return true if the URL is on an OpenJDK host under either the old or the current domain
+	 */
+	public static boolean isOpenJDK(String url)
+	{
+		try
+		{
+			String host = new URI(url.trim()).getHost();
+
+			return host != null && isOpenJDKHost(getCurrentHost(host.toLowerCase(Locale.ROOT)));
+		}
+		catch (URISyntaxException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return the canonical URL of the page the URL ends at after any recorded redirects
+	 */
+	public String resolve(String url)
+	{
+		String canonical = canonicalise(url);
+
+		for (int i = 0; i < MAX_REDIRECTS; i++)
+		{
+			String target = redirects.getProperty(canonical);
+
+			if (target == null)
+			{
+				break;
+			}
+
+			canonical = target;
+		}
+
+		return canonical;
+	}
+
+	/**
+	 * Records that fetching from led to the page at to, if they are different pages.
+	 *
+	 * @return the canonical URL of to
+	 */
+	public String recordRedirect(String from, String to) throws IOException
+	{
+		String canonicalFrom = canonicalise(from);
+		String canonicalTo = canonicalise(to);
+
+		if (!canonicalFrom.equals(canonicalTo) && !canonicalTo.equals(redirects.getProperty(canonicalFrom)))
+		{
+			System.out.println("Recording redirect " + canonicalFrom + " => " + canonicalTo);
+
+			redirects.setProperty(canonicalFrom, canonicalTo);
+
+			// to was just served as a page so any redirect recorded from it is stale
+			redirects.remove(canonicalTo);
+
+			save();
+		}
+
+		return canonicalTo;
+	}
+
+	private void save() throws IOException
+	{
+		Path temp = redirectsPath.resolveSibling(redirectsPath.getFileName() + ".tmp");
+
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+		{
+			redirects.store(writer, "JEPProcessor redirects between canonical URLs");
+		}
+
+		Files.move(temp, redirectsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the html cache file name of a canonical URL
+	 */
+	public static String toFilename(String canonicalURL)
+	{
+		return canonicalURL.replace(":", "-").replace("/", "_");
+	}
+
+	/**
+	 * @return the names the html cache gave the page before URLs were canonicalised, most likely first
+	 */
+	public static List<String> getLegacyFilenames(String url, String canonicalURL)
+	{
+		Set<String> names = new LinkedHashSet<>();
+
+		names.add(toFilename(url));
+
+		int hostStart = canonicalURL.indexOf("://") + 3;
+
+		int pathStart = canonicalURL.indexOf('/', hostStart);
+
+		String host = canonicalURL.substring(hostStart, (pathStart != -1) ? pathStart : canonicalURL.length());
+
+		if (isOpenJDKHost(host))
+		{
+			String rest = (pathStart != -1) ? canonicalURL.substring(pathStart) : "";
+
+			String oldHost = host.substring(0, host.length() - DOMAIN.length()) + OLD_DOMAIN;
+
+			names.add(toFilename("https://" + oldHost + rest));
+			names.add(toFilename("http://" + oldHost + rest));
+			names.add(toFilename("http://" + host + rest));
+		}
+
+		names.remove(toFilename(canonicalURL));
+
+		return new ArrayList<>(names);
+	}
+}
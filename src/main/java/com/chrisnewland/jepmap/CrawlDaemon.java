@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+
+package com.chrisnewland.jepmap;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a JEPProcessor and its model in memory and refreshes it on a schedule.
+ * <p>
+ * Each cycle refetches at most pagesPerCycle cached pages older than maxPageAgeMinutes, so
+ * the crawl load is spread evenly over time, and rewrites the outputs only if the model changed.
+ * <p>
+ * GET  /status   the state of the daemon and the latest cycle as JSON
+ * POST /refresh  runs a cycle now, ?all=true refetches every stale page in that cycle
+ * <p>
+ * Settings: -Djepmap.daemon.intervalSeconds=60 -Djepmap.daemon.maxPageAgeMinutes=360
+ * -Djepmap.daemon.pagesPerCycle=25 -Djepmap.daemon.host=127.0.0.1 -Djepmap.daemon.port=8091
+ */
+public class CrawlDaemon
+{
+	private final JEPProcessor processor;
+
+	private final long intervalSeconds = Long.getLong("jepmap.daemon.intervalSeconds", 60);
+
+	private final long maxPageAgeMillis = TimeUnit.MINUTES.toMillis(Long.getLong("jepmap.daemon.maxPageAgeMinutes", 360));
+
+	private final int pagesPerCycle = Integer.getInteger("jepmap.daemon.pagesPerCycle", 25);
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Server server;
+
+	// a trigger while a cycle is queued or running is folded into it
+	private final AtomicBoolean queued = new AtomicBoolean();
+
+	private volatile boolean running = false;
+
+	private long cycles = 0;
+
+	private long regenerations = 0;
+
+	private long lastStartMillis = 0;
+
+	private long lastDurationMillis = 0;
+
+	private String lastResult = "none";
+
+	private String lastError = null;
+
+	private JSONObject lastStats = new JSONObject();
+
+	static void run(JEPProcessor processor) throws Exception
+	{
+		CrawlDaemon daemon = new CrawlDaemon(processor);
+
+		daemon.start();
+
+		daemon.server.join();
+	}
+
+	CrawlDaemon(JEPProcessor processor)
+	{
+		this.processor = processor;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "jep-crawl");
+			}
+		});
+
+		server = new Server(new QueuedThreadPool(8));
+
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost(System.getProperty("jepmap.daemon.host", "127.0.0.1"));
+		connector.setPort(Integer.getInteger("jepmap.daemon.port", 8091));
+		server.addConnector(connector);
+
+		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+		context.setContextPath("/");
+		context.addServlet(new ServletHolder(new StatusServlet()), "/status");
+		context.addServlet(new ServletHolder(new RefreshServlet()), "/refresh");
+
+		server.setHandler(context);
+	}
+
+	void start() throws Exception
+	{
+		processor.loadBadMappings();
+
+		server.start();
+
+		System.out.println("CrawlDaemon refreshing every " + intervalSeconds + "s, up to " + pagesPerCycle + " pages older than " +
+				TimeUnit.MILLISECONDS.toMinutes(maxPageAgeMillis) + " minutes per cycle, status on " + server.getURI());
+
+		scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override public void run()
+			{
+				runCycle(pagesPerCycle);
+			}
+		}, 0, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return false if a cycle was already queued
+	 */
+	boolean trigger(final boolean all)
+	{
+		if (!queued.compareAndSet(false, true))
+		{
+			return false;
+		}
+
+		scheduler.execute(new Runnable()
+		{
+			@Override public void run()
+			{
+				queued.set(false);
+				runCycle(all ? Integer.MAX_VALUE : pagesPerCycle);
+			}
+		});
+
+		return true;
+	}
+
+	private void runCycle(int budget)
+	{
+		long start = System.currentTimeMillis();
+
+		synchronized (this)
+		{
+			running = true;
+			lastStartMillis = start;
+		}
+
+		String result;
+		String error = null;
+
+		try
+		{
+			result = processor.refresh(maxPageAgeMillis, budget) ? "regenerated" : "unchanged";
+		}
+		catch (Exception e)
+		{
+			// keep the previous outputs and model, the next cycle starts from the cache again
+			e.printStackTrace();
+			result = "failed";
+			error = e.toString();
+		}
+
+		JEPProcessor.CrawlStats stats = processor.getStats();
+
+		JSONObject statsJSON = new JSONObject();
+
+		statsJSON.put("pagesRefreshed", stats.pagesRefreshed);
+		statsJSON.put("pagesChanged", stats.pagesChanged);
+		statsJSON.put("pagesFailed", stats.pagesFailed);
+		statsJSON.put("jepsParsed", stats.jepsParsed);
+		statsJSON.put("jepsReused", stats.jepsReused);
+		statsJSON.put("projectPagesParsed", stats.projectPagesParsed);
+		statsJSON.put("projectPagesReused", stats.projectPagesReused);
+		statsJSON.put("jeps", processor.getJEPMap().size());
+		statsJSON.put("projects", processor.getProjectMap().size());
+
+		long duration = System.currentTimeMillis() - start;
+
+		synchronized (this)
+		{
+			running = false;
+			cycles++;
+			lastDurationMillis = duration;
+			lastResult = result;
+			lastError = error;
+			lastStats = statsJSON;
+
+			if ("regenerated".equals(result))
+			{
+				regenerations++;
+			}
+		}
+
+		System.out.println("Crawl cycle " + result + " in " + duration + "ms " + statsJSON);
+	}
+
+	synchronized JSONObject getStatus()
+	{
+		JSONObject status = new JSONObject();
+
+		status.put("state", running ? "running" : "idle");
+		status.put("cycles", cycles);
+		status.put("regenerations", regenerations);
+		status.put("lastStartMillis", lastStartMillis);
+		status.put("lastDurationMillis", lastDurationMillis);
+		status.put("lastResult", lastResult);
+		status.put("lastError", (lastError != null) ? lastError : JSONObject.NULL);
+		status.put("lastCycle", lastStats);
+		status.put("intervalSeconds", intervalSeconds);
+		status.put("pagesPerCycle", pagesPerCycle);
+		status.put("maxPageAgeMillis", maxPageAgeMillis);
+
+		return status;
+	}
+
+	private class StatusServlet extends HttpServlet
+	{
+		@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			response.setContentType("application/json;charset=utf-8");
+			response.getWriter().write(getStatus().toString());
+		}
+	}
+
+	private class RefreshServlet extends HttpServlet
+	{
+		@Override protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			boolean accepted = trigger(Boolean.parseBoolean(request.getParameter("all")));
+
+			response.setStatus(HttpServletResponse.SC_ACCEPTED);
+			response.setContentType("application/json;charset=utf-8");
+			response.getWriter().write(new JSONObject().put("queued", accepted).toString());
+		}
+	}
+}
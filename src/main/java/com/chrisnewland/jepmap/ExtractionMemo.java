@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+
+package com.chrisnewland.jepmap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32C;
+
+/**
+ * What JEPProcessor extracted from each cached page, kept across runs so an unchanged page is never parsed again.
+ * <p>
+ * Each page has one file named as its cache file holding {"hash":"...","version":1,"result":{...}}.
+ * An entry is only used if both the CRC32C of the cached html and the extractor version match,
+ * so any change to what is extracted from a page must increment VERSION.
+ * <p>
+ * -Djepmap.extractionMemo=false parses every page, as the CDS training run must.
+ */
+class ExtractionMemo
+{
+	static final int VERSION = 2;
+
+	private final Path dir;
+
+	private final boolean enabled;
+
+	ExtractionMemo(Path dir, boolean enabled)
+	{
+		this.dir = dir;
+		this.enabled = enabled;
+	}
+
+	static long hash(byte[] html)
+	{
+		CRC32C crc = new CRC32C();
+
+		crc.update(html);
+
+		return crc.getValue();
+	}
+
+	/**
+	 * @return the result extracted from the page with this hash by this extractor version, null if there is none
+	 */
+	JSONObject get(String page, long hash)
+	{
+		Path path = dir.resolve(page);
+
+		if (enabled && Files.exists(path))
+		{
+			try
+			{
+				JSONObject entry = new JSONObject(Files.readString(path, StandardCharsets.UTF_8));
+
+				if (entry.optInt("version") == VERSION && Long.toHexString(hash).equals(entry.optString("hash")))
+				{
+					return entry.getJSONObject("result");
+				}
+			}
+			catch (IOException | JSONException e)
+			{
+				// a damaged entry is replaced once the page is parsed again
+				System.out.println("Ignoring extraction memo " + path + " : " + e);
+			}
+		}
+
+		return null;
+	}
+
+	void put(String page, long hash, JSONObject result) throws IOException
+	{
+		if (!enabled)
+		{
+			return;
+		}
+
+		JSONObject entry = new JSONObject();
+
+		entry.put("hash", Long.toHexString(hash));
+		entry.put("version", VERSION);
+		entry.put("result", result);
+
+		Path target = dir.resolve(page);
+
+		Path temp = target.resolveSibling(page + ".tmp");
+
+		Files.write(temp, entry.toString().getBytes(StandardCharsets.UTF_8));
+
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -8,15 +8,21 @@ package com.chrisnewland.jepmap;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 
 public class JEP
 {
+	public static final long NO_DATE = Long.MIN_VALUE;
+
 	private final String name;
 	private final int number;
 	private String status;
 	private String created;
 	private String updated;
+	private long createdMillis = NO_DATE;
+	private long updatedMillis = NO_DATE;
 	private String release;
 	private String discussion;
 	private String issue;
@@ -26,6 +32,9 @@ public class JEP
 	private final Set<Integer> depends = new HashSet<>();
 	private final Set<String> projectIds = new HashSet<>();
 
+	// most similar JEPs by text, most similar first
+	private final List<Integer> similar = new ArrayList<>();
+
 	public JEP(String name, int number)
 	{
 		this.number = number;
@@ -35,6 +44,31 @@ public class JEP
 		this.name = name.replace(prefix, "").replace("JEP XXX:", "");
 	}
 
+	/**
+	 * @return a copy whose fields and collections can be changed without changing this JEP
+	 */
+	public JEP copy()
+	{
+		JEP copy = new JEP(name, number);
+
+		copy.status = status;
+		copy.created = created;
+		copy.updated = updated;
+		copy.createdMillis = createdMillis;
+		copy.updatedMillis = updatedMillis;
+		copy.release = release;
+		copy.discussion = discussion;
+		copy.issue = issue;
+		copy.body = body;
+
+		copy.related.addAll(related);
+		copy.depends.addAll(depends);
+		copy.projectIds.addAll(projectIds);
+		copy.similar.addAll(similar);
+
+		return copy;
+	}
+
 	public String getName()
 	{
 		return name;
@@ -85,6 +119,15 @@ public class JEP
 	public void setCreated(String created)
 	{
 		this.created = created;
+		this.createdMillis = parseDate(created);
+	}
+
+	/**
+	 * @return the created date as epoch millis UTC or NO_DATE if missing or unparseable
+	 */
+	public long getCreatedMillis()
+	{
+		return createdMillis;
 	}
 
 	public String getUpdated()
@@ -95,6 +138,76 @@ public class JEP
 	public void setUpdated(String updated)
 	{
 		this.updated = updated;
+		this.updatedMillis = parseDate(updated);
+	}
+
+	/**
+	 * @return the updated date as epoch millis UTC or NO_DATE if missing or unparseable
+	 */
+	public long getUpdatedMillis()
+	{
+		return updatedMillis;
+	}
+
+	/**
+	 * Parses the "2021/08/23 20:51" form used on JEP pages, the time is optional.
+	 * Done by hand as it runs for every JEP on every load.
+	 *
+	 * @return epoch millis UTC or NO_DATE
+	 */
+	public static long parseDate(String date)
+	{
+		if (date == null || date.length() < 10)
+		{
+			return NO_DATE;
+		}
+
+		int year = parseDigits(date, 0, 4);
+		int month = parseDigits(date, 5, 7);
+		int day = parseDigits(date, 8, 10);
+
+		int hour = 0;
+		int minute = 0;
+
+		if (date.length() >= 16)
+		{
+			hour = parseDigits(date, 11, 13);
+			minute = parseDigits(date, 14, 16);
+		}
+
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59)
+		{
+			return NO_DATE;
+		}
+
+		try
+		{
+			return LocalDateTime.of(year, month, day, hour, minute).toEpochSecond(ZoneOffset.UTC) * 1000;
+		}
+		catch (RuntimeException e)
+		{
+			// e.g. 2021/02/30
+			return NO_DATE;
+		}
+	}
+
+	private static int parseDigits(String str, int from, int to)
+	{
+		int value = 0;
+
+		for (int i = from; i < to; i++)
+		{
+			char c = str.charAt(i);
+
+			if (c < '0' || c > '9')
+			{
+				return -1;
+			}
+
+			value = value * 10 + (c - '0');
+		}
+
+		return value;
 	}
 
 	public String getRelease()
@@ -147,6 +260,17 @@ public class JEP
 		return body;
 	}
 
+	public List<Integer> getSimilar()
+	{
+		return similar;
+	}
+
+	public void setSimilar(List<Integer> numbers)
+	{
+		similar.clear();
+		similar.addAll(numbers);
+	}
+
 	public void setBody(String body)
 	{
 		this.body = body;
@@ -178,7 +302,7 @@ public class JEP
 
 		if (issue != null)
 		{
-			bugLink = makeLink("https://bugs.openjdk.java.net/browse/JDK-" + issue, issue);
+			bugLink = makeLink("https://bugs.openjdk.org/browse/JDK-" + issue, issue);
 		}
 
 		StringBuilder builder = new StringBuilder();
@@ -194,6 +318,7 @@ public class JEP
 		builder.append("<td>").append(getSafeEmail(getValueOrEmpty(discussion))).append("</td>");
 
 		builder.append("<td>").append(setToString(related, "#")).append("</td>");
+		builder.append("<td>").append(setToString(similar, "#")).append("</td>");
 		builder.append("<td>").append(setToString(depends, "#")).append("</td>");
 		builder.append("<td>").append(setToString(projectIds, "jepmap.html#")).append("</td>");
 
@@ -228,7 +353,7 @@ public class JEP
 		return (str == null) ? "" : str;
 	}
 
-	private String setToString(Set<?> set, String linkPrefix)
+	private String setToString(Collection<?> set, String linkPrefix)
 	{
 		StringBuilder builder = new StringBuilder();
 
@@ -248,6 +373,14 @@ public class JEP
 	}
 
 	public String serialise()
+	{
+		return serialise(body);
+	}
+
+	/**
+	 * @param body the body to write, for JEPs whose body is kept elsewhere
+	 */
+	public String serialise(String body)
 	{
 		JSONObject jsonObject = new JSONObject();
 
@@ -264,6 +397,7 @@ public class JEP
 		jsonObject.put("related", related);
 		jsonObject.put("depends", depends);
 		jsonObject.put("projectIds", projectIds);
+		jsonObject.put("similar", similar);
 
 		return jsonObject.toString();
 	}
@@ -304,6 +438,16 @@ public class JEP
 			}
 		}
 
+		JSONArray similar = jsonObject.optJSONArray("similar");
+
+		if (similar != null)
+		{
+			for (int i = 0; i < similar.length(); i++)
+			{
+				jep.similar.add(similar.getInt(i));
+			}
+		}
+
 		JSONArray projectIds = jsonObject.optJSONArray("projectIds");
 
 		if (related != null)
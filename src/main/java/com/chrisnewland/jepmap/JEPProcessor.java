@@ -5,15 +5,21 @@
 
 package com.chrisnewland.jepmap;
 
+import com.chrisnewland.jepmap.clientindex.ClientIndexWriter;
+import com.chrisnewland.jepmap.history.SnapshotStore;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.jsoup.*;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -21,6 +27,12 @@ import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
 
 public class JEPProcessor
 {
@@ -32,19 +44,26 @@ public class JEPProcessor
 		}
 	}
 
-	private static final String URL_OPENJDK_ROOT = "https://openjdk.java.net/";
+	// base URLs can be overridden with system properties to crawl a mirror or a local OpenJDKStubServer
+	private static final String URL_OPENJDK_ROOT = System.getProperty("jepmap.url.root", "https://openjdk.org/");
 
-	public static final String URL_JEPS = "https://openjdk.java.net/jeps/";
+	public static final String URL_JEPS = System.getProperty("jepmap.url.jeps", URL_OPENJDK_ROOT + "jeps/");
 
-	private static final String URL_PROJECT = "https://openjdk.java.net/projects/";
+	private static final String URL_PROJECT = System.getProperty("jepmap.url.project", URL_OPENJDK_ROOT + "projects/");
 
-	private static final String URL_WIKI = "https://wiki.openjdk.java.net/display/";
+	private static final String URL_WIKI = System.getProperty("jepmap.url.wiki", "https://wiki.openjdk.org/display/");
 
-	private final Path htmlCachePath = Paths.get("/tmp/jepmap");
+	private final Path htmlCachePath = Paths.get(System.getProperty("jepmap.htmlCache", "/tmp/jepmap"));
 
-	private final JEPMap jepMap = new JEPMap();
+	// fulljep.html searches a precomputed index in the browser and only uses the websocket as a fallback
+	private final boolean clientIndex = Boolean.getBoolean("jepmap.clientIndex");
 
-	private final Map<String, Project> projectMap = new HashMap<>();
+	private final int clientIndexShardBytes = Integer.getInteger("jepmap.clientIndex.shardBytes", 32 * 1024);
+
+	// replaced as a whole by each daemon cycle that completes
+	private JEPMap jepMap = new JEPMap();
+
+	private Map<String, Project> projectMap = new HashMap<>();
 
 	private final Map<Integer, Set<String>> badMappings = new HashMap<>();
 
@@ -52,24 +71,118 @@ public class JEPProcessor
 
 	private final Path pathOutputHtml;
 
-	public static void main(String[] args) throws IOException
+	private final Path pathHistory;
+
+	private final Path pathProjectCache = htmlCachePath.resolve("projects.json");
+
+	private final ExtractionMemo extractionMemo;
+
+	private final CanonicalURLs canonicalURLs;
+
+	private final Map<String, String> resources = new HashMap<>();
+
+	// JEPs as parsed in earlier daemon cycles, copied while their cached page is unchanged
+	// as each cycle's model changes its JEPs
+	private final Map<Integer, ParsedJEP> parsedJEPs = new HashMap<>();
+
+	// JEPs parsed but not yet written to pathOutputJson
+	private final Set<Integer> unwrittenJEPs = new HashSet<>();
+
+	// cached pages older than this are refetched, batch runs never refetch
+	private long maxPageAgeMillis = Long.MAX_VALUE;
+
+	private int refreshBudget = 0;
+
+	private long modelFingerprint = 0;
+
+	private final CrawlStats stats = new CrawlStats();
+
+	private static class ParsedJEP
+	{
+		private final long pageHash;
+		private final JEP jep;
+
+		ParsedJEP(long pageHash, JEP jep)
+		{
+			this.pageHash = pageHash;
+			this.jep = jep;
+		}
+	}
+
+	/**
+	 * Page and parse counts for the latest run.
+	 */
+	static class CrawlStats
+	{
+		int pagesRefreshed;
+		int pagesChanged;
+		int pagesFailed;
+		int jepsParsed;
+		int jepsReused;
+		int projectPagesParsed;
+		int projectPagesReused;
+
+		void reset()
+		{
+			pagesRefreshed = 0;
+			pagesChanged = 0;
+			pagesFailed = 0;
+			jepsParsed = 0;
+			jepsReused = 0;
+			projectPagesParsed = 0;
+			projectPagesReused = 0;
+		}
+	}
+
+	JEPMap getJEPMap()
+	{
+		return jepMap;
+	}
+
+	Map<String, Project> getProjectMap()
 	{
-		if (args.length != 2)
+		return projectMap;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2 || args.length > 3 || (args.length == 3 && !"--daemon".equals(args[2]) && !"--reassociate".equals(args[2])))
 		{
-			System.err.println("JEPProcessor <jsonOutputDir> <htmlOutputDir>");
+			System.err.println("JEPProcessor <jsonOutputDir> <htmlOutputDir> [--daemon | --reassociate]");
 			System.exit(-1);
 		}
 
 		JEPProcessor jepProcessor = new JEPProcessor(args[0], args[1]);
 
+		if (args.length == 3 && "--daemon".equals(args[2]))
+		{
+			CrawlDaemon.run(jepProcessor);
+			return;
+		}
+
+		if (args.length == 3)
+		{
+			jepProcessor.reassociate();
+			return;
+		}
+
 		jepProcessor.loadBadMappings();
 
 		jepProcessor.parseJEPs();
 
+		jepProcessor.findSimilarJEPs(Collections.emptyMap());
+
 		jepProcessor.parseProjects();
 
 		jepProcessor.parseProjectsJDK();
 
+		CrawlStats stats = jepProcessor.getStats();
+
+		System.out.println("Parsed " + stats.jepsParsed + " JEP and " + stats.projectPagesParsed + " project pages, reused " + stats.jepsReused +
+				" and " + stats.projectPagesReused + " from the extraction memo");
+
+		jepProcessor.writeProjectCache();
+
 		jepProcessor.associateJEPsToProjects();
 
 		jepProcessor.cleanBadMappings();
@@ -79,6 +192,8 @@ public class JEPProcessor
 		jepProcessor.generateJepSearch();
 
 		jepProcessor.generateFullJep();
+
+		jepProcessor.recordHistory();
 	}
 
 	public JEPProcessor(String jsonOutputDir, String htmlOutputDir)
@@ -87,18 +202,40 @@ public class JEPProcessor
 
 		this.pathOutputHtml = Paths.get(htmlOutputDir);
 
-		if (!Files.exists(htmlCachePath))
-		{
-			boolean created = htmlCachePath.toFile().mkdirs();
+		String history = System.getProperty("jepmap.history");
 
-			if (!created)
+		this.pathHistory = (history != null) ? Paths.get(history) : pathOutputJson.toAbsolutePath().resolveSibling("history");
+
+		Path pathExtracted = htmlCachePath.resolve("extracted");
+
+		this.extractionMemo = new ExtractionMemo(pathExtracted, !"false".equals(System.getProperty("jepmap.extractionMemo")));
+
+		for (Path dir : new Path[] { htmlCachePath, pathExtracted, pathOutputJson, pathOutputHtml })
+		{
+			if (!Files.exists(dir))
 			{
-				throw new RuntimeException("Could not create tmp dir " + htmlCachePath);
+				boolean created = dir.toFile().mkdirs();
+
+				if (!created)
+				{
+					throw new RuntimeException("Could not create dir " + dir);
+				}
 			}
 		}
+
+		Path pathRedirects = htmlCachePath.resolve("redirects.properties");
+
+		try
+		{
+			this.canonicalURLs = new CanonicalURLs(pathRedirects);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Couldn't load redirects: " + pathRedirects, e);
+		}
 	}
 
-	private void loadBadMappings()
+	void loadBadMappings()
 	{
 		Properties properties = new Properties();
 
@@ -167,10 +304,12 @@ public class JEPProcessor
 			{
 				//System.out.println(link + "=>" + projectName);
 
-				String projectId = link.substring("/projects/".length()).toLowerCase();
+				String projectId = getProjectIdFromLink(link);
 
-				if (!projectId.isEmpty())
+				if (projectId != null && !projectId.isEmpty())
 				{
+					projectId = projectId.toLowerCase();
+
 					Project project = new Project(projectId, projectName);
 
 					projectMap.put(projectId, project);
@@ -260,7 +399,7 @@ public class JEPProcessor
 		}
 	}
 
-	private void cleanBadMappings()
+	void cleanBadMappings()
 	{
 		for (Project project : projectMap.values())
 		{
@@ -288,7 +427,7 @@ public class JEPProcessor
 		}
 	}
 
-	private void report() throws IOException
+	void report() throws IOException
 	{
 		List<Project> projectList = new ArrayList<>(projectMap.values());
 
@@ -439,6 +578,294 @@ public class JEPProcessor
 		Files.write(pathOutputHtml.resolve("jepsearch.html"), template.getBytes(StandardCharsets.UTF_8));
 	}
 
+	/**
+	 * One daemon cycle over the in-memory model. Up to refreshBudget cached pages older than
+	 * maxPageAgeMillis are refetched, JEPs whose page is unchanged are reused without parsing,
+	 * and the outputs are only written if the resulting model differs from the last cycle.
+	 * A cycle that fails leaves the previous model in place and the next one writes the outputs again.
+	 *
+	 * @return true if the outputs were regenerated
+	 */
+	boolean refresh(long maxPageAgeMillis, int refreshBudget) throws IOException
+	{
+		this.maxPageAgeMillis = maxPageAgeMillis;
+		this.refreshBudget = refreshBudget;
+
+		stats.reset();
+
+		JEPMap previousJEPMap = jepMap;
+
+		Map<String, Project> previousProjectMap = projectMap;
+
+		jepMap = new JEPMap();
+		projectMap = new HashMap<>();
+
+		boolean built = false;
+
+		try
+		{
+			parseJEPs();
+
+			findSimilarJEPs(previousJEPMap);
+
+			parseProjects();
+
+			parseProjectsJDK();
+
+			writeProjectCache();
+
+			associateJEPsToProjects();
+
+			cleanBadMappings();
+
+			built = true;
+		}
+		finally
+		{
+			if (!built)
+			{
+				jepMap = previousJEPMap;
+				projectMap = previousProjectMap;
+			}
+		}
+
+		long fingerprint = getModelFingerprint();
+
+		if (fingerprint == modelFingerprint)
+		{
+			return false;
+		}
+
+		// forget the fingerprint until the outputs are written so a failure here is retried
+		modelFingerprint = 0;
+
+		report();
+
+		generateJepSearch();
+
+		generateFullJep();
+
+		recordHistory();
+
+		modelFingerprint = fingerprint;
+
+		return true;
+	}
+
+	/**
+	 * Rebuilds the outputs for the current badmappings.properties without reading any html.
+	 * The JEPs come from the JSON output, or the latest snapshot if there is none, and the projects
+	 * with the JEPs their pages link to from the project cache written by the last full run.
+	 */
+	void reassociate() throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		loadBadMappings();
+
+		loadJEPs();
+
+		loadProjectCache();
+
+		associateJEPsToProjects();
+
+		cleanBadMappings();
+
+		report();
+
+		generateJepSearch();
+
+		generateFullJep();
+
+		System.out.println("Reassociated " + jepMap.size() + " JEPs with " + projectMap.size() + " projects in " +
+				(System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Loads the JEPs written by the last run as they were before association.
+	 */
+	private void loadJEPs() throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(pathOutputJson, "*.json"))
+		{
+			List<Future<JEP>> futures = new ArrayList<>();
+
+			for (final Path path : stream)
+			{
+				futures.add(executor.submit(new Callable<JEP>()
+				{
+					@Override public JEP call() throws IOException
+					{
+						return JEP.deserialise(new JSONObject(Files.readString(path, StandardCharsets.UTF_8)));
+					}
+				}));
+			}
+
+			for (Future<JEP> future : futures)
+			{
+				JEP jep = future.get();
+
+				jepMap.put(jep.getNumber(), jep);
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted loading JEPs", ie);
+		}
+		catch (ExecutionException ee)
+		{
+			throw new IOException("Couldn't load JEPs from " + pathOutputJson, ee.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		if (jepMap.isEmpty() && Files.isDirectory(pathHistory))
+		{
+			SnapshotStore store = new SnapshotStore(pathHistory);
+
+			List<Integer> runs = store.getRuns();
+
+			if (!runs.isEmpty())
+			{
+				System.out.println("No JSON in " + pathOutputJson + ", loading run " + runs.get(runs.size() - 1) + " from " + pathHistory);
+
+				for (Map.Entry<Integer, JSONObject> entry : store.materialise(runs.get(runs.size() - 1)).entrySet())
+				{
+					jepMap.put(entry.getKey(), store.toJEP(entry.getKey(), entry.getValue()));
+				}
+			}
+		}
+
+		if (jepMap.isEmpty())
+		{
+			throw new IOException("No JEPs found in " + pathOutputJson + " or " + pathHistory);
+		}
+	}
+
+	/**
+	 * Saves every project with the JEPs linked from its pages so reassociate() can skip parsing them.
+	 * <pre>
+	 * [{"id":"loom","name":"Loom","description":"...","projectURL":"...","wikiURL":"...","jeps":[425,428]},...]
+	 * </pre>
+	 */
+	void writeProjectCache() throws IOException
+	{
+		JSONArray projects = new JSONArray();
+
+		for (Project project : projectMap.values())
+		{
+			JSONObject json = new JSONObject();
+
+			json.put("id", project.getId());
+			json.put("name", project.getName());
+			json.put("description", project.getDescription());
+			json.put("projectURL", project.getProjectURL());
+			json.put("wikiURL", project.getWikiURL());
+
+			Set<Integer> numbers = new TreeSet<>();
+
+			for (JEP jep : project.getJeps())
+			{
+				numbers.add(jep.getNumber());
+			}
+
+			json.put("jeps", new JSONArray(numbers));
+
+			projects.put(json);
+		}
+
+		Files.write(pathProjectCache, projects.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void loadProjectCache() throws IOException
+	{
+		if (!Files.exists(pathProjectCache))
+		{
+			throw new IOException("No project cache at " + pathProjectCache + ", run JEPProcessor without --reassociate first");
+		}
+
+		JSONArray projects = new JSONArray(Files.readString(pathProjectCache, StandardCharsets.UTF_8));
+
+		for (int i = 0; i < projects.length(); i++)
+		{
+			JSONObject json = projects.getJSONObject(i);
+
+			Project project = new Project(json.getString("id"), json.getString("name"));
+
+			project.setDescription(json.optString("description", null));
+			project.setProjectURL(json.optString("projectURL", null));
+			project.setWikiURL(json.optString("wikiURL", null));
+
+			JSONArray numbers = json.getJSONArray("jeps");
+
+			for (int j = 0; j < numbers.length(); j++)
+			{
+				JEP jep = jepMap.get(numbers.getInt(j));
+
+				if (jep != null)
+				{
+					project.addJEP(jep);
+				}
+			}
+
+			projectMap.put(project.getId(), project);
+		}
+	}
+
+	CrawlStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * @return a hash of every JEP and every project's details and JEP numbers
+	 */
+	private long getModelFingerprint()
+	{
+		CRC32C crc = new CRC32C();
+
+		for (JEP jep : jepMap.values())
+		{
+			crc.update(jep.serialise().getBytes(StandardCharsets.UTF_8));
+		}
+
+		List<String> projectIds = new ArrayList<>(projectMap.keySet());
+
+		Collections.sort(projectIds);
+
+		for (String projectId : projectIds)
+		{
+			Project project = projectMap.get(projectId);
+
+			Set<Integer> numbers = new TreeSet<>();
+
+			for (JEP jep : project.getJeps())
+			{
+				numbers.add(jep.getNumber());
+			}
+
+			String summary = projectId + "|" + project.getName() + "|" + project.getDescription() + "|" + project.getProjectURL() + "|" +
+					project.getWikiURL() + "|" + numbers;
+
+			crc.update(summary.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return crc.getValue();
+	}
+
+	/**
+	 * Appends this run to the snapshot history, see SnapshotStore for the queries it supports.
+	 */
+	void recordHistory() throws IOException
+	{
+		new SnapshotStore(pathHistory).append(jepMap.values());
+	}
+
 	private void generateFullJep() throws IOException
 	{
 		StringBuilder builder = new StringBuilder();
@@ -462,59 +889,204 @@ public class JEPProcessor
 
 		template = template.replace("%BODY%", builder.toString());
 
+		String indexScript = "";
+
+		if (clientIndex)
+		{
+			new ClientIndexWriter(pathOutputHtml.resolve("fulljep-index"), clientIndexShardBytes).write(jepList);
+
+			Files.write(pathOutputHtml.resolve("fulljep-index.js"), getResource("fulljep-index.js").getBytes(StandardCharsets.UTF_8));
+
+			indexScript = "<script src=\"fulljep-index.js\"></script>";
+		}
+
+		template = template.replace("%SEARCHINDEX%", indexScript);
+
 		Files.write(pathOutputHtml.resolve("fulljep.html"), template.getBytes(StandardCharsets.UTF_8));
 	}
 
 	private String getResource(String filename) throws IOException
 	{
-		return Files.readString(Paths.get("src/main/resources/", filename), StandardCharsets.UTF_8);
+		String resource = resources.get(filename);
+
+		if (resource == null)
+		{
+			resource = Files.readString(Paths.get("src/main/resources/", filename), StandardCharsets.UTF_8);
+			resources.put(filename, resource);
+		}
+
+		return resource;
 	}
 
 	private Document loadHTML(String url) throws IOException
 	{
-		String filename = url.replace(":", "-").replace("/", "_");
+		return Jsoup.parse(cacheHTML(url), "UTF-8", url);
+	}
 
-		File file = new File(htmlCachePath.toFile(), filename);
+	/**
+	 * Fetches the page into the html cache if it is missing, or if it is stale and the refresh budget allows.
+	 * A failed refresh keeps the previous copy so it is retried on the next cycle. A failed first fetch leaves
+	 * an empty file, which batch runs keep but daemon cycles fetch again as if it were missing.
+	 *
+	 * @return the cached file
+	 */
+	private File cacheHTML(String url) throws IOException
+	{
+		String canonicalURL = canonicalURLs.resolve(url);
 
-		Document document;
+		File file = getCacheFile(url, canonicalURL);
 
-		if (file.exists())
+		boolean exists = file.exists();
+
+		if (exists && file.length() == 0 && maxPageAgeMillis != Long.MAX_VALUE)
 		{
-			//System.out.println("Loading from file: " + file.getAbsolutePath());
-			document = Jsoup.parse(file, "UTF-8", url);
+			exists = false;
 		}
-		else
+
+		if (exists)
 		{
-			//System.out.println("No file: " + file.getAbsolutePath());
+			boolean stale = System.currentTimeMillis() - file.lastModified() > maxPageAgeMillis;
 
-			try
+			if (!stale || refreshBudget <= 0)
 			{
-				System.out.println("Fetching from network: " + url);
-
-				document = Jsoup.connect(url).userAgent("JEPMap - https://github.com/chriswhocodes/JEPMap").followRedirects(true).get();
+				return file;
 			}
-			catch (Exception e)
-			{
-				//System.out.println("Writing empty file: " + file.getAbsolutePath());
 
-				Files.write(file.toPath(), new byte[0]);
-				throw e;
+			refreshBudget--;
+			stats.pagesRefreshed++;
+		}
+
+		Document document;
+
+		try
+		{
+			System.out.println("Fetching from network: " + url);
+
+			document = Jsoup.connect(canonicalURL).userAgent("JEPMap - https://github.com/chriswhocodes/JEPMap").followRedirects(true).get();
+		}
+		catch (Exception e)
+		{
+			if (exists)
+			{
+				System.out.println("Refresh failed, keeping cached " + url + " : " + e);
+				stats.pagesFailed++;
+				return file;
 			}
 
-			String htmlToSave = document.outerHtml().replace("&#x2009;", " ").replace("&thinsp;", " ");
+			//System.out.println("Writing empty file: " + file.getAbsolutePath());
+
+			Files.write(file.toPath(), new byte[0]);
+			throw e;
+		}
+
+		String finalURL = canonicalURLs.recordRedirect(canonicalURL, document.location());
+
+		if (!finalURL.equals(canonicalURL))
+		{
+			// stored once under the page redirected to, however it was reached
+			Files.deleteIfExists(file.toPath());
+
+			file = getCacheFile(finalURL, finalURL);
+			exists = file.exists();
+		}
+
+		byte[] htmlToSave = document.outerHtml().replace("&#x2009;", " ").replace("&thinsp;", " ").getBytes(StandardCharsets.UTF_8);
 
+		if (exists && Arrays.equals(htmlToSave, Files.readAllBytes(file.toPath())))
+		{
+			// unchanged, only reset its age
+			file.setLastModified(System.currentTimeMillis());
+		}
+		else
+		{
 			//System.out.println("Saving to file: " + file.getAbsolutePath());
-			Files.write(file.toPath(), htmlToSave.getBytes(StandardCharsets.UTF_8));
+			Files.write(file.toPath(), htmlToSave);
+			stats.pagesChanged++;
 		}
 
-		return document;
+		return file;
+	}
+
+	/**
+	 * @return the cache file of the canonical URL, renamed from the name the page was cached under before
+	 * URLs were canonicalised if there is one
+	 */
+	private File getCacheFile(String url, String canonicalURL) throws IOException
+	{
+		File file = new File(htmlCachePath.toFile(), CanonicalURLs.toFilename(canonicalURL));
+
+		if (!file.exists())
+		{
+			for (String legacyName : CanonicalURLs.getLegacyFilenames(url, canonicalURL))
+			{
+				Path legacy = htmlCachePath.resolve(legacyName);
+
+				if (Files.isRegularFile(legacy))
+				{
+					Files.move(legacy, file.toPath());
+					break;
+				}
+			}
+		}
+
+		return file;
 	}
 
 	private void parseProject(Project project, String url, boolean parseDescription) throws IOException
 	{
 		System.out.println("parseProject(" + url + ")");
 
-		Document doc = loadHTML(url);
+		File page = cacheHTML(url);
+
+		byte[] html = Files.readAllBytes(page.toPath());
+
+		long pageHash = ExtractionMemo.hash(html);
+
+		JSONObject extracted = extractionMemo.get(page.getName(), pageHash);
+
+		if (extracted != null)
+		{
+			stats.projectPagesReused++;
+		}
+		else
+		{
+			extracted = extractProject(Jsoup.parse(new ByteArrayInputStream(html), "UTF-8", url), parseDescription);
+
+			extractionMemo.put(page.getName(), pageHash, extracted);
+
+			stats.projectPagesParsed++;
+		}
+
+		if (parseDescription)
+		{
+			project.setDescription(extracted.getString("description"));
+		}
+
+		JSONArray jepNumbers = extracted.getJSONArray("jeps");
+
+		for (int i = 0; i < jepNumbers.length(); i++)
+		{
+			int jepNumber = jepNumbers.getInt(i);
+
+			JEP jep = jepMap.get(jepNumber);
+
+			if (jep != null)
+			{
+				project.addJEP(jep);
+			}
+			else
+			{
+				System.out.println("Error, no JEP found for " + jepNumber);
+			}
+		}
+	}
+
+	/**
+	 * @return {"description":"...","jeps":[400,...]} with the JEP numbers of the page's JEP links in page order
+	 */
+	private JSONObject extractProject(Document doc, boolean parseDescription)
+	{
+		JSONObject extracted = new JSONObject();
 
 		if (parseDescription)
 		{
@@ -527,9 +1099,11 @@ public class JEPProcessor
 				description += "<ul>" + ulBlock + "</ul>";
 			}
 
-			project.setDescription(description);
+			extracted.put("description", description);
 		}
 
+		JSONArray jepNumbers = new JSONArray();
+
 		Elements hrefElements = doc.select("a[href]");
 
 		for (Element href : hrefElements)
@@ -547,18 +1121,13 @@ public class JEPProcessor
 					jepNumber = 450;
 				}
 
-				JEP jep = jepMap.get(jepNumber);
-
-				if (jep != null)
-				{
-					project.addJEP(jep);
-				}
-				else
-				{
-					System.out.println("Error, no JEP found for " + jepNumber);
-				}
+				jepNumbers.put(jepNumber);
 			}
 		}
+
+		extracted.put("jeps", jepNumbers);
+
+		return extracted;
 	}
 
 	private int getNumberFromJEPLink(String link)
@@ -642,10 +1211,7 @@ public class JEPProcessor
 				}
 				catch (Exception e)
 				{
-					System.out.println("Couldn't load JEP " + link);
-
-					e.printStackTrace();
-					System.exit(-1);
+					throw new IOException("Couldn't load JEP " + link, e);
 				}
 			}
 		}
@@ -655,8 +1221,48 @@ public class JEPProcessor
 	{
 		String url = URL_JEPS + number;
 
-		Document doc = loadHTML(url);
+		File page = cacheHTML(url);
+
+		byte[] html = Files.readAllBytes(page.toPath());
+
+		long pageHash = ExtractionMemo.hash(html);
+
+		ParsedJEP parsed = parsedJEPs.get(number);
 
+		if (parsed != null && parsed.pageHash == pageHash)
+		{
+			stats.jepsReused++;
+			return parsed.jep.copy();
+		}
+
+		JSONObject extracted = extractionMemo.get(page.getName(), pageHash);
+
+		JEP jep;
+
+		if (extracted != null)
+		{
+			jep = JEP.deserialise(extracted);
+
+			stats.jepsReused++;
+		}
+		else
+		{
+			jep = parseJEP(number, Jsoup.parse(new ByteArrayInputStream(html), "UTF-8", url));
+
+			extractionMemo.put(page.getName(), pageHash, new JSONObject(jep.serialise()));
+
+			stats.jepsParsed++;
+		}
+
+		unwrittenJEPs.add(number);
+
+		parsedJEPs.put(number, new ParsedJEP(pageHash, jep));
+
+		return jep.copy();
+	}
+
+	private JEP parseJEP(int number, Document doc) throws IOException
+	{
 		Element h1 = doc.select("h1").first();
 
 		String title = h1.text();
@@ -779,12 +1385,29 @@ public class JEPProcessor
 			}
 		}
 
-		Files.write(pathOutputJson.resolve(jep.getNumber() + ".json"), jep.serialise().getBytes(StandardCharsets.UTF_8));
-
 		return jep;
 	}
 
-	private void associateJEPsToProjects()
+	/**
+	 * Stores the most similar JEPs on each JEP and writes the JSON of every JEP parsed
+	 * since the last write or whose similar JEPs changed since the previous model.
+	 */
+	void findSimilarJEPs(Map<Integer, JEP> previousJEPMap) throws IOException
+	{
+		new SimilarJEPs(jepMap.values()).apply(Runtime.getRuntime().availableProcessors());
+
+		for (JEP jep : jepMap.values())
+		{
+			JEP previous = previousJEPMap.get(jep.getNumber());
+
+			if (unwrittenJEPs.remove(jep.getNumber()) || previous == null || !jep.getSimilar().equals(previous.getSimilar()))
+			{
+				Files.write(pathOutputJson.resolve(jep.getNumber() + ".json"), jep.serialise().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	void associateJEPsToProjects()
 	{
 		for (JEP jep : jepMap.values())
 		{
@@ -862,7 +1485,7 @@ public class JEPProcessor
 
 	private boolean linkIsProject(String url)
 	{
-		if (url.contains("http") && !url.contains("openjdk.java.net"))
+		if (url.contains("http") && !CanonicalURLs.isOpenJDK(url))
 		{
 			System.out.println("Ignoring non-JDK project URL " + url);
 			return false;
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+
+package com.chrisnewland.jepmap;
+
+import com.chrisnewland.jepmap.websocket.Vocabulary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the JEPs most alike in text to each JEP.
+ * <p>
+ * Each JEP becomes a unit length TF-IDF vector of the terms in its name and body, with name terms
+ * counted NAME_WEIGHT times and term frequencies damped as 1 + ln(tf). Terms in a single JEP, which
+ * cannot make two JEPs similar, and terms in every JEP, which weigh nothing, are dropped.
+ * Cosine similarity is then the dot product, which is accumulated for one JEP against all others
+ * through an inverted index of the vectors, so only pairs sharing a term are ever touched. JEPs are
+ * split across one task per core, each keeping a bounded min-heap of the best neighbours of the
+ * JEP it is scoring.
+ */
+public class SimilarJEPs
+{
+	public static final int TOP_K = 10;
+
+	private static final int NAME_WEIGHT = 3;
+
+	// below this the shared terms are incidental
+	private static final double MIN_SIMILARITY = 0.05;
+
+	private final List<JEP> jeps;
+
+	// per JEP, its term ids and weights in step
+	private final int[][] vectorTerms;
+	private final float[][] vectorWeights;
+
+	// per term, the JEPs containing it and the term's weight in each
+	private final int[][] postingJEPs;
+	private final float[][] postingWeights;
+
+	private static class Neighbour implements Comparable<Neighbour>
+	{
+		private final int index;
+		private final float score;
+
+		Neighbour(int index, float score)
+		{
+			this.index = index;
+			this.score = score;
+		}
+
+		@Override public int compareTo(Neighbour other)
+		{
+			int byScore = Float.compare(score, other.score);
+
+			// the heap evicts its least element, the lower score or on a tie the higher index
+			return (byScore != 0) ? byScore : Integer.compare(other.index, index);
+		}
+	}
+
+	public SimilarJEPs(Collection<JEP> jeps)
+	{
+		this.jeps = new ArrayList<>(jeps);
+
+		int count = this.jeps.size();
+
+		List<Map<String, Integer>> termCounts = new ArrayList<>(count);
+
+		Map<String, Integer> documentFrequency = new HashMap<>();
+
+		for (JEP jep : this.jeps)
+		{
+			Map<String, Integer> counts = new HashMap<>();
+
+			for (String term : Vocabulary.tokenise(jep.getName()))
+			{
+				counts.merge(term, NAME_WEIGHT, Integer::sum);
+			}
+
+			if (jep.getBody() != null)
+			{
+				for (String term : Vocabulary.tokenise(jep.getBody()))
+				{
+					counts.merge(term, 1, Integer::sum);
+				}
+			}
+
+			for (String term : counts.keySet())
+			{
+				documentFrequency.merge(term, 1, Integer::sum);
+			}
+
+			termCounts.add(counts);
+		}
+
+		Map<String, Integer> termIds = new HashMap<>();
+
+		List<Integer> postingCounts = new ArrayList<>();
+
+		for (Map.Entry<String, Integer> entry : documentFrequency.entrySet())
+		{
+			if (entry.getValue() > 1 && entry.getValue() < count)
+			{
+				termIds.put(entry.getKey(), termIds.size());
+				postingCounts.add(entry.getValue());
+			}
+		}
+
+		vectorTerms = new int[count][];
+		vectorWeights = new float[count][];
+
+		postingJEPs = new int[termIds.size()][];
+		postingWeights = new float[termIds.size()][];
+
+		for (int t = 0; t < postingJEPs.length; t++)
+		{
+			postingJEPs[t] = new int[postingCounts.get(t)];
+			postingWeights[t] = new float[postingCounts.get(t)];
+		}
+
+		int[] postingSizes = new int[termIds.size()];
+
+		for (int i = 0; i < count; i++)
+		{
+			Map<String, Integer> counts = termCounts.get(i);
+
+			int[] terms = new int[counts.size()];
+			double[] weights = new double[counts.size()];
+
+			int size = 0;
+
+			double norm = 0;
+
+			for (Map.Entry<String, Integer> entry : counts.entrySet())
+			{
+				Integer termId = termIds.get(entry.getKey());
+
+				if (termId != null)
+				{
+					double idf = Math.log((double) count / documentFrequency.get(entry.getKey()));
+
+					double weight = (1 + Math.log(entry.getValue())) * idf;
+
+					terms[size] = termId;
+					weights[size] = weight;
+
+					norm += weight * weight;
+
+					size++;
+				}
+			}
+
+			norm = Math.sqrt(norm);
+
+			vectorTerms[i] = Arrays.copyOf(terms, size);
+			vectorWeights[i] = new float[size];
+
+			for (int j = 0; j < size; j++)
+			{
+				float weight = (norm > 0) ? (float) (weights[j] / norm) : 0;
+
+				vectorWeights[i][j] = weight;
+
+				int termId = terms[j];
+
+				postingJEPs[termId][postingSizes[termId]] = i;
+				postingWeights[termId][postingSizes[termId]] = weight;
+				postingSizes[termId]++;
+			}
+		}
+	}
+
+	/**
+	 * Sets the TOP_K most similar JEPs on every JEP.
+	 */
+	public void apply(int threads)
+	{
+		long start = System.nanoTime();
+
+		final int count = jeps.size();
+
+		int tasks = Math.max(1, Math.min(threads, count));
+
+		ExecutorService executor = Executors.newFixedThreadPool(tasks);
+
+		List<List<Integer>> neighbours = new ArrayList<>(count);
+
+		try
+		{
+			List<Future<List<List<Integer>>>> futures = new ArrayList<>(tasks);
+
+			int chunk = (count + tasks - 1) / tasks;
+
+			for (int from = 0; from < count; from += chunk)
+			{
+				final int first = from;
+				final int last = Math.min(from + chunk, count);
+
+				futures.add(executor.submit(new Callable<List<List<Integer>>>()
+				{
+					@Override public List<List<Integer>> call()
+					{
+						return findNeighbours(first, last);
+					}
+				}));
+			}
+
+			for (Future<List<List<Integer>>> future : futures)
+			{
+				neighbours.addAll(future.get());
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted finding similar JEPs", ie);
+		}
+		catch (ExecutionException ee)
+		{
+			throw new IllegalStateException("Failed finding similar JEPs", ee.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		for (int i = 0; i < count; i++)
+		{
+			jeps.get(i).setSimilar(neighbours.get(i));
+		}
+
+		System.out.println("Found similar JEPs for " + count + " JEPs over " + postingJEPs.length + " terms in " +
+				(System.nanoTime() - start) / 1_000_000 + "ms using " + tasks + " threads");
+	}
+
+	/**
+	 * @return for each JEP in [first, last) the numbers of its most similar JEPs, most similar first
+	 */
+	private List<List<Integer>> findNeighbours(int first, int last)
+	{
+		List<List<Integer>> result = new ArrayList<>(last - first);
+
+		float[] scores = new float[jeps.size()];
+
+		int[] touched = new int[jeps.size()];
+
+		PriorityQueue<Neighbour> heap = new PriorityQueue<>(TOP_K + 1);
+
+		for (int i = first; i < last; i++)
+		{
+			int touchedCount = 0;
+
+			int[] terms = vectorTerms[i];
+			float[] weights = vectorWeights[i];
+
+			for (int t = 0; t < terms.length; t++)
+			{
+				int[] postings = postingJEPs[terms[t]];
+				float[] postingWeight = postingWeights[terms[t]];
+
+				float weight = weights[t];
+
+				for (int p = 0; p < postings.length; p++)
+				{
+					int other = postings[p];
+
+					if (scores[other] == 0)
+					{
+						touched[touchedCount++] = other;
+					}
+
+					scores[other] += weight * postingWeight[p];
+				}
+			}
+
+			for (int k = 0; k < touchedCount; k++)
+			{
+				int other = touched[k];
+
+				float score = scores[other];
+
+				scores[other] = 0;
+
+				if (other == i || score < MIN_SIMILARITY)
+				{
+					continue;
+				}
+
+				Neighbour neighbour = new Neighbour(other, score);
+
+				if (heap.size() < TOP_K)
+				{
+					heap.add(neighbour);
+				}
+				else if (neighbour.compareTo(heap.peek()) > 0)
+				{
+					heap.poll();
+					heap.add(neighbour);
+				}
+			}
+
+			Integer[] numbers = new Integer[heap.size()];
+
+			for (int n = numbers.length - 1; n >= 0; n--)
+			{
+				numbers[n] = jeps.get(heap.poll().index).getNumber();
+			}
+
+			result.add(Arrays.asList(numbers));
+		}
+
+		return result;
+	}
+}
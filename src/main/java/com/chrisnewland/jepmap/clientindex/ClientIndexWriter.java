@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.clientindex;
+
+import com.chrisnewland.jepmap.JEP;
+import com.chrisnewland.jepmap.websocket.FacetIndex;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a precomputed term index of the corpus for fulljep.html to search in the browser.
+ * <p>
+ * The sorted vocabulary is cut into shards of about shardBytes each, so a shard holds one
+ * contiguous range of terms and a word or prefix lookup fetches only the shards covering it.
+ * <pre>
+ * index.json                   {"version":"...","minTermLength":2,"jeps":N,"shards":["aa","cla",...]}  first term of each shard
+ * &lt;version&gt;/docs.json.gz       [[number,name,status,release,discussion,[projectIds],summary],...]  in number order
+ * &lt;version&gt;/shard-N.json.gz    {"term":[docIndex deltas],...}
+ * </pre>
+ * Terms are the lower cased runs of letters and digits in the name and body of each JEP,
+ * fulljep-index.js tokenises queries the same way.
+ * <p>
+ * Shard postings are positions in the docs array of their own generation, so each generation is written
+ * to a directory named by its version before index.json is switched to it. The generation before it is
+ * kept for pages that loaded the previous index.json and still fetch shards lazily.
+ */
+public class ClientIndexWriter
+{
+	public static final String MANIFEST = "index.json";
+
+	private static final String DOCS = "docs.json.gz";
+
+	private static final String SHARD_PREFIX = "shard-";
+
+	private static final String SHARD_SUFFIX = ".json.gz";
+
+	private static final Pattern NON_TERM = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	private static final int MIN_TERM_LENGTH = 2;
+
+	private static final int MAX_TERM_LENGTH = 40;
+
+	private static final int SUMMARY_LENGTH = 240;
+
+	private final Path outputDir;
+
+	private final int shardBytes;
+
+	private long compressedBytes = 0;
+
+	public ClientIndexWriter(Path outputDir, int shardBytes)
+	{
+		this.outputDir = outputDir;
+		this.shardBytes = shardBytes;
+	}
+
+	/**
+	 * Replaces any index previously written to the output directory, deleting all but the previous generation.
+	 */
+	public void write(Collection<JEP> jeps) throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		List<JEP> docs = new ArrayList<>(jeps);
+
+		docs.sort(new Comparator<JEP>()
+		{
+			@Override public int compare(JEP o1, JEP o2)
+			{
+				return Integer.compare(o1.getNumber(), o2.getNumber());
+			}
+		});
+
+		// term -> ascending doc indices
+		Map<String, List<Integer>> postings = new HashMap<>();
+
+		JSONArray docsJSON = new JSONArray();
+
+		for (int i = 0; i < docs.size(); i++)
+		{
+			JEP jep = docs.get(i);
+
+			docsJSON.put(toDoc(jep));
+
+			for (String term : tokenise(jep.getName() + " " + (jep.getBody() != null ? jep.getBody() : "")))
+			{
+				List<Integer> list = postings.computeIfAbsent(term, k -> new ArrayList<>());
+
+				if (list.isEmpty() || list.get(list.size() - 1) != i)
+				{
+					list.add(i);
+				}
+			}
+		}
+
+		// filename -> json, in the order the version is computed
+		Map<String, String> files = new LinkedHashMap<>();
+
+		files.put(DOCS, docsJSON.toString());
+
+		List<String> firstTerms = new ArrayList<>();
+
+		JSONObject shard = new JSONObject();
+
+		int shardSize = 0;
+
+		List<String> terms = new ArrayList<>(postings.keySet());
+
+		Collections.sort(terms);
+
+		for (String term : terms)
+		{
+			if (shardSize >= shardBytes)
+			{
+				files.put(SHARD_PREFIX + (firstTerms.size() - 1) + SHARD_SUFFIX, shard.toString());
+
+				shard = new JSONObject();
+				shardSize = 0;
+			}
+
+			if (shardSize == 0)
+			{
+				firstTerms.add(term);
+			}
+
+			JSONArray deltas = new JSONArray();
+
+			int previous = 0;
+
+			for (int docIndex : postings.get(term))
+			{
+				deltas.put(docIndex - previous);
+
+				previous = docIndex;
+
+				shardSize += 4;
+			}
+
+			shard.put(term, deltas);
+
+			shardSize += term.length() + 6;
+		}
+
+		if (shardSize > 0)
+		{
+			files.put(SHARD_PREFIX + (firstTerms.size() - 1) + SHARD_SUFFIX, shard.toString());
+		}
+
+		CRC32C crc = new CRC32C();
+
+		for (String json : files.values())
+		{
+			crc.update(json.getBytes(StandardCharsets.UTF_8));
+		}
+
+		String version = Long.toHexString(crc.getValue());
+
+		Files.createDirectories(outputDir);
+
+		String previousVersion = readVersion();
+
+		writeGeneration(version, files);
+
+		JSONObject manifest = new JSONObject();
+
+		manifest.put("version", version);
+		manifest.put("minTermLength", MIN_TERM_LENGTH);
+		manifest.put("jeps", docs.size());
+		manifest.put("shards", firstTerms);
+
+		// switched only once the generation it names is complete
+		Path manifestPath = outputDir.resolve(MANIFEST);
+
+		Path temp = manifestPath.resolveSibling(MANIFEST + ".tmp");
+
+		Files.write(temp, manifest.toString().getBytes(StandardCharsets.UTF_8));
+
+		Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		deleteOldGenerations(version, previousVersion);
+
+		System.out.println("Wrote client search index: " + postings.size() + " terms in " + firstTerms.size() + " shards, " +
+				compressedBytes / 1024 + "KB gzipped in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	public static List<String> tokenise(String text)
+	{
+		List<String> terms = new ArrayList<>();
+
+		for (String term : NON_TERM.split(text.toLowerCase(Locale.ROOT)))
+		{
+			if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH)
+			{
+				terms.add(term);
+			}
+		}
+
+		return terms;
+	}
+
+	private static JSONArray toDoc(JEP jep)
+	{
+		String body = (jep.getBody() != null) ? jep.getBody().trim() : "";
+
+		String summary = body;
+
+		if (summary.length() > SUMMARY_LENGTH)
+		{
+			int cut = summary.lastIndexOf(' ', SUMMARY_LENGTH);
+
+			summary = summary.substring(0, (cut > 0) ? cut : SUMMARY_LENGTH) + " ...";
+		}
+
+		JSONArray doc = new JSONArray();
+
+		doc.put(jep.getNumber());
+		doc.put(jep.getName().trim());
+		doc.put(orEmpty(jep.getStatus()));
+		doc.put(orEmpty(FacetIndex.getReleaseValue(jep.getRelease())));
+		doc.put(orEmpty(FacetIndex.getDiscussionValue(jep.getDiscussion())));
+		doc.put(new JSONArray(jep.getProjectIds()));
+		doc.put(summary);
+
+		return doc;
+	}
+
+	private static String orEmpty(String value)
+	{
+		return (value != null) ? value : "";
+	}
+
+	/**
+	 * @return the version named by the current index.json, null if there is none
+	 */
+	private String readVersion()
+	{
+		Path manifestPath = outputDir.resolve(MANIFEST);
+
+		if (Files.exists(manifestPath))
+		{
+			try
+			{
+				return new JSONObject(Files.readString(manifestPath, StandardCharsets.UTF_8)).optString("version", null);
+			}
+			catch (IOException | JSONException e)
+			{
+				System.out.println("Ignoring client index manifest " + manifestPath + " : " + e);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Writes the files of a generation to a temporary directory moved into place once complete.
+	 * A generation already in place has the same content and is left as it is.
+	 */
+	private void writeGeneration(String version, Map<String, String> files) throws IOException
+	{
+		Path generationDir = outputDir.resolve(version);
+
+		if (Files.isDirectory(generationDir))
+		{
+			return;
+		}
+
+		Path temp = outputDir.resolve(version + ".tmp");
+
+		deleteDirectory(temp);
+
+		Files.createDirectories(temp);
+
+		for (Map.Entry<String, String> entry : files.entrySet())
+		{
+			writeGzipped(temp.resolve(entry.getKey()), entry.getValue());
+		}
+
+		Files.move(temp, generationDir, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void writeGzipped(Path path, String json) throws IOException
+	{
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+
+		try (OutputStream out = new GZIPOutputStream(compressed))
+		{
+			out.write(bytes);
+		}
+
+		compressedBytes += compressed.size();
+
+		Files.write(path, compressed.toByteArray());
+	}
+
+	/**
+	 * Deletes every generation but the current and previous ones, and the files of the unversioned layout.
+	 */
+	private void deleteOldGenerations(String version, String previousVersion) throws IOException
+	{
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDir))
+		{
+			for (Path path : stream)
+			{
+				String name = path.getFileName().toString();
+
+				if (Files.isDirectory(path))
+				{
+					if (!name.equals(version) && !name.equals(previousVersion))
+					{
+						deleteDirectory(path);
+					}
+				}
+				else if (name.equals(DOCS) || (name.startsWith(SHARD_PREFIX) && name.endsWith(SHARD_SUFFIX)))
+				{
+					Files.delete(path);
+				}
+			}
+		}
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException
+	{
+		if (!Files.isDirectory(dir))
+		{
+			return;
+		}
+
+		// a generation holds only files
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+		{
+			for (Path path : stream)
+			{
+				Files.delete(path);
+			}
+		}
+
+		Files.delete(dir);
+	}
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.history;
+
+import com.chrisnewland.jepmap.JEP;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * History of the corpus across JEPProcessor runs.
+ * <p>
+ * Each run is stored as a delta against the previous run holding only the JEPs and fields
+ * that changed. Every CHECKPOINT_INTERVAL runs a full snapshot is written instead so
+ * materialising any version replays at most that many deltas.
+ * Snapshots refer to bodies by SHA-256 and each distinct body is stored once, gzipped,
+ * so storage grows with churn rather than with corpus size times runs.
+ * <p>
+ * Layout:
+ * <pre>
+ * runs/000001.json   {"run":1,"time":...,"full":true,"jeps":{"400":{...}}}
+ * runs/000002.json   {"run":2,"time":...,"full":false,"jeps":{"400":{"status":"Closed / Delivered"}},"removed":[...]}
+ * bodies/ab/abcd...gz
+ * </pre>
+ * SnapshotStore &lt;historyDir&gt; list | show &lt;run&gt; [number] | diff &lt;fromRun&gt; &lt;toRun&gt; [field]
+ */
+public class SnapshotStore
+{
+	public static final String BODY_HASH = "bodyHash";
+
+	private static final String[] FIELDS = { "name", "status", "created", "updated", "release", "discussion", "issue", "related",
+			"depends", "projectIds", "similar", BODY_HASH };
+
+	private static final int CHECKPOINT_INTERVAL = 16;
+
+	private static final String RUN_SUFFIX = ".json";
+
+	private final Path runsDir;
+
+	private final Path bodiesDir;
+
+	/**
+	 * One field of one JEP that differs between two runs, a null value means absent.
+	 */
+	public static class Change
+	{
+		private final int number;
+		private final String field;
+		private final Object before;
+		private final Object after;
+
+		Change(int number, String field, Object before, Object after)
+		{
+			this.number = number;
+			this.field = field;
+			this.before = before;
+			this.after = after;
+		}
+
+		public int getNumber()
+		{
+			return number;
+		}
+
+		public String getField()
+		{
+			return field;
+		}
+
+		public Object getBefore()
+		{
+			return before;
+		}
+
+		public Object getAfter()
+		{
+			return after;
+		}
+
+		@Override public String toString()
+		{
+			return "JEP " + number + " " + field + ": " + before + " => " + after;
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("SnapshotStore <historyDir> list | show <run> [number] | diff <fromRun> <toRun> [field]");
+			System.exit(-1);
+		}
+
+		SnapshotStore store = new SnapshotStore(Paths.get(args[0]));
+
+		switch (args[1])
+		{
+		case "list":
+			for (int run : store.getRuns())
+			{
+				JSONObject delta = store.readRun(run);
+
+				System.out.println(run + (delta.getBoolean("full") ? " full  " : " delta ") + delta.getJSONObject("jeps").length() +
+						" changed, " + delta.optJSONArray("removed").length() + " removed, time " + delta.getLong("time"));
+			}
+			break;
+		case "show":
+			Map<Integer, JSONObject> snapshot = store.materialise(Integer.parseInt(args[2]));
+
+			if (args.length > 3)
+			{
+				JEP jep = store.toJEP(Integer.parseInt(args[3]), snapshot.get(Integer.parseInt(args[3])));
+
+				System.out.println((jep != null) ? jep.serialise() : "No such JEP in run " + args[2]);
+			}
+			else
+			{
+				System.out.println(snapshot.size() + " JEPs in run " + args[2]);
+			}
+			break;
+		case "diff":
+			String field = (args.length > 4) ? args[4] : null;
+
+			for (Change change : store.diff(Integer.parseInt(args[2]), Integer.parseInt(args[3]), field))
+			{
+				System.out.println(change);
+			}
+			break;
+		default:
+			System.err.println("Unknown command " + args[1]);
+			System.exit(-1);
+		}
+	}
+
+	public SnapshotStore(Path historyDir) throws IOException
+	{
+		this.runsDir = historyDir.resolve("runs");
+		this.bodiesDir = historyDir.resolve("bodies");
+
+		Files.createDirectories(runsDir);
+		Files.createDirectories(bodiesDir);
+	}
+
+	/**
+	 * Records the JEPs as the next run, storing only what changed since the latest run.
+	 *
+	 * @return the new run number
+	 */
+	public int append(Collection<JEP> jeps) throws IOException
+	{
+		List<Integer> runs = getRuns();
+
+		int latest = runs.isEmpty() ? 0 : runs.get(runs.size() - 1);
+
+		int run = latest + 1;
+
+		Map<Integer, JSONObject> previous = (latest > 0) ? materialise(latest) : Collections.<Integer, JSONObject>emptyMap();
+
+		boolean full = (run % CHECKPOINT_INTERVAL == 1);
+
+		JSONObject changed = new JSONObject();
+
+		Set<Integer> removed = new TreeSet<>(previous.keySet());
+
+		int changedJEPs = 0;
+
+		int changedFields = 0;
+
+		for (JEP jep : jeps)
+		{
+			removed.remove(jep.getNumber());
+
+			JSONObject record = toRecord(jep);
+
+			JSONObject before = previous.get(jep.getNumber());
+
+			JSONObject delta = (before == null) ? record : delta(before, record);
+
+			if (delta.length() > 0)
+			{
+				changedJEPs++;
+				changedFields += delta.length();
+			}
+
+			if (full)
+			{
+				changed.put(Integer.toString(jep.getNumber()), record);
+			}
+			else if (delta.length() > 0)
+			{
+				changed.put(Integer.toString(jep.getNumber()), delta);
+			}
+		}
+
+		JSONObject snapshot = new JSONObject();
+
+		snapshot.put("run", run);
+		snapshot.put("time", System.currentTimeMillis());
+		snapshot.put("full", full);
+		snapshot.put("jeps", changed);
+		snapshot.put("removed", new JSONArray(removed));
+
+		Path runFile = runsDir.resolve(getRunFileName(run));
+
+		writeAtomically(runFile, snapshot.toString().getBytes(StandardCharsets.UTF_8));
+
+		System.out.println("Recorded history run " + run + (full ? " (full)" : "") + ": " + changedJEPs + " JEPs, " + changedFields +
+				" fields changed, " + removed.size() + " removed");
+
+		return run;
+	}
+
+	/**
+	 * @return run numbers in ascending order
+	 */
+	public List<Integer> getRuns() throws IOException
+	{
+		List<Integer> runs = new ArrayList<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(runsDir, "*" + RUN_SUFFIX))
+		{
+			for (Path path : stream)
+			{
+				String name = path.getFileName().toString();
+
+				try
+				{
+					runs.add(Integer.parseInt(name.substring(0, name.length() - RUN_SUFFIX.length())));
+				}
+				catch (NumberFormatException nfe)
+				{
+					// not a run file
+				}
+			}
+		}
+
+		Collections.sort(runs);
+
+		return runs;
+	}
+
+	/**
+	 * @return the JEP records of the run keyed by number, bodies are referenced by BODY_HASH
+	 */
+	public Map<Integer, JSONObject> materialise(int run) throws IOException
+	{
+		// walk back to the nearest full snapshot, then replay the deltas after it in order
+		List<JSONObject> chain = new ArrayList<>();
+
+		for (int previous = run; previous > 0; previous--)
+		{
+			JSONObject snapshot = readRun(previous);
+
+			chain.add(snapshot);
+
+			if (snapshot.getBoolean("full"))
+			{
+				break;
+			}
+		}
+
+		if (chain.isEmpty() || !chain.get(chain.size() - 1).getBoolean("full"))
+		{
+			throw new IllegalArgumentException("No full snapshot at or before run " + run);
+		}
+
+		Map<Integer, JSONObject> state = new TreeMap<>();
+
+		for (int i = chain.size() - 1; i >= 0; i--)
+		{
+			apply(state, chain.get(i), null);
+		}
+
+		return state;
+	}
+
+	/**
+	 * Materialises the first run and replays the deltas up to the second, so only JEPs touched
+	 * in between are compared.
+	 *
+	 * @param field only report changes to this field, all fields if null
+	 * @return changes in JEP number order
+	 */
+	public List<Change> diff(int fromRun, int toRun, String field) throws IOException
+	{
+		if (toRun < fromRun)
+		{
+			throw new IllegalArgumentException("Run " + toRun + " is before run " + fromRun);
+		}
+
+		Map<Integer, JSONObject> before = materialise(fromRun);
+
+		Map<Integer, JSONObject> after = new TreeMap<>();
+
+		for (Map.Entry<Integer, JSONObject> entry : before.entrySet())
+		{
+			after.put(entry.getKey(), new JSONObject(entry.getValue().toMap()));
+		}
+
+		Set<Integer> touched = new TreeSet<>();
+
+		for (int run = fromRun + 1; run <= toRun; run++)
+		{
+			apply(after, readRun(run), touched);
+		}
+
+		List<Change> changes = new ArrayList<>();
+
+		for (int number : touched)
+		{
+			JSONObject oldRecord = before.get(number);
+			JSONObject newRecord = after.get(number);
+
+			for (String name : FIELDS)
+			{
+				if (field != null && !field.equals(name))
+				{
+					continue;
+				}
+
+				Object oldValue = (oldRecord != null) ? oldRecord.opt(name) : null;
+				Object newValue = (newRecord != null) ? newRecord.opt(name) : null;
+
+				if (!sameValue(oldValue, newValue))
+				{
+					changes.add(new Change(number, name, oldValue, newValue));
+				}
+			}
+		}
+
+		return changes;
+	}
+
+	/**
+	 * @return the JEP as recorded in a materialised snapshot with its body restored, null if the record is null
+	 */
+	public JEP toJEP(int number, JSONObject record) throws IOException
+	{
+		if (record == null)
+		{
+			return null;
+		}
+
+		JSONObject json = new JSONObject(record.toMap());
+
+		json.put("number", number);
+
+		String bodyHash = (String) json.remove(BODY_HASH);
+
+		if (bodyHash != null)
+		{
+			json.put("body", readBody(bodyHash));
+		}
+
+		return JEP.deserialise(json);
+	}
+
+	private void apply(Map<Integer, JSONObject> state, JSONObject run, Set<Integer> touched)
+	{
+		if (run.getBoolean("full"))
+		{
+			if (touched != null)
+			{
+				touched.addAll(state.keySet());
+			}
+
+			state.clear();
+		}
+
+		JSONObject jeps = run.getJSONObject("jeps");
+
+		for (String key : jeps.keySet())
+		{
+			int number = Integer.parseInt(key);
+
+			JSONObject delta = jeps.getJSONObject(key);
+
+			JSONObject record = state.computeIfAbsent(number, k -> new JSONObject());
+
+			for (String name : delta.keySet())
+			{
+				Object value = delta.get(name);
+
+				if (value == JSONObject.NULL)
+				{
+					record.remove(name);
+				}
+				else
+				{
+					record.put(name, value);
+				}
+			}
+
+			if (touched != null)
+			{
+				touched.add(number);
+			}
+		}
+
+		JSONArray removed = run.optJSONArray("removed");
+
+		if (removed != null)
+		{
+			for (int i = 0; i < removed.length(); i++)
+			{
+				state.remove(removed.getInt(i));
+
+				if (touched != null)
+				{
+					touched.add(removed.getInt(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the fields of the record that differ from before, JSONObject.NULL for a field no longer present
+	 */
+	private static JSONObject delta(JSONObject before, JSONObject record)
+	{
+		JSONObject delta = new JSONObject();
+
+		for (String name : FIELDS)
+		{
+			Object oldValue = before.opt(name);
+			Object newValue = record.opt(name);
+
+			if (!sameValue(oldValue, newValue))
+			{
+				delta.put(name, (newValue != null) ? newValue : JSONObject.NULL);
+			}
+		}
+
+		return delta;
+	}
+
+	private static boolean sameValue(Object oldValue, Object newValue)
+	{
+		if (oldValue instanceof JSONArray && newValue instanceof JSONArray)
+		{
+			return ((JSONArray) oldValue).similar(newValue);
+		}
+
+		return Objects.equals(oldValue, newValue);
+	}
+
+	/**
+	 * The JEP without its number (the key) and with its body replaced by the hash of the stored body.
+	 * Sets are sorted so unchanged sets compare equal.
+	 */
+	private JSONObject toRecord(JEP jep) throws IOException
+	{
+		JSONObject record = new JSONObject();
+
+		record.put("name", jep.getName());
+		record.put("status", jep.getStatus());
+		record.put("created", jep.getCreated());
+		record.put("updated", jep.getUpdated());
+		record.put("release", jep.getRelease());
+		record.put("discussion", jep.getDiscussion());
+		record.put("issue", jep.getIssue());
+		record.put("related", new JSONArray(new TreeSet<>(jep.getRelated())));
+		record.put("depends", new JSONArray(new TreeSet<>(jep.getDepends())));
+		record.put("projectIds", new JSONArray(new TreeSet<>(jep.getProjectIds())));
+		record.put("similar", new JSONArray(jep.getSimilar()));
+
+		if (jep.getBody() != null)
+		{
+			record.put(BODY_HASH, storeBody(jep.getBody()));
+		}
+
+		// round trip so values compare equal to those read back from disk
+		return new JSONObject(record.toString());
+	}
+
+	private String storeBody(String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+		String hash = sha256(bytes);
+
+		Path bodyFile = getBodyPath(hash);
+
+		if (!Files.exists(bodyFile))
+		{
+			Files.createDirectories(bodyFile.getParent());
+
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 3);
+
+			try (OutputStream out = new GZIPOutputStream(compressed))
+			{
+				out.write(bytes);
+			}
+
+			writeAtomically(bodyFile, compressed.toByteArray());
+		}
+
+		return hash;
+	}
+
+	public String readBody(String hash) throws IOException
+	{
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(getBodyPath(hash))))
+		{
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private Path getBodyPath(String hash)
+	{
+		return bodiesDir.resolve(hash.substring(0, 2)).resolve(hash + ".gz");
+	}
+
+	private JSONObject readRun(int run) throws IOException
+	{
+		Path runFile = runsDir.resolve(getRunFileName(run));
+
+		if (!Files.exists(runFile))
+		{
+			throw new IllegalArgumentException("No such run " + run);
+		}
+
+		return new JSONObject(new String(Files.readAllBytes(runFile), StandardCharsets.UTF_8));
+	}
+
+	private static String getRunFileName(int run)
+	{
+		return String.format("%06d", run) + RUN_SUFFIX;
+	}
+
+	private static void writeAtomically(Path target, byte[] bytes) throws IOException
+	{
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		Files.write(temp, bytes);
+
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String sha256(byte[] bytes)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+
+			for (byte b : digest)
+			{
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+}
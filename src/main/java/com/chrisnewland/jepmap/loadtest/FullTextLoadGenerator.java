@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.loadtest;
+
+import com.chrisnewland.jepmap.websocket.FullJEPServer;
+import jakarta.websocket.ClientEndpoint;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.OnClose;
+import jakarta.websocket.OnMessage;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens N concurrent /fulltext sessions that replay typing sequences and reports
+ * throughput, latency percentiles, errors and bytes per query.
+ * <p>
+ * Each session is closed-loop: it sends one keystroke query, waits for the
+ * response (or the timeout), sleeps for the think time and sends the next.
+ * A session reconnects after a timeout so a late response is never counted for a later query.
+ * <p>
+ * FullTextLoadGenerator --url=ws://127.0.0.1:8080/fulltext | --jeps=&lt;jepJsonDir&gt;
+ * [--sessions=16] [--duration=60] [--warmup=10] [--think=100] [--timeout=5000]
+ * [--limit=20] [--legacy] [--replay=&lt;file&gt;] [--seed=42]
+ * <p>
+ * --jeps starts a FullJEPServer in this JVM on the configured port.
+ * --replay reads one typed query per line, each is expanded into keystrokes from 3 characters.
+ * Without --replay sequences are synthesised from a built-in vocabulary.
+ */
+public class FullTextLoadGenerator
+{
+	private static final String[] SYNTHETIC_TERMS = { "shenandoah", "valhalla", "foreign function", "vector api", "virtual threads",
+			"pattern matching", "record patterns", "string templates", "garbage collector", "class data sharing", "structured concurrency",
+			"scoped values", "sealed classes", "switch expressions", "text blocks", "module system", "unified logging", "jfr event",
+			"panama", "loom", "amber", "zgc", "deprecate", "security manager", "preview", "incubator" };
+
+	private final URI uri;
+	private final int sessions;
+	private final long durationMillis;
+	private final long warmupMillis;
+	private final long thinkMillis;
+	private final long timeoutMillis;
+	private final int limit;
+	private final boolean legacy;
+	private final List<String> typedQueries;
+	private final long seed;
+
+	private static class SessionStats
+	{
+		private long[] latenciesMicros = new long[1024];
+		private int count;
+		private long bytes;
+		private long timeouts;
+		private long busy;
+		private long failures;
+
+		void record(long micros, long responseBytes)
+		{
+			if (count == latenciesMicros.length)
+			{
+				latenciesMicros = Arrays.copyOf(latenciesMicros, count * 2);
+			}
+
+			latenciesMicros[count++] = micros;
+			bytes += responseBytes;
+		}
+	}
+
+	@ClientEndpoint public static class LoadClient
+	{
+		private final LinkedBlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+		private final StringBuilder partial = new StringBuilder();
+
+		@OnMessage public void onMessage(String fragment, boolean last)
+		{
+			partial.append(fragment);
+
+			if (last)
+			{
+				String message = partial.toString();
+
+				partial.setLength(0);
+
+				responses.offer(message);
+			}
+		}
+
+		@OnClose public void onClose(CloseReason reason)
+		{
+			responses.offer("{\"error\":\"closed\"}");
+		}
+
+		/**
+		 * Discards responses that arrived after their request timed out.
+		 */
+		void clear()
+		{
+			responses.clear();
+		}
+
+		String await(long timeoutMillis) throws InterruptedException
+		{
+			return responses.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadTestOptions options = new LoadTestOptions(args);
+
+		if (!options.has("url") && !options.has("jeps"))
+		{
+			System.err.println("FullTextLoadGenerator --url=<ws://host:port/fulltext> | --jeps=<jepJsonDir> [--sessions=16] [--duration=60] " +
+					"[--warmup=10] [--think=100] [--timeout=5000] [--limit=20] [--legacy] [--replay=<file>] [--seed=42]");
+			System.exit(-1);
+		}
+
+		FullJEPServer server = null;
+
+		String url = options.get("url");
+
+		if (options.has("jeps"))
+		{
+			server = new FullJEPServer(Paths.get(options.get("jeps")), null);
+			server.start();
+
+			if (url == null)
+			{
+				url = "ws://" + FullJEPServer.getConfig().getHost() + ":" + FullJEPServer.getConfig().getPort() + "/fulltext";
+			}
+		}
+
+		List<String> typedQueries;
+
+		if (options.has("replay"))
+		{
+			typedQueries = new ArrayList<>();
+
+			for (String line : Files.readAllLines(Paths.get(options.get("replay")), StandardCharsets.UTF_8))
+			{
+				if (!line.trim().isEmpty() && !line.startsWith("#"))
+				{
+					typedQueries.add(line.trim());
+				}
+			}
+		}
+		else
+		{
+			typedQueries = Arrays.asList(SYNTHETIC_TERMS);
+		}
+
+		FullTextLoadGenerator generator = new FullTextLoadGenerator(URI.create(url), options.getInt("sessions", 16),
+				options.getInt("duration", 60) * 1000L, options.getInt("warmup", 10) * 1000L, options.getInt("think", 100),
+				options.getInt("timeout", 5000), options.getInt("limit", 20), options.has("legacy"), typedQueries,
+				options.getInt("seed", 42));
+
+		try
+		{
+			generator.run();
+		}
+		finally
+		{
+			if (server != null)
+			{
+				server.stop();
+			}
+		}
+
+		System.exit(0);
+	}
+
+	public FullTextLoadGenerator(URI uri, int sessions, long durationMillis, long warmupMillis, long thinkMillis, long timeoutMillis,
+			int limit, boolean legacy, List<String> typedQueries, long seed)
+	{
+		this.uri = uri;
+		this.sessions = sessions;
+		this.durationMillis = durationMillis;
+		this.warmupMillis = warmupMillis;
+		this.thinkMillis = thinkMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.limit = limit;
+		this.legacy = legacy;
+		this.typedQueries = typedQueries;
+		this.seed = seed;
+	}
+
+	public void run() throws InterruptedException
+	{
+		WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+
+		container.setDefaultMaxTextMessageBufferSize(64 * 1024 * 1024);
+
+		System.out.println("Load test " + uri + " sessions=" + sessions + " duration=" + durationMillis + "ms warmup=" + warmupMillis +
+				"ms think=" + thinkMillis + "ms queries=" + typedQueries.size() + (legacy ? " legacy protocol" : " limit=" + limit));
+
+		final long warmupEnd = System.currentTimeMillis() + warmupMillis;
+		final long end = warmupEnd + durationMillis;
+
+		ExecutorService executor = Executors.newFixedThreadPool(sessions);
+
+		final List<SessionStats> allStats = new ArrayList<>();
+
+		for (int i = 0; i < sessions; i++)
+		{
+			final SessionStats stats = new SessionStats();
+
+			allStats.add(stats);
+
+			final Random random = new Random(seed + i);
+
+			executor.execute(new Runnable()
+			{
+				@Override public void run()
+				{
+					runSession(container, random, stats, warmupEnd, end);
+				}
+			});
+		}
+
+		executor.shutdown();
+
+		executor.awaitTermination(durationMillis + warmupMillis + timeoutMillis * 2 + 10_000, TimeUnit.MILLISECONDS);
+
+		report(allStats);
+	}
+
+	private void runSession(WebSocketContainer container, Random random, SessionStats stats, long warmupEnd, long end)
+	{
+		try
+		{
+			while (System.currentTimeMillis() < end)
+			{
+				runConnection(container, random, stats, warmupEnd, end);
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e)
+		{
+			stats.failures++;
+			System.out.println("Session failed: " + e);
+		}
+	}
+
+	/**
+	 * Sends queries on one connection until the end of the run or a request times out.
+	 * The connection is then discarded as a late response would be taken for the response to the next request.
+	 */
+	private void runConnection(WebSocketContainer container, Random random, SessionStats stats, long warmupEnd, long end) throws Exception
+	{
+		LoadClient client = new LoadClient();
+
+		try (Session session = container.connectToServer(client, uri))
+		{
+			while (System.currentTimeMillis() < end)
+			{
+				String typed = typedQueries.get(random.nextInt(typedQueries.size()));
+
+				for (int length = Math.min(3, typed.length()); length <= typed.length() && System.currentTimeMillis() < end; length++)
+				{
+					String message = buildMessage(typed.substring(0, length));
+
+					long start = System.nanoTime();
+
+					session.getBasicRemote().sendText(message);
+
+					String response = client.await(timeoutMillis);
+
+					long micros = (System.nanoTime() - start) / 1000;
+
+					boolean measuring = System.currentTimeMillis() >= warmupEnd;
+
+					if (response == null)
+					{
+						if (measuring)
+						{
+							stats.timeouts++;
+						}
+
+						return;
+					}
+					else if (response.startsWith("{\"error\""))
+					{
+						if (measuring)
+						{
+							stats.busy++;
+						}
+					}
+					else if (measuring)
+					{
+						stats.record(micros, response.getBytes(StandardCharsets.UTF_8).length);
+					}
+
+					if (thinkMillis > 0)
+					{
+						Thread.sleep(thinkMillis);
+					}
+				}
+			}
+		}
+	}
+
+	private String buildMessage(String prefix)
+	{
+		if (legacy)
+		{
+			return prefix;
+		}
+
+		JSONObject request = new JSONObject();
+
+		request.put("q", prefix);
+		request.put("limit", limit);
+
+		return request.toString();
+	}
+
+	private void report(List<SessionStats> allStats)
+	{
+		int total = 0;
+		long bytes = 0;
+		long timeouts = 0;
+		long busy = 0;
+		long failures = 0;
+
+		for (SessionStats stats : allStats)
+		{
+			total += stats.count;
+			bytes += stats.bytes;
+			timeouts += stats.timeouts;
+			busy += stats.busy;
+			failures += stats.failures;
+		}
+
+		long[] latencies = new long[total];
+
+		int pos = 0;
+
+		for (SessionStats stats : allStats)
+		{
+			System.arraycopy(stats.latenciesMicros, 0, latencies, pos, stats.count);
+			pos += stats.count;
+		}
+
+		Arrays.sort(latencies);
+
+		double seconds = durationMillis / 1000.0;
+
+		StringBuilder builder = new StringBuilder();
+
+		builder.append("Responses      ").append(total).append('\n');
+		builder.append("Throughput     ").append(String.format("%.1f", total / seconds)).append(" queries/s\n");
+		builder.append("Latency p50    ").append(percentile(latencies, 0.50)).append("us\n");
+		builder.append("Latency p95    ").append(percentile(latencies, 0.95)).append("us\n");
+		builder.append("Latency p99    ").append(percentile(latencies, 0.99)).append("us\n");
+		builder.append("Latency p999   ").append(percentile(latencies, 0.999)).append("us\n");
+		builder.append("Latency max    ").append(total == 0 ? 0 : latencies[total - 1]).append("us\n");
+		builder.append("Errors         ").append(timeouts + busy + failures).append(" (timeouts ").append(timeouts).append(", busy/expired ")
+			   .append(busy).append(", session failures ").append(failures).append(")\n");
+		builder.append("Bytes/query    ").append(total == 0 ? 0 : bytes / total).append('\n');
+
+		System.out.print(builder);
+	}
+
+	private static long percentile(long[] sorted, double quantile)
+	{
+		if (sorted.length == 0)
+		{
+			return 0;
+		}
+
+		int index = (int) Math.ceil(quantile * sorted.length) - 1;
+
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The --name=value and --flag options of the load test tools.
+ */
+class LoadTestOptions
+{
+	private final Map<String, String> options = new HashMap<>();
+
+	LoadTestOptions(String[] args)
+	{
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+			{
+				throw new IllegalArgumentException("Unexpected argument " + arg);
+			}
+
+			int equals = arg.indexOf('=');
+
+			if (equals == -1)
+			{
+				options.put(arg.substring(2), "true");
+			}
+			else
+			{
+				options.put(arg.substring(2, equals), arg.substring(equals + 1));
+			}
+		}
+	}
+
+	boolean has(String key)
+	{
+		return options.containsKey(key);
+	}
+
+	String get(String key)
+	{
+		return options.get(key);
+	}
+
+	String get(String key, String defaultValue)
+	{
+		return options.getOrDefault(key, defaultValue);
+	}
+
+	int getInt(String key, int defaultValue)
+	{
+		String value = options.get(key);
+
+		return (value == null) ? defaultValue : Integer.parseInt(value);
+	}
+
+	double getDouble(String key, double defaultValue)
+	{
+		String value = options.get(key);
+
+		return (value == null) ? defaultValue : Double.parseDouble(value);
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.loadtest;
+
+import com.chrisnewland.jepmap.CanonicalURLs;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for openjdk.org and wiki.openjdk.org so a JEPProcessor crawl
+ * can be run and benchmarked with no network.
+ * <p>
+ * Pages are served from a recorded corpus in the layout of the JEPProcessor html
+ * cache (one file per canonical URL, ':' replaced by '-' and '/' by '_', see CanonicalURLs),
+ * so a populated /tmp/jepmap can be used directly. Caches recorded under the old
+ * openjdk.java.net names are served too. Wiki pages are served under /wiki/.
+ * Empty recordings (failed fetches) are served as 404.
+ * <p>
+ * OpenJDKStubServer --pages=&lt;recordedDir&gt; [--host=127.0.0.1] [--port=8090] [--latency=0] [--jitter=0]
+ * [--errorRate=0] [--errorStatus=503] [--redirectRate=0]
+ * <p>
+ * --latency and --jitter are in milliseconds, each response is delayed by latency plus a uniform random 0..jitter.
+ * --errorRate is the fraction of requests answered with errorStatus.
+ * --redirectRate is the fraction of requests answered with a 302 to the same page, which is then served normally.
+ * <p>
+ * Point JEPProcessor at it with
+ * -Djepmap.url.root=http://127.0.0.1:8090/ -Djepmap.url.wiki=http://127.0.0.1:8090/wiki/display/ -Djepmap.htmlCache=&lt;emptyDir&gt;
+ */
+public class OpenJDKStubServer
+{
+	private static final String RECORDED_ROOT = "https://openjdk.org/";
+
+	private static final String RECORDED_WIKI_ROOT = "https://wiki.openjdk.org/";
+
+	private static final String WIKI_PREFIX = "wiki/";
+
+	private static final String REDIRECTED_PARAM = "redirected";
+
+	private final Server server;
+
+	private final Path pagesDir;
+
+	private final long latencyMillis;
+
+	private final long jitterMillis;
+
+	private final double errorRate;
+
+	private final int errorStatus;
+
+	private final double redirectRate;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong served = new AtomicLong();
+
+	private final AtomicLong notFound = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong redirects = new AtomicLong();
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadTestOptions options = new LoadTestOptions(args);
+
+		if (!options.has("pages"))
+		{
+			System.err.println("OpenJDKStubServer --pages=<recordedDir> [--host=127.0.0.1] [--port=8090] [--latency=0] [--jitter=0] " +
+					"[--errorRate=0] [--errorStatus=503] [--redirectRate=0]");
+			System.exit(-1);
+		}
+
+		final OpenJDKStubServer stubServer = new OpenJDKStubServer(Paths.get(options.get("pages")), options.get("host", "127.0.0.1"),
+				options.getInt("port", 8090), options.getInt("latency", 0), options.getInt("jitter", 0), options.getDouble("errorRate", 0),
+				options.getInt("errorStatus", 503), options.getDouble("redirectRate", 0));
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			@Override public void run()
+			{
+				System.out.println(stubServer.getStats());
+			}
+		}));
+
+		stubServer.start();
+
+		stubServer.join();
+	}
+
+	public OpenJDKStubServer(Path pagesDir, String host, int port, long latencyMillis, long jitterMillis, double errorRate, int errorStatus,
+			double redirectRate)
+	{
+		if (!Files.isDirectory(pagesDir))
+		{
+			throw new IllegalArgumentException("No recorded pages in " + pagesDir);
+		}
+
+		this.pagesDir = pagesDir;
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.errorRate = errorRate;
+		this.errorStatus = errorStatus;
+		this.redirectRate = redirectRate;
+
+		// latency is simulated by sleeping so allow for plenty of concurrent crawl connections
+		server = new Server(new QueuedThreadPool(256));
+
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost(host);
+		connector.setPort(port);
+		server.addConnector(connector);
+
+		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+		context.setContextPath("/");
+		context.addServlet(new ServletHolder(new PageServlet()), "/*");
+
+		server.setHandler(context);
+	}
+
+	private class PageServlet extends HttpServlet
+	{
+		@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			requests.incrementAndGet();
+
+			delay();
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+
+			if (errorRate > 0 && random.nextDouble() < errorRate)
+			{
+				errors.incrementAndGet();
+				response.sendError(errorStatus);
+				return;
+			}
+
+			String path = request.getPathInfo() == null ? "" : request.getPathInfo().substring(1);
+
+			if (redirectRate > 0 && request.getParameter(REDIRECTED_PARAM) == null && random.nextDouble() < redirectRate)
+			{
+				redirects.incrementAndGet();
+				response.sendRedirect("/" + path + "?" + REDIRECTED_PARAM + "=true");
+				return;
+			}
+
+			Path page = getRecordedPage(path);
+
+			if (!Files.isRegularFile(page) || Files.size(page) == 0)
+			{
+				notFound.incrementAndGet();
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			byte[] bytes = Files.readAllBytes(page);
+
+			response.setContentType("text/html;charset=utf-8");
+			response.setContentLength(bytes.length);
+			response.getOutputStream().write(bytes);
+
+			served.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Maps a request path to the file JEPProcessor cached the page in when it was fetched from the real site.
+	 */
+	private Path getRecordedPage(String path)
+	{
+		String url;
+
+		if (path.startsWith(WIKI_PREFIX))
+		{
+			url = RECORDED_WIKI_ROOT + path.substring(WIKI_PREFIX.length());
+		}
+		else
+		{
+			url = RECORDED_ROOT + path;
+		}
+
+		String canonicalURL = CanonicalURLs.canonicalise(url);
+
+		Path page = pagesDir.resolve(CanonicalURLs.toFilename(canonicalURL));
+
+		if (!Files.exists(page))
+		{
+			for (String legacyName : CanonicalURLs.getLegacyFilenames(url, canonicalURL))
+			{
+				Path legacy = pagesDir.resolve(legacyName);
+
+				if (Files.exists(legacy))
+				{
+					return legacy;
+				}
+			}
+		}
+
+		return page;
+	}
+
+	private void delay()
+	{
+		long millis = latencyMillis;
+
+		if (jitterMillis > 0)
+		{
+			millis += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+		}
+
+		if (millis > 0)
+		{
+			try
+			{
+				Thread.sleep(millis);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void start() throws Exception
+	{
+		server.start();
+
+		ServerConnector connector = (ServerConnector) server.getConnectors()[0];
+
+		String base = "http://" + connector.getHost() + ":" + connector.getLocalPort() + "/";
+
+		System.out.println("OpenJDKStubServer serving " + pagesDir + " at " + base + " latency=" + latencyMillis + "ms jitter=" + jitterMillis +
+				"ms errorRate=" + errorRate + " (" + errorStatus + ") redirectRate=" + redirectRate);
+		System.out.println("Crawl with -Djepmap.url.root=" + base + " -Djepmap.url.wiki=" + base + WIKI_PREFIX + "display/");
+	}
+
+	public void join() throws InterruptedException
+	{
+		server.join();
+	}
+
+	public void stop()
+	{
+		try
+		{
+			server.stop();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	public String getStats()
+	{
+		return "Requests " + requests.get() + " served " + served.get() + " notFound " + notFound.get() + " errors " + errors.get() +
+				" redirects " + redirects.get();
+	}
+}
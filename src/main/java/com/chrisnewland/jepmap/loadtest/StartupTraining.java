@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.loadtest;
+
+import com.chrisnewland.jepmap.JEP;
+import com.chrisnewland.jepmap.websocket.FullJEPServer;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A short scripted session against a FullJEPServer started in this JVM, used as the training
+ * run for its class data sharing archive: it exercises startup, the corpus load, every /api
+ * route, the metrics and static pages, and each websocket query mode, then exits.
+ * <p>
+ * StartupTraining &lt;jepJsonDir&gt; [htmlDir]
+ * <p>
+ * Run with -Djepmap.server.port set to a free port and -XX:ArchiveClassesAtExit=&lt;archive&gt;.
+ */
+public class StartupTraining
+{
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	private static final String[] TERMS = { "virtual threads", "feature", "summary of", "shenandoah" };
+
+	private final String httpBase;
+
+	private final URI wsURI;
+
+	private int requests = 0;
+
+	private int failures = 0;
+
+	public StartupTraining(String host, int port)
+	{
+		this.httpBase = "http://" + host + ":" + port;
+		this.wsURI = URI.create("ws://" + host + ":" + port + "/fulltext");
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 1 || args.length > 2)
+		{
+			System.err.println("StartupTraining <jepJsonDir> [htmlDir]");
+			System.exit(-1);
+		}
+
+		Path htmlDir = (args.length == 2) ? Paths.get(args[1]) : null;
+
+		FullJEPServer server = new FullJEPServer(Paths.get(args[0]), htmlDir);
+
+		int status = 0;
+
+		try
+		{
+			server.start();
+
+			StartupTraining training = new StartupTraining(FullJEPServer.getConfig().getHost(), FullJEPServer.getConfig().getPort());
+
+			training.run(htmlDir != null);
+
+			System.out.println("Training run made " + training.requests + " requests, " + training.failures + " failed");
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			status = 1;
+		}
+		finally
+		{
+			server.stop();
+		}
+
+		// the archive is written as the JVM exits
+		System.exit(status);
+	}
+
+	public void run(boolean staticPages) throws Exception
+	{
+		JEP jep = FullJEPServer.getJEPLoader().getJEPs().get(0);
+
+		get("/metrics");
+		get("/metrics?format=prometheus");
+		get("/api/jep/" + jep.getNumber());
+		get("/api/similar/" + jep.getNumber());
+		get("/api/updated?limit=10");
+		get("/api/created?from=2018-01-01&to=2030-12-31");
+
+		if (!jep.getProjectIds().isEmpty())
+		{
+			get("/api/project/" + jep.getProjectIds().iterator().next());
+		}
+
+		for (String term : TERMS)
+		{
+			get("/api/search?q=" + term.replace(' ', '+'));
+			get("/api/complete?q=" + term.substring(0, 3));
+		}
+
+		if (staticPages)
+		{
+			get("/");
+			get("/fulljep.html");
+			get("/jepsearch.html");
+		}
+
+		WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+
+		FullTextLoadGenerator.LoadClient client = new FullTextLoadGenerator.LoadClient();
+
+		try (Session session = container.connectToServer(client, wsURI))
+		{
+			for (String term : TERMS)
+			{
+				// legacy plain text protocol, typed a character at a time
+				for (int length = 3; length <= term.length(); length++)
+				{
+					send(session, client, term.substring(0, length));
+				}
+
+				send(session, client, "{\"q\":\"" + term + "\",\"limit\":5}");
+				send(session, client, "{\"q\":\"" + term + "\",\"mode\":\"phrase\"}");
+				send(session, client, "{\"complete\":\"" + term.substring(0, 2) + "\"}");
+			}
+
+			send(session, client, "{\"q\":\"feature 4[0-9]+\",\"mode\":\"regex\"}");
+			send(session, client, "{\"q\":\"status:closed virtual\"}");
+			send(session, client, "{\"similar\":" + jep.getNumber() + "}");
+			send(session, client, "{\"subscribe\":{\"jep\":" + jep.getNumber() + "}}");
+			send(session, client, "{\"subscribe\":{\"q\":\"virtual\"}}");
+			send(session, client, "{\"unsubscribe\":\"1\"}");
+		}
+	}
+
+	private void send(Session session, FullTextLoadGenerator.LoadClient client, String message) throws IOException, InterruptedException
+	{
+		client.clear();
+
+		session.getBasicRemote().sendText(message);
+
+		requests++;
+
+		if (client.await(TIMEOUT_MILLIS) == null)
+		{
+			failures++;
+		}
+	}
+
+	private void get(String path) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(httpBase + path).openConnection();
+
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+
+		requests++;
+
+		int code = connection.getResponseCode();
+
+		InputStream inputStream = (code < 400) ? connection.getInputStream() : connection.getErrorStream();
+
+		if (inputStream != null)
+		{
+			try (InputStream in = inputStream)
+			{
+				in.readAllBytes();
+			}
+		}
+
+		if (code >= 400)
+		{
+			failures++;
+			System.err.println("GET " + path + " returned " + code);
+		}
+
+		connection.disconnect();
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only JSON API mounted at /api/*
+ * <p>
+ * GET /api/search?q=text[&amp;limit=20&amp;offset=0&amp;mode=fuzzy] where text may include facet filters such as status:delivered,
+ * fuzzy mode corrects misspelt words and lists the corrections
+ * GET /api/complete?q=prefix[&amp;limit=10] the best completions of a prefix for a search box
+ * GET /api/jep/{number}
+ * GET /api/similar/{number} the JEPs most alike in text to a JEP, most similar first
+ * GET /api/project/{id}
+ * GET /api/updated?from=2021-10-01[&amp;to=2021-10-31&amp;limit=20&amp;offset=0] JEPs updated within the days given, newest first
+ * GET /api/created?from=2017-01-01&amp;to=2017-12-31 the same for the created date, either bound may be omitted
+ * <p>
+ * Every response is a pure function of the URL and the loaded corpus so the
+ * corpus version is used as a strong ETag and conditional requests are answered
+ * with 304 before any work is done. Errors carry no ETag and are not cacheable.
+ */
+public class ApiServlet extends HttpServlet
+{
+	private static final String CONTENT_TYPE_JSON = "application/json;charset=utf-8";
+
+	private static final String CACHE_CONTROL = "public, max-age=60";
+
+	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String path = request.getPathInfo();
+
+		if (path == null || !(path.equals("/search") || path.equals("/complete") || path.equals("/updated") || path.equals("/created") || path.startsWith("/jep/") ||
+				path.startsWith("/similar/") || path.startsWith("/project/")))
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		JEPLoader jepLoader = FullJEPServer.getJEPLoader();
+
+		if (notModified(request, response, "\"" + jepLoader.getCorpusVersion() + "\""))
+		{
+			return;
+		}
+
+		if (path.equals("/search"))
+		{
+			handleSearch(jepLoader, request, response);
+		}
+		else if (path.equals("/complete"))
+		{
+			handleComplete(jepLoader, request, response);
+		}
+		else if (path.equals("/updated"))
+		{
+			handleDateRange(jepLoader.getUpdatedIndex(), "updated", jepLoader, request, response);
+		}
+		else if (path.equals("/created"))
+		{
+			handleDateRange(jepLoader.getCreatedIndex(), "created", jepLoader, request, response);
+		}
+		else if (path.startsWith("/jep/"))
+		{
+			handleJEP(jepLoader, path.substring("/jep/".length()), response);
+		}
+		else if (path.startsWith("/similar/"))
+		{
+			handleSimilar(jepLoader, path.substring("/similar/".length()), response);
+		}
+		else
+		{
+			handleProject(jepLoader, path.substring("/project/".length()), response);
+		}
+	}
+
+	private boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag)
+	{
+		String ifNoneMatch = request.getHeader("If-None-Match");
+
+		if (ifNoneMatch != null)
+		{
+			for (String candidate : ifNoneMatch.split(","))
+			{
+				String trimmed = candidate.trim();
+
+				if (trimmed.equals(etag) || trimmed.equals("*"))
+				{
+					Metrics.recordCache("etag", true);
+					setCacheHeaders(response, etag);
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return true;
+				}
+			}
+		}
+
+		Metrics.recordCache("etag", false);
+
+		return false;
+	}
+
+	private static void setCacheHeaders(HttpServletResponse response, String etag)
+	{
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", CACHE_CONTROL);
+	}
+
+	/**
+	 * Starts a successful JSON response, the only kind made cacheable.
+	 */
+	private static void beginJSON(JEPLoader jepLoader, HttpServletResponse response)
+	{
+		response.setContentType(CONTENT_TYPE_JSON);
+		setCacheHeaders(response, "\"" + jepLoader.getCorpusVersion() + "\"");
+	}
+
+	private void handleSearch(JEPLoader jepLoader, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String query = request.getParameter("q");
+
+		if (query == null || query.trim().length() < 3)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "q must be at least 3 characters");
+			return;
+		}
+
+		Metrics.recordQuery();
+
+		FacetQuery facetQuery = FacetQuery.parse(query.trim());
+
+		String search = facetQuery.getText().toLowerCase();
+
+		int limit = Math.max(1, Math.min(getIntParameter(request, "limit", SearchRequest.DEFAULT_LIMIT), SearchRequest.MAX_LIMIT));
+		int offset = Math.max(0, getIntParameter(request, "offset", 0));
+
+		long searchStart = System.nanoTime();
+
+		Map<String, List<String>> expansions = Collections.emptyMap();
+
+		if ("fuzzy".equalsIgnoreCase(request.getParameter("mode")))
+		{
+			expansions = jepLoader.getVocabulary().expand(search, FullJEPServer.getConfig().getFuzzyExpansions());
+
+			Metrics.CORRECTION_MICROS.record((System.nanoTime() - searchStart) / 1000);
+		}
+
+		FacetIndex.Result result;
+
+		ResultEncoder.MatchLocator locator;
+
+		if (expansions.isEmpty())
+		{
+			result = jepLoader.search(facetQuery, JEPLoader.NEVER_CANCELLED);
+			locator = ResultEncoder.ignoringCase(search);
+		}
+		else
+		{
+			result = jepLoader.searchAny(facetQuery, expansions.values(), JEPLoader.NEVER_CANCELLED);
+			locator = ResultEncoder.ignoringCaseAny(Vocabulary.getAlternatives(expansions));
+		}
+
+		List<JEP> jeps = result.getJEPs();
+
+		Metrics.SEARCH_MICROS.record((System.nanoTime() - searchStart) / 1000);
+		Metrics.HITS.record(jeps.size());
+
+		int total = jeps.size();
+
+		int start = Math.min(offset, total);
+		int end = (int) Math.min((long) start + limit, total);
+
+		beginJSON(jepLoader, response);
+
+		try (ResponseWriter writer = new ResponseWriter(toWriter(response.getWriter())))
+		{
+			writer.beginObject();
+			writer.name("version").value(jepLoader.getCorpusVersion());
+			writer.name("total").value(total);
+			writer.name("offset").value(start);
+			writer.name("facets");
+			FacetIndex.writeCounts(writer, result.getCounts());
+
+			Map<String, List<String>> corrections = Vocabulary.getCorrections(expansions);
+
+			if (!corrections.isEmpty())
+			{
+				writer.name("corrections");
+				Vocabulary.writeCorrections(writer, corrections);
+			}
+
+			writer.name("results");
+
+			new ResultEncoder(locator, jepLoader).writeResults(writer, jeps.subList(start, end), JEPLoader.NEVER_CANCELLED);
+
+			writer.endObject();
+			writer.finish();
+		}
+	}
+
+	private void handleComplete(JEPLoader jepLoader, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String prefix = request.getParameter("q");
+
+		if (prefix == null)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "q is required");
+			return;
+		}
+
+		int limit = Math.max(1, Math.min(getIntParameter(request, "limit", Autocompleter.TOP_K), Autocompleter.TOP_K));
+
+		long start = System.nanoTime();
+
+		List<Autocompleter.Completion> completions = jepLoader.getAutocompleter().complete(prefix, limit);
+
+		Metrics.COMPLETION_NANOS.record(System.nanoTime() - start);
+
+		beginJSON(jepLoader, response);
+
+		response.getWriter().write(Autocompleter.toJSON(prefix, completions).toString());
+	}
+
+	private void handleDateRange(DateIndex index, String field, JEPLoader jepLoader, HttpServletRequest request,
+			HttpServletResponse response) throws IOException
+	{
+		long from;
+		long to;
+
+		try
+		{
+			from = parseDay(request.getParameter("from"), Long.MIN_VALUE, 0);
+			to = parseDay(request.getParameter("to"), Long.MAX_VALUE, 1);
+		}
+		catch (DateTimeParseException dtpe)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Dates must be yyyy-MM-dd: " + dtpe.getParsedString());
+			return;
+		}
+
+		int limit = Math.max(1, Math.min(getIntParameter(request, "limit", SearchRequest.DEFAULT_LIMIT), SearchRequest.MAX_LIMIT));
+		int offset = Math.max(0, getIntParameter(request, "offset", 0));
+
+		List<JEP> jeps = index.newestFirst(from, to);
+
+		int total = jeps.size();
+
+		int start = Math.min(offset, total);
+		int end = (int) Math.min((long) start + limit, total);
+
+		beginJSON(jepLoader, response);
+
+		try (ResponseWriter writer = new ResponseWriter(toWriter(response.getWriter())))
+		{
+			writer.beginObject();
+			writer.name("version").value(jepLoader.getCorpusVersion());
+			writer.name("field").value(field);
+			writer.name("total").value(total);
+			writer.name("offset").value(start);
+			writer.name("results").beginArray();
+
+			for (JEP jep : jeps.subList(start, end))
+			{
+				writeSummary(writer, jep);
+			}
+
+			writer.endArray();
+			writer.endObject();
+			writer.finish();
+		}
+	}
+
+	/**
+	 * Only absolute days are accepted so the response stays a function of the URL and corpus and the ETag holds.
+	 *
+	 * @param plusDays 1 to turn an inclusive last day into an exclusive bound
+	 * @return start of the day plus the given days as epoch millis UTC or the default if the parameter is missing
+	 */
+	private static long parseDay(String value, long defaultValue, int plusDays)
+	{
+		if (value == null || value.isEmpty())
+		{
+			return defaultValue;
+		}
+
+		return LocalDate.parse(value.replace('/', '-')).plusDays(plusDays).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+	}
+
+	private void handleJEP(JEPLoader jepLoader, String number, HttpServletResponse response) throws IOException
+	{
+		JEP jep;
+
+		try
+		{
+			jep = jepLoader.getJEP(Integer.parseInt(number));
+		}
+		catch (NumberFormatException nfe)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a JEP number: " + number);
+			return;
+		}
+
+		if (jep == null)
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		beginJSON(jepLoader, response);
+
+		// an off-heap body is not on the JEP
+		response.getWriter().write(jep.serialise(jepLoader.getBody(jep)));
+	}
+
+	private void handleSimilar(JEPLoader jepLoader, String number, HttpServletResponse response) throws IOException
+	{
+		JEP jep;
+
+		try
+		{
+			jep = jepLoader.getJEP(Integer.parseInt(number));
+		}
+		catch (NumberFormatException nfe)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a JEP number: " + number);
+			return;
+		}
+
+		if (jep == null)
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		beginJSON(jepLoader, response);
+
+		try (ResponseWriter writer = new ResponseWriter(toWriter(response.getWriter())))
+		{
+			writer.beginObject();
+			writer.name("similar").value(jep.getNumber());
+			writer.name("jeps").beginArray();
+
+			for (JEP similar : jepLoader.getSimilarJEPs(jep))
+			{
+				writeSummary(writer, similar);
+			}
+
+			writer.endArray();
+			writer.endObject();
+			writer.finish();
+		}
+	}
+
+	private void handleProject(JEPLoader jepLoader, String projectId, HttpServletResponse response) throws IOException
+	{
+		List<JEP> jeps = jepLoader.getJEPsForProject(projectId.toLowerCase());
+
+		if (jeps.isEmpty())
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		beginJSON(jepLoader, response);
+
+		try (ResponseWriter writer = new ResponseWriter(toWriter(response.getWriter())))
+		{
+			writer.beginObject();
+			writer.name("id").value(projectId);
+			writer.name("jeps").beginArray();
+
+			for (JEP jep : jeps)
+			{
+				writeSummary(writer, jep);
+			}
+
+			writer.endArray();
+			writer.endObject();
+			writer.finish();
+		}
+	}
+
+	static void writeSummary(ResponseWriter writer, JEP jep) throws IOException
+	{
+		writer.beginObject();
+		writer.name("number").value(jep.getNumber());
+		writer.name("name").value(jep.getName());
+		writer.name("status").value(jep.getStatus());
+		writer.name("release").value(jep.getRelease());
+		writer.name("created").value(jep.getCreated());
+		writer.name("updated").value(jep.getUpdated());
+		writer.endObject();
+	}
+
+	static ResponseWriter.FragmentSink toWriter(final Writer out)
+	{
+		return new ResponseWriter.FragmentSink()
+		{
+			@Override public void sendFragment(String fragment, boolean last) throws IOException
+			{
+				out.write(fragment);
+			}
+		};
+	}
+
+	private int getIntParameter(HttpServletRequest request, String name, int defaultValue)
+	{
+		String value = request.getParameter(name);
+
+		if (value == null)
+		{
+			return defaultValue;
+		}
+
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException nfe)
+		{
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Prefix completions for the search box, built once per corpus load.
+ * <p>
+ * Completions are JEP titles (reached from the start of the title, the start of any later word in it,
+ * the JEP number or "jep NNN"), project ids and the body terms found in at least MIN_TERM_FREQUENCY JEPs.
+ * A title weighs 2 plus the number of JEPs naming it as a dependency or related JEP, a project the
+ * number of its JEPs and a term the number of JEPs containing it. Terms in more than half of the JEPs
+ * are left out as they narrow nothing.
+ * <p>
+ * The keys are held in a trie flattened into arrays with the children of each node contiguous and
+ * sorted by character. Entries are numbered in rank order so each node stores its best TOP_K entry
+ * numbers as a sorted run in one shared array, and a node with a single child and no entries of its
+ * own shares the run of that child. A lookup is one binary search per prefix character.
+ */
+public class Autocompleter
+{
+	public static final int TOP_K = 10;
+
+	private static final int MIN_TERM_FREQUENCY = 2;
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	public enum Type
+	{
+		JEP, PROJECT, TERM
+	}
+
+	/**
+	 * A completion and the number of JEPs it leads to, for a JEP its number.
+	 */
+	public static class Completion
+	{
+		private final String text;
+		private final Type type;
+		private final int value;
+		private final int weight;
+
+		Completion(String text, Type type, int value, int weight)
+		{
+			this.text = text;
+			this.type = type;
+			this.value = value;
+			this.weight = weight;
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+
+		public Type getType()
+		{
+			return type;
+		}
+
+		public int getValue()
+		{
+			return value;
+		}
+
+		public int getWeight()
+		{
+			return weight;
+		}
+	}
+
+	private static final Comparator<Completion> BY_RANK = new Comparator<Completion>()
+	{
+		@Override public int compare(Completion o1, Completion o2)
+		{
+			int byWeight = Integer.compare(o2.weight, o1.weight);
+
+			return (byWeight != 0) ? byWeight : o1.text.compareTo(o2.text);
+		}
+	};
+
+	private final Completion[] completions;
+
+	// per node
+	private int[] firstChild;
+	private int[] childCount;
+	private int[] topStart;
+	private int[] topCount;
+
+	// per child slot
+	private char[] edges;
+	private int[] children;
+
+	private int[] tops;
+
+	private int nodes = 0;
+	private int slots = 0;
+	private int topsUsed = 0;
+
+	private String[] keys;
+	private int[] keyCompletions;
+
+	public Autocompleter(List<JEP> jeps, Map<String, List<JEP>> jepsByProject, Vocabulary vocabulary)
+	{
+		List<Completion> ranked = new ArrayList<>();
+
+		Map<Integer, Integer> references = new HashMap<>();
+
+		for (JEP jep : jeps)
+		{
+			for (int number : jep.getDepends())
+			{
+				references.merge(number, 1, Integer::sum);
+			}
+
+			for (int number : jep.getRelated())
+			{
+				references.merge(number, 1, Integer::sum);
+			}
+		}
+
+		for (JEP jep : jeps)
+		{
+			ranked.add(new Completion(jep.getName().trim(), Type.JEP, jep.getNumber(), 2 + references.getOrDefault(jep.getNumber(), 0)));
+		}
+
+		for (Map.Entry<String, List<JEP>> project : jepsByProject.entrySet())
+		{
+			ranked.add(new Completion(project.getKey(), Type.PROJECT, project.getValue().size(), project.getValue().size()));
+		}
+
+		int maxFrequency = jeps.size() / 2;
+
+		for (int i = 0; i < vocabulary.size(); i++)
+		{
+			int frequency = vocabulary.getFrequency(i);
+
+			if (frequency >= MIN_TERM_FREQUENCY && frequency <= maxFrequency)
+			{
+				ranked.add(new Completion(vocabulary.getTerm(i), Type.TERM, frequency, frequency));
+			}
+		}
+
+		ranked.sort(BY_RANK);
+
+		completions = ranked.toArray(new Completion[0]);
+
+		List<String> keyList = new ArrayList<>();
+		List<Integer> keyCompletionList = new ArrayList<>();
+
+		for (int id = 0; id < completions.length; id++)
+		{
+			Completion completion = completions[id];
+
+			if (completion.type == Type.JEP)
+			{
+				String title = normalise(completion.text);
+
+				for (int i = 0; i < title.length(); i++)
+				{
+					if (i == 0 || title.charAt(i - 1) == ' ')
+					{
+						keyList.add(title.substring(i));
+						keyCompletionList.add(id);
+					}
+				}
+
+				keyList.add(Integer.toString(completion.value));
+				keyCompletionList.add(id);
+
+				keyList.add("jep " + completion.value);
+				keyCompletionList.add(id);
+			}
+			else
+			{
+				keyList.add(completion.text);
+				keyCompletionList.add(id);
+			}
+		}
+
+		build(keyList, keyCompletionList);
+	}
+
+	/**
+	 * @return the text lower cased with runs of whitespace collapsed to one space
+	 */
+	static String normalise(String text)
+	{
+		return WHITESPACE.matcher(text.trim().toLowerCase()).replaceAll(" ");
+	}
+
+	private void build(final List<String> keyList, final List<Integer> keyCompletionList)
+	{
+		Integer[] order = new Integer[keyList.size()];
+
+		for (int i = 0; i < order.length; i++)
+		{
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override public int compare(Integer o1, Integer o2)
+			{
+				int byKey = keyList.get(o1).compareTo(keyList.get(o2));
+
+				return (byKey != 0) ? byKey : Integer.compare(keyCompletionList.get(o1), keyCompletionList.get(o2));
+			}
+		});
+
+		keys = new String[order.length];
+		keyCompletions = new int[order.length];
+
+		int totalChars = 1;
+
+		for (int i = 0; i < order.length; i++)
+		{
+			keys[i] = keyList.get(order[i]);
+			keyCompletions[i] = keyCompletionList.get(order[i]);
+			totalChars += keys[i].length();
+		}
+
+		// a trie over sorted keys has at most one node per key character plus the root
+		firstChild = new int[totalChars];
+		childCount = new int[totalChars];
+		topStart = new int[totalChars];
+		topCount = new int[totalChars];
+		edges = new char[totalChars];
+		children = new int[totalChars];
+		tops = new int[1024];
+
+		buildNode(0, keys.length, 0);
+
+		firstChild = Arrays.copyOf(firstChild, nodes);
+		childCount = Arrays.copyOf(childCount, nodes);
+		topStart = Arrays.copyOf(topStart, nodes);
+		topCount = Arrays.copyOf(topCount, nodes);
+		edges = Arrays.copyOf(edges, slots);
+		children = Arrays.copyOf(children, slots);
+		tops = Arrays.copyOf(tops, topsUsed);
+
+		// only needed while building
+		keys = null;
+		keyCompletions = null;
+	}
+
+	/**
+	 * Builds the node for keys[from, to), which share their first depth characters.
+	 *
+	 * @return the node number
+	 */
+	private int buildNode(int from, int to, int depth)
+	{
+		int node = nodes++;
+
+		// keys ending here sort first and, within a key, by completion number
+		int ownEnd = from;
+
+		while (ownEnd < to && keys[ownEnd].length() == depth)
+		{
+			ownEnd++;
+		}
+
+		int childFrom = ownEnd;
+
+		int distinct = 0;
+
+		for (int i = childFrom; i < to; i++)
+		{
+			if (i == childFrom || keys[i].charAt(depth) != keys[i - 1].charAt(depth))
+			{
+				distinct++;
+			}
+		}
+
+		int slot = slots;
+
+		slots += distinct;
+
+		firstChild[node] = slot;
+		childCount[node] = distinct;
+
+		int start = childFrom;
+
+		while (start < to)
+		{
+			char c = keys[start].charAt(depth);
+
+			int end = start + 1;
+
+			while (end < to && keys[end].charAt(depth) == c)
+			{
+				end++;
+			}
+
+			edges[slot] = c;
+			children[slot] = buildNode(start, end, depth + 1);
+
+			slot++;
+			start = end;
+		}
+
+		if (from == ownEnd && distinct == 1)
+		{
+			// a chain node completes exactly as its only child
+			int child = children[firstChild[node]];
+
+			topStart[node] = topStart[child];
+			topCount[node] = topCount[child];
+		}
+		else
+		{
+			mergeTops(node, from, ownEnd);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Merges the node's own completions with the runs of its children, keeping the TOP_K lowest numbers.
+	 */
+	private void mergeTops(int node, int ownFrom, int ownTo)
+	{
+		int childSlot = firstChild[node];
+		int childEnd = childSlot + childCount[node];
+
+		int runs = 1 + childCount[node];
+
+		int[] position = new int[runs];
+		int[] limit = new int[runs];
+
+		int[] source = new int[runs];
+
+		// run 0 is the node's own completions in keyCompletions, the rest are child runs in tops
+		position[0] = ownFrom;
+		limit[0] = ownTo;
+
+		for (int r = 1; r < runs; r++)
+		{
+			int child = children[childSlot + r - 1];
+
+			position[r] = topStart[child];
+			limit[r] = topStart[child] + topCount[child];
+			source[r] = 1;
+		}
+
+		if (topsUsed + TOP_K > tops.length)
+		{
+			tops = Arrays.copyOf(tops, tops.length * 2);
+		}
+
+		int start = topsUsed;
+
+		int count = 0;
+
+		int last = -1;
+
+		while (count < TOP_K)
+		{
+			int best = -1;
+			int bestValue = Integer.MAX_VALUE;
+
+			for (int r = 0; r < runs; r++)
+			{
+				if (position[r] < limit[r])
+				{
+					int value = (source[r] == 0) ? keyCompletions[position[r]] : tops[position[r]];
+
+					if (value < bestValue)
+					{
+						bestValue = value;
+						best = r;
+					}
+				}
+			}
+
+			if (best == -1)
+			{
+				break;
+			}
+
+			position[best]++;
+
+			// the same title can be reached through two keys below one node
+			if (bestValue != last)
+			{
+				tops[topsUsed++] = bestValue;
+				last = bestValue;
+				count++;
+			}
+		}
+
+		topStart[node] = start;
+		topCount[node] = count;
+	}
+
+	/**
+	 * @return up to limit (at most TOP_K) completions of the prefix, best first
+	 */
+	public List<Completion> complete(String prefix, int limit)
+	{
+		// a trailing space is kept, it asks for the next word of a title
+		String key = WHITESPACE.matcher(prefix.toLowerCase()).replaceAll(" ");
+
+		if (key.startsWith(" "))
+		{
+			key = key.substring(1);
+		}
+
+		int node = 0;
+
+		for (int i = 0; i < key.length(); i++)
+		{
+			int slot = findChild(node, key.charAt(i));
+
+			if (slot == -1)
+			{
+				return new ArrayList<>();
+			}
+
+			node = children[slot];
+		}
+
+		int count = Math.min(topCount[node], limit);
+
+		List<Completion> result = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++)
+		{
+			result.add(completions[tops[topStart[node] + i]]);
+		}
+
+		return result;
+	}
+
+	private int findChild(int node, char c)
+	{
+		int low = firstChild[node];
+		int high = low + childCount[node] - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+
+			char edge = edges[mid];
+
+			if (edge < c)
+			{
+				low = mid + 1;
+			}
+			else if (edge > c)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+
+		return -1;
+	}
+
+	public int getNodeCount()
+	{
+		return firstChild.length;
+	}
+
+	public int getCompletionCount()
+	{
+		return completions.length;
+	}
+
+	/**
+	 * @return {"complete":"virt","completions":[{"text":"Virtual Threads","type":"jep","jep":444},{"text":"virtual","type":"term","jeps":12},...]}
+	 */
+	public static JSONObject toJSON(String prefix, List<Completion> completions)
+	{
+		JSONArray array = new JSONArray();
+
+		for (Completion completion : completions)
+		{
+			JSONObject json = new JSONObject();
+
+			json.put("text", completion.text);
+			json.put("type", completion.type.name().toLowerCase());
+			json.put((completion.type == Type.JEP) ? "jep" : "jeps", completion.value);
+
+			array.put(json);
+		}
+
+		return new JSONObject().put("complete", prefix).put("completions", array);
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * JEP bodies kept outside the Java heap as one deflated block per JEP, either in a
+ * direct buffer or in a memory-mapped file, so retained heap does not grow with
+ * corpus text volume.
+ * <p>
+ * getBody() inflates through a small LRU cache for snippet building, readBody()
+ * bypasses the cache so a full corpus scan does not evict the bodies of recent hits.
+ * <p>
+ * Each body is also kept lower cased and uncompressed next to its block, so text searches
+ * match with contains() without inflating anything. This roughly doubles the off-heap size
+ * of the store but leaves the heap independent of corpus text volume.
+ */
+public class BodyStore
+{
+	public enum Storage
+	{
+		HEAP, DIRECT, MAPPED
+	}
+
+	private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(16);
+
+	// per scan thread copy of the searchable body being matched
+	private static final ThreadLocal<byte[]> SCAN_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+	private final Storage storage;
+
+	private final ByteBuffer blocks;
+
+	// sorted JEP numbers and, at the same index, where each compressed body lives
+	private final int[] numbers;
+	private final int[] offsets;
+	private final int[] compressedLengths;
+	private final int[] rawLengths;
+	private final int[] searchOffsets;
+	private final int[] searchLengths;
+
+	// lower casing lengthened the body, e.g. U+0130 becomes two characters
+	private final boolean[] lengthened;
+
+	private final long rawBytes;
+
+	private final long searchBytes;
+
+	private final Map<Integer, String> cache;
+
+	/**
+	 * Compresses bodies as the corpus is loaded, add() may be called from several loader threads.
+	 */
+	public static class Builder
+	{
+		private static final int INITIAL_CAPACITY = 1 << 20;
+
+		private final Storage storage;
+
+		private final Path mappedFile;
+
+		private final FileChannel channel;
+
+		private final int cacheEntries;
+
+		private ByteBuffer buffer;
+
+		private int size = 0;
+
+		private long rawBytes = 0;
+
+		private long searchBytes = 0;
+
+		// number -> offset, compressed length, raw length, searchable offset, searchable length, 1 if lengthened
+		private final Map<Integer, int[]> entries = new TreeMap<>();
+
+		/**
+		 * @param mappedFile the backing file for MAPPED storage, a temporary file is used if null
+		 */
+		public Builder(Storage storage, Path mappedFile, int cacheEntries) throws IOException
+		{
+			if (storage == Storage.HEAP)
+			{
+				throw new IllegalArgumentException("Heap bodies stay on the JEP objects");
+			}
+
+			this.storage = storage;
+			this.cacheEntries = cacheEntries;
+
+			if (storage == Storage.MAPPED)
+			{
+				this.mappedFile = (mappedFile != null) ? mappedFile : Files.createTempFile("jepmap-bodies", ".bin");
+
+				if (mappedFile == null)
+				{
+					this.mappedFile.toFile().deleteOnExit();
+				}
+
+				this.channel = FileChannel.open(this.mappedFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			else
+			{
+				this.mappedFile = null;
+				this.channel = null;
+				this.buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+			}
+		}
+
+		public void add(int number, String body)
+		{
+			byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+
+			byte[] compressed = deflate(raw);
+
+			String lower = body.toLowerCase();
+
+			byte[] searchable = lower.getBytes(StandardCharsets.UTF_8);
+
+			synchronized (this)
+			{
+				try
+				{
+					append(compressed);
+					append(searchable);
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException("Couldn't write body of JEP " + number + " to " + mappedFile, e);
+				}
+
+				int compressedOffset = size - searchable.length - compressed.length;
+
+				entries.put(number,
+						new int[] { compressedOffset, compressed.length, raw.length, size - searchable.length, searchable.length,
+								(lower.length() != body.length()) ? 1 : 0 });
+
+				rawBytes += raw.length;
+				searchBytes += searchable.length;
+			}
+		}
+
+		private void append(byte[] block) throws IOException
+		{
+			if (channel != null)
+			{
+				ByteBuffer source = ByteBuffer.wrap(block);
+
+				while (source.hasRemaining())
+				{
+					channel.write(source, size + source.position());
+				}
+			}
+			else
+			{
+				if (buffer.remaining() < block.length)
+				{
+					ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, size + block.length));
+
+					buffer.flip();
+					larger.put(buffer);
+
+					buffer = larger;
+				}
+
+				buffer.put(block);
+			}
+
+			size += block.length;
+		}
+
+		public synchronized BodyStore build() throws IOException
+		{
+			ByteBuffer blocks;
+
+			if (channel != null)
+			{
+				blocks = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+				// the mapping stays valid after the channel is closed
+				channel.close();
+			}
+			else
+			{
+				// trim to the used size
+				blocks = ByteBuffer.allocateDirect(size);
+
+				buffer.flip();
+				blocks.put(buffer);
+				blocks.flip();
+
+				buffer = null;
+			}
+
+			return new BodyStore(storage, blocks, entries, rawBytes, searchBytes, cacheEntries);
+		}
+
+		private static byte[] deflate(byte[] raw)
+		{
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+			try
+			{
+				deflater.setInput(raw);
+				deflater.finish();
+
+				byte[] output = new byte[Math.max(64, raw.length / 2)];
+
+				int length = 0;
+
+				while (!deflater.finished())
+				{
+					if (length == output.length)
+					{
+						output = Arrays.copyOf(output, output.length * 2);
+					}
+
+					length += deflater.deflate(output, length, output.length - length);
+				}
+
+				return Arrays.copyOf(output, length);
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+	}
+
+	private BodyStore(Storage storage, ByteBuffer blocks, Map<Integer, int[]> entries, long rawBytes, long searchBytes,
+			final int cacheEntries)
+	{
+		this.storage = storage;
+		this.blocks = blocks;
+		this.rawBytes = rawBytes;
+		this.searchBytes = searchBytes;
+
+		int count = entries.size();
+
+		numbers = new int[count];
+		offsets = new int[count];
+		compressedLengths = new int[count];
+		rawLengths = new int[count];
+		searchOffsets = new int[count];
+		searchLengths = new int[count];
+		lengthened = new boolean[count];
+
+		int index = 0;
+
+		for (Map.Entry<Integer, int[]> entry : entries.entrySet())
+		{
+			int[] location = entry.getValue();
+
+			numbers[index] = entry.getKey();
+			offsets[index] = location[0];
+			compressedLengths[index] = location[1];
+			rawLengths[index] = location[2];
+			searchOffsets[index] = location[3];
+			searchLengths[index] = location[4];
+			lengthened[index] = location[5] == 1;
+
+			index++;
+		}
+
+		cache = new LinkedHashMap<Integer, String>(cacheEntries * 2, 0.75f, true)
+		{
+			@Override protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest)
+			{
+				return size() > cacheEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the body via the LRU cache or null if the JEP has no stored body
+	 */
+	public String getBody(int number)
+	{
+		synchronized (cache)
+		{
+			String body = cache.get(number);
+
+			if (body != null)
+			{
+				Metrics.recordCache("body", true);
+				return body;
+			}
+		}
+
+		Metrics.recordCache("body", false);
+
+		String body = readBody(number);
+
+		if (body != null)
+		{
+			synchronized (cache)
+			{
+				cache.put(number, body);
+			}
+		}
+
+		return body;
+	}
+
+	/**
+	 * @return the body inflated without touching the cache or null if the JEP has no stored body
+	 */
+	public String readBody(int number)
+	{
+		int index = Arrays.binarySearch(numbers, number);
+
+		if (index < 0)
+		{
+			return null;
+		}
+
+		// a private view so concurrent readers do not share position and limit
+		ByteBuffer block = blocks.duplicate();
+
+		block.position(offsets[index]);
+		block.limit(offsets[index] + compressedLengths[index]);
+
+		byte[] raw = new byte[rawLengths[index]];
+
+		Inflater inflater = INFLATERS.poll();
+
+		if (inflater == null)
+		{
+			inflater = new Inflater();
+		}
+
+		try
+		{
+			inflater.setInput(block);
+
+			int length = 0;
+
+			while (length < raw.length && !inflater.finished())
+			{
+				int inflated = inflater.inflate(raw, length, raw.length - length);
+
+				if (inflated == 0 && inflater.needsInput())
+				{
+					break;
+				}
+
+				length += inflated;
+			}
+
+			if (length != raw.length)
+			{
+				throw new IllegalStateException("Body of JEP " + number + " inflated to " + length + " bytes, expected " + raw.length);
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IllegalStateException("Corrupt body block for JEP " + number, e);
+		}
+		finally
+		{
+			inflater.reset();
+
+			if (!INFLATERS.offer(inflater))
+			{
+				inflater.end();
+			}
+		}
+
+		return new String(raw, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param textLower lower cased UTF-8 text
+	 * @return true if the lower cased body contains the text, false if it does not or the JEP has no stored body
+	 */
+	public boolean contains(int number, byte[] textLower)
+	{
+		int index = Arrays.binarySearch(numbers, number);
+
+		if (index < 0)
+		{
+			return false;
+		}
+
+		if (textLower.length == 0)
+		{
+			return true;
+		}
+
+		int length = searchLengths[index];
+
+		if (length < textLower.length)
+		{
+			return false;
+		}
+
+		byte[] text = SCAN_BUFFER.get();
+
+		if (text.length < length)
+		{
+			text = new byte[Math.max(length, text.length * 2)];
+
+			SCAN_BUFFER.set(text);
+		}
+
+		// copied in bulk so the loop below reads an array rather than making a bounds checked get per byte
+		ByteBuffer block = blocks.duplicate();
+
+		block.position(searchOffsets[index]);
+		block.get(text, 0, length);
+
+		// Horspool, the byte under the end of the window says how far the text can shift
+		int end = textLower.length - 1;
+
+		int[] shifts = new int[256];
+
+		Arrays.fill(shifts, textLower.length);
+
+		for (int i = 0; i < end; i++)
+		{
+			shifts[textLower[i] & 0xff] = end - i;
+		}
+
+		byte lastByte = textLower[end];
+
+		int pos = 0;
+
+		while (pos + end < length)
+		{
+			byte b = text[pos + end];
+
+			if (b == lastByte)
+			{
+				int matched = 0;
+
+				while (matched < end && text[pos + matched] == textLower[matched])
+				{
+					matched++;
+				}
+
+				if (matched == end)
+				{
+					return true;
+				}
+			}
+
+			pos += shifts[b & 0xff];
+		}
+
+		return false;
+	}
+
+	/**
+	 * A prefilter for case-insensitive matches of an ASCII literal, which leave a lower cased copy of the literal
+	 * in the searchable body unless lower casing lengthened the body and split a match apart.
+	 *
+	 * @param literalLower lower cased UTF-8 of an ASCII literal
+	 * @return false only if the body cannot contain the literal ignoring case
+	 */
+	public boolean mayContain(int number, byte[] literalLower)
+	{
+		int index = Arrays.binarySearch(numbers, number);
+
+		return index < 0 || lengthened[index] || contains(number, literalLower);
+	}
+
+	/**
+	 * @return true if both stores hold the same body for the JEP, or neither holds one
+	 */
+	public boolean sameBody(int number, BodyStore other)
+	{
+		int index = Arrays.binarySearch(numbers, number);
+
+		int otherIndex = Arrays.binarySearch(other.numbers, number);
+
+		if (index < 0 || otherIndex < 0)
+		{
+			return index < 0 && otherIndex < 0;
+		}
+
+		if (rawLengths[index] != other.rawLengths[otherIndex])
+		{
+			return false;
+		}
+
+		// deflate is deterministic for a given input and level so equal bodies have equal blocks
+		ByteBuffer block = blocks.duplicate();
+		block.position(offsets[index]);
+		block.limit(offsets[index] + compressedLengths[index]);
+
+		ByteBuffer otherBlock = other.blocks.duplicate();
+		otherBlock.position(other.offsets[otherIndex]);
+		otherBlock.limit(other.offsets[otherIndex] + other.compressedLengths[otherIndex]);
+
+		return block.equals(otherBlock);
+	}
+
+	public Storage getStorage()
+	{
+		return storage;
+	}
+
+	public int size()
+	{
+		return numbers.length;
+	}
+
+	/**
+	 * @return the off-heap size of the compressed blocks
+	 */
+	public long getCompressedBytes()
+	{
+		return blocks.capacity() - searchBytes;
+	}
+
+	/**
+	 * @return the off-heap size of the lower cased searchable bodies
+	 */
+	public long getSearchableBytes()
+	{
+		return searchBytes;
+	}
+
+	public long getRawBytes()
+	{
+		return rawBytes;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.ToLongFunction;
+
+/**
+ * The JEPs sorted by one of their parsed dates, built once per corpus load.
+ * A range query is two binary searches and returns a newest first view over
+ * the sorted arrays, so no JEP is examined until the caller reads it.
+ * JEPs without a parseable date are not indexed.
+ */
+public class DateIndex
+{
+	public static final ToLongFunction<JEP> CREATED = new ToLongFunction<JEP>()
+	{
+		@Override public long applyAsLong(JEP jep)
+		{
+			return jep.getCreatedMillis();
+		}
+	};
+
+	public static final ToLongFunction<JEP> UPDATED = new ToLongFunction<JEP>()
+	{
+		@Override public long applyAsLong(JEP jep)
+		{
+			return jep.getUpdatedMillis();
+		}
+	};
+
+	// ascending, ties in number order
+	private final long[] times;
+
+	private final JEP[] jeps;
+
+	public DateIndex(List<JEP> jepList, final ToLongFunction<JEP> field)
+	{
+		List<JEP> dated = new ArrayList<>(jepList.size());
+
+		for (JEP jep : jepList)
+		{
+			if (field.applyAsLong(jep) != JEP.NO_DATE)
+			{
+				dated.add(jep);
+			}
+		}
+
+		dated.sort(new Comparator<JEP>()
+		{
+			@Override public int compare(JEP o1, JEP o2)
+			{
+				int byTime = Long.compare(field.applyAsLong(o1), field.applyAsLong(o2));
+
+				return (byTime != 0) ? byTime : Integer.compare(o1.getNumber(), o2.getNumber());
+			}
+		});
+
+		times = new long[dated.size()];
+		jeps = dated.toArray(new JEP[0]);
+
+		for (int i = 0; i < jeps.length; i++)
+		{
+			times[i] = field.applyAsLong(jeps[i]);
+		}
+	}
+
+	/**
+	 * @param fromMillis inclusive, Long.MIN_VALUE for no lower bound
+	 * @param toMillis   exclusive, Long.MAX_VALUE for no upper bound
+	 * @return the JEPs dated within the range, newest first
+	 */
+	public List<JEP> newestFirst(long fromMillis, long toMillis)
+	{
+		final int start = lowerBound(fromMillis);
+		final int end = Math.max(start, lowerBound(toMillis));
+
+		return new NewestFirst(start, end);
+	}
+
+	/**
+	 * @return the first position with a time not before the given time
+	 */
+	private int lowerBound(long millis)
+	{
+		int low = 0;
+		int high = times.length;
+
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+
+			if (times[mid] < millis)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	public int size()
+	{
+		return jeps.length;
+	}
+
+	private class NewestFirst extends AbstractList<JEP> implements RandomAccess
+	{
+		private final int start;
+
+		private final int end;
+
+		NewestFirst(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override public JEP get(int index)
+		{
+			if (index < 0 || index >= size())
+			{
+				throw new IndexOutOfBoundsException("Index " + index + " size " + size());
+			}
+
+			return jeps[end - 1 - index];
+		}
+
+		@Override public int size()
+		{
+			return end - start;
+		}
+	}
+}
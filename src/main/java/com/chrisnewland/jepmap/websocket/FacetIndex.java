@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One bitset per facet value over the JEPs in number order, built once per corpus load.
+ * Filtering ORs the bitsets of the values matching each facet's terms and ANDs the facets,
+ * counting intersects the result with every value's bitset.
+ */
+public class FacetIndex
+{
+	public static final String STATUS = "status";
+
+	public static final String RELEASE = "release";
+
+	public static final String PROJECT = "project";
+
+	public static final String DISCUSSION = "discussion";
+
+	private static final String[] FACETS = { STATUS, RELEASE, PROJECT, DISCUSSION };
+
+	private final List<JEP> jeps;
+
+	private final int[] numbers;
+
+	// facet -> value -> JEP positions
+	private final Map<String, Map<String, BitSet>> facets = new LinkedHashMap<>();
+
+	public static class Result
+	{
+		private final List<JEP> jeps;
+
+		private final Map<String, Map<String, Integer>> counts;
+
+		Result(List<JEP> jeps, Map<String, Map<String, Integer>> counts)
+		{
+			this.jeps = jeps;
+			this.counts = counts;
+		}
+
+		public List<JEP> getJEPs()
+		{
+			return jeps;
+		}
+
+		/**
+		 * @return facet -> value -> number of result JEPs with that value, most frequent first
+		 */
+		public Map<String, Map<String, Integer>> getCounts()
+		{
+			return counts;
+		}
+	}
+
+	/**
+	 * @param jeps sorted by number
+	 */
+	public FacetIndex(List<JEP> jeps)
+	{
+		this.jeps = jeps;
+
+		this.numbers = new int[jeps.size()];
+
+		for (String facet : FACETS)
+		{
+			facets.put(facet, new TreeMap<String, BitSet>());
+		}
+
+		for (int i = 0; i < jeps.size(); i++)
+		{
+			JEP jep = jeps.get(i);
+
+			numbers[i] = jep.getNumber();
+
+			add(STATUS, jep.getStatus(), i);
+			add(RELEASE, getReleaseValue(jep.getRelease()), i);
+			add(DISCUSSION, getDiscussionValue(jep.getDiscussion()), i);
+
+			for (String projectId : jep.getProjectIds())
+			{
+				add(PROJECT, projectId, i);
+			}
+		}
+	}
+
+	private void add(String facet, String value, int position)
+	{
+		if (value != null && !value.isEmpty())
+		{
+			facets.get(facet).computeIfAbsent(value, k -> new BitSet(jeps.size())).set(position);
+		}
+	}
+
+	/**
+	 * @return the major version such as "21", or the release as given if it does not start with one
+	 */
+	public static String getReleaseValue(String release)
+	{
+		if (release == null)
+		{
+			return null;
+		}
+
+		int digits = 0;
+
+		while (digits < release.length() && Character.isDigit(release.charAt(digits)))
+		{
+			digits++;
+		}
+
+		return (digits > 0) ? release.substring(0, digits) : release.trim().toLowerCase();
+	}
+
+	/**
+	 * @return the mailing list name, "loom dash dev at openjdk dot org" becomes "loom-dev"
+	 */
+	public static String getDiscussionValue(String discussion)
+	{
+		if (discussion == null)
+		{
+			return null;
+		}
+
+		String list = discussion.replace(" dash ", "-").replace(" at ", "@").replace(" dot ", ".");
+
+		int atPos = list.indexOf('@');
+
+		return ((atPos != -1) ? list.substring(0, atPos) : list).trim().toLowerCase();
+	}
+
+	/**
+	 * @return the JEPs passing every filter in the query, all JEPs if it has none
+	 */
+	public List<JEP> select(FacetQuery query)
+	{
+		if (!query.hasFilters())
+		{
+			return jeps;
+		}
+
+		BitSet selected = new BitSet(jeps.size());
+
+		selected.set(0, jeps.size());
+
+		for (String facet : FACETS)
+		{
+			List<String> terms = query.getTerms(facet);
+
+			if (terms.isEmpty())
+			{
+				continue;
+			}
+
+			BitSet any = new BitSet(jeps.size());
+
+			for (Map.Entry<String, BitSet> entry : facets.get(facet).entrySet())
+			{
+				for (String term : terms)
+				{
+					if (matches(facet, entry.getKey(), term))
+					{
+						any.or(entry.getValue());
+						break;
+					}
+				}
+			}
+
+			selected.and(any);
+		}
+
+		List<JEP> result = new ArrayList<>(selected.cardinality());
+
+		for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1))
+		{
+			result.add(jeps.get(i));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Tests one JEP against the filters without the bitsets, for checking a few changed JEPs.
+	 */
+	public static boolean matches(FacetQuery query, JEP jep)
+	{
+		for (String facet : FACETS)
+		{
+			List<String> terms = query.getTerms(facet);
+
+			if (!terms.isEmpty() && !anyMatches(facet, getValues(facet, jep), terms))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static Collection<String> getValues(String facet, JEP jep)
+	{
+		switch (facet)
+		{
+		case STATUS:
+			return Collections.singletonList(jep.getStatus());
+		case RELEASE:
+			return Collections.singletonList(getReleaseValue(jep.getRelease()));
+		case DISCUSSION:
+			return Collections.singletonList(getDiscussionValue(jep.getDiscussion()));
+		default:
+			return jep.getProjectIds();
+		}
+	}
+
+	private static boolean anyMatches(String facet, Collection<String> values, List<String> terms)
+	{
+		for (String value : values)
+		{
+			if (value == null || value.isEmpty())
+			{
+				continue;
+			}
+
+			for (String term : terms)
+			{
+				if (matches(facet, value, term))
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean matches(String facet, String value, String term)
+	{
+		switch (facet)
+		{
+		case STATUS:
+			// "delivered" matches "Closed / Delivered"
+			return value.toLowerCase().contains(term);
+		case RELEASE:
+			return matchesRelease(value, term);
+		case DISCUSSION:
+			// "loom" matches "loom-dev"
+			return value.startsWith(term);
+		default:
+			return value.equalsIgnoreCase(term);
+		}
+	}
+
+	/**
+	 * Exact release or a comparison with a major version: &gt;=21, &gt;21, &lt;=17, &lt;17.
+	 */
+	private static boolean matchesRelease(String value, String term)
+	{
+		int start = 0;
+
+		while (start < term.length() && (term.charAt(start) == '<' || term.charAt(start) == '>' || term.charAt(start) == '='))
+		{
+			start++;
+		}
+
+		String operator = term.substring(0, start);
+
+		String version = term.substring(start);
+
+		if (operator.isEmpty() || operator.equals("="))
+		{
+			return value.equalsIgnoreCase(version);
+		}
+
+		int valueMajor;
+		int termMajor;
+
+		try
+		{
+			valueMajor = Integer.parseInt(value);
+			termMajor = Integer.parseInt(getReleaseValue(version));
+		}
+		catch (NumberFormatException nfe)
+		{
+			// tbd and other non-numeric releases never satisfy a comparison
+			return false;
+		}
+
+		switch (operator)
+		{
+		case ">=":
+			return valueMajor >= termMajor;
+		case ">":
+			return valueMajor > termMajor;
+		case "<=":
+			return valueMajor <= termMajor;
+		case "<":
+			return valueMajor < termMajor;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param hits JEPs from this corpus in number order
+	 */
+	public Result count(List<JEP> hits)
+	{
+		BitSet hitBits = new BitSet(jeps.size());
+
+		int from = 0;
+
+		for (JEP jep : hits)
+		{
+			int position = Arrays.binarySearch(numbers, from, numbers.length, jep.getNumber());
+
+			if (position >= 0)
+			{
+				hitBits.set(position);
+				from = position + 1;
+			}
+		}
+
+		Map<String, Map<String, Integer>> counts = new LinkedHashMap<>();
+
+		for (String facet : FACETS)
+		{
+			List<Map.Entry<String, Integer>> valueCounts = new ArrayList<>();
+
+			for (Map.Entry<String, BitSet> entry : facets.get(facet).entrySet())
+			{
+				BitSet intersection = (BitSet) entry.getValue().clone();
+
+				intersection.and(hitBits);
+
+				int count = intersection.cardinality();
+
+				if (count > 0)
+				{
+					valueCounts.add(new AbstractMap.SimpleEntry<>(entry.getKey(), count));
+				}
+			}
+
+			valueCounts.sort(new Comparator<Map.Entry<String, Integer>>()
+			{
+				@Override public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2)
+				{
+					int byCount = Integer.compare(e2.getValue(), e1.getValue());
+
+					return (byCount != 0) ? byCount : e1.getKey().compareTo(e2.getKey());
+				}
+			});
+
+			Map<String, Integer> ordered = new LinkedHashMap<>();
+
+			for (Map.Entry<String, Integer> valueCount : valueCounts)
+			{
+				ordered.put(valueCount.getKey(), valueCount.getValue());
+			}
+
+			counts.put(facet, Collections.unmodifiableMap(ordered));
+		}
+
+		return new Result(hits, counts);
+	}
+
+	/**
+	 * Writes the counts as {"status":{"Closed / Delivered":12,...},"release":{...},...}
+	 */
+	public static void writeCounts(ResponseWriter writer, Map<String, Map<String, Integer>> counts) throws IOException
+	{
+		writer.beginObject();
+
+		for (Map.Entry<String, Map<String, Integer>> facet : counts.entrySet())
+		{
+			writer.name(facet.getKey()).beginObject();
+
+			for (Map.Entry<String, Integer> value : facet.getValue().entrySet())
+			{
+				writer.name(value.getKey()).value(value.getValue());
+			}
+
+			writer.endObject();
+		}
+
+		writer.endObject();
+	}
+}
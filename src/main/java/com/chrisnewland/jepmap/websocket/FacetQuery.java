@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search split into facet filters and the remaining free text, e.g.
+ * "status:delivered release:&gt;=21 project:panama vector".
+ * <p>
+ * Filters on the same facet are alternatives, filters on different facets must all match.
+ * Anything that is not a known facet:value token is left in the text unchanged so regex
+ * and phrase queries keep their spacing.
+ */
+public class FacetQuery
+{
+	private static final Pattern FILTER = Pattern.compile("(?<=^|\\s)(" + FacetIndex.STATUS + "|" + FacetIndex.RELEASE + "|" +
+			FacetIndex.PROJECT + "|" + FacetIndex.DISCUSSION + "):(\\S+)", Pattern.CASE_INSENSITIVE);
+
+	private final Map<String, List<String>> filters;
+
+	private final String text;
+
+	private FacetQuery(Map<String, List<String>> filters, String text)
+	{
+		this.filters = filters;
+		this.text = text;
+	}
+
+	public static FacetQuery parse(String query)
+	{
+		Map<String, List<String>> filters = new LinkedHashMap<>();
+
+		Matcher matcher = FILTER.matcher(query);
+
+		StringBuilder text = new StringBuilder();
+
+		int last = 0;
+
+		while (matcher.find())
+		{
+			filters.computeIfAbsent(matcher.group(1).toLowerCase(), k -> new ArrayList<>()).add(matcher.group(2).toLowerCase());
+
+			text.append(query, last, matcher.start());
+
+			last = matcher.end();
+
+			// drop the separator so removing a filter leaves single spaces between the remaining words
+			while (last < query.length() && Character.isWhitespace(query.charAt(last)) && (text.length() == 0 || Character.isWhitespace(
+					text.charAt(text.length() - 1))))
+			{
+				last++;
+			}
+		}
+
+		text.append(query, last, query.length());
+
+		return new FacetQuery(filters, text.toString().trim());
+	}
+
+	public boolean hasFilters()
+	{
+		return !filters.isEmpty();
+	}
+
+	/**
+	 * @return the lower cased terms given for the facet, empty if it is not filtered
+	 */
+	public List<String> getTerms(String facet)
+	{
+		List<String> terms = filters.get(facet);
+
+		return (terms == null) ? Collections.<String>emptyList() : terms;
+	}
+
+	public Map<String, List<String>> getFilters()
+	{
+		return Collections.unmodifiableMap(filters);
+	}
+
+	/**
+	 * @return the free text with the facet filters removed, may be empty
+	 */
+	public String getText()
+	{
+		return text;
+	}
+}
@@ -5,57 +5,366 @@
 package com.chrisnewland.jepmap.websocket;
 
 import org.eclipse.jetty.server.*;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.websocket.jakarta.server.config.JakartaWebSocketServletContainerInitializer;
 
-import java.net.InetSocketAddress;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class FullJEPServer
 {
 	public static void main(String[] args)
 	{
+		if (args.length < 1 || args.length > 2)
+		{
+			System.err.println("FullJEPServer <jepJsonDir> [htmlDir]");
+			System.exit(-1);
+		}
+
 		Path jepDir = Paths.get(args[0]);
 
-		new FullJEPServer(jepDir);
+		Path htmlDir = (args.length == 2) ? Paths.get(args[1]) : null;
+
+		FullJEPServer fullJEPServer = new FullJEPServer(jepDir, htmlDir);
+
+		try
+		{
+			fullJEPServer.start();
+
+			fullJEPServer.join();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			fullJEPServer.stop();
+		}
 	}
 
-	private static JEPLoader jepLoader;
+	private static volatile JEPLoader jepLoader;
+
+	private static SubscriptionIndex subscriptions;
+
+	private static QueryExecutor queryExecutor;
+
+	private static PatternSearcher patternSearcher;
+
+	private static ServerConfig config;
+
+	private final Server server;
+
+	private final Path jepDir;
+
+	private final Path htmlDir;
+
+	private ScheduledExecutorService reloadScheduler;
+
+	private long corpusFingerprint;
+
+	private long pendingFingerprint;
+
+	private int reloadCount = 0;
 
 	public static JEPLoader getJEPLoader()
 	{
 		return jepLoader;
 	}
 
-	public FullJEPServer(Path jepDir)
+	public static QueryExecutor getQueryExecutor()
+	{
+		return queryExecutor;
+	}
+
+	public static SubscriptionIndex getSubscriptions()
+	{
+		return subscriptions;
+	}
+
+	public static PatternSearcher getPatternSearcher()
+	{
+		return patternSearcher;
+	}
+
+	public static ServerConfig getConfig()
+	{
+		return config;
+	}
+
+	public FullJEPServer(Path jepDir, Path htmlDir)
 	{
-		jepLoader = new JEPLoader(jepDir);
+		this.jepDir = jepDir;
+
+		this.htmlDir = htmlDir;
+
+		config = ServerConfig.load();
+
+		corpusFingerprint = getCorpusFingerprint();
+
+		jepLoader = new JEPLoader(jepDir, Runtime.getRuntime().availableProcessors(), createBodyStoreBuilder());
 
-		Server server = new Server(new InetSocketAddress("127.0.0.1", 8080));
+		Metrics.recordReload(jepLoader.getLoadMillis());
+
+		subscriptions = new SubscriptionIndex(config.getEventThreads());
+
+		queryExecutor = new QueryExecutor(config.getQueryThreads(), config.getMaxQueriesInFlight(), config.isQueryVirtualThreads());
+
+		patternSearcher = new PatternSearcher(config.getScanParallelism(), config.getPatternBudgetMillis());
+
+		server = new Server(createThreadPool());
+
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost(config.getHost());
+		connector.setPort(config.getPort());
+		connector.setIdleTimeout(config.getIdleTimeoutMillis());
+
+		server.addConnector(connector);
+
+		server.addBean(new ConnectionLimit(config.getMaxConnections(), server));
 
 		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
 
 		context.setContextPath("/");
 
-		server.setHandler(context);
+		context.addServlet(ApiServlet.class, "/api/*");
+		context.addServlet(MetricsServlet.class, "/metrics");
+
+		if (htmlDir != null)
+		{
+			// serve the generated jepmap/jepsearch/fulljep pages from the same process
+			context.setResourceBase(htmlDir.toAbsolutePath().toString());
+			context.setWelcomeFiles(new String[] { "jepmap.html" });
+
+			ServletHolder staticHolder = context.addServlet(DefaultServlet.class, "/");
+			staticHolder.setInitParameter("etags", "true");
+			staticHolder.setInitParameter("dirAllowed", "false");
+		}
+
+		GzipHandler gzipHandler = new GzipHandler();
+		gzipHandler.addIncludedMimeTypes("application/json");
+		gzipHandler.setHandler(context);
+
+		server.setHandler(gzipHandler);
 
 		JakartaWebSocketServletContainerInitializer.configure(context, (servletContext, wsContainer) -> {
-			wsContainer.setDefaultMaxTextMessageBufferSize(256);
-			wsContainer.setDefaultMaxBinaryMessageBufferSize(256);
-			wsContainer.setDefaultMaxSessionIdleTimeout(120_000);
+			wsContainer.setDefaultMaxTextMessageBufferSize(config.getMaxTextMessageSize());
+			wsContainer.setDefaultMaxBinaryMessageBufferSize(config.getMaxBinaryMessageSize());
+			wsContainer.setDefaultMaxSessionIdleTimeout(config.getSessionIdleTimeoutMillis());
 			wsContainer.addEndpoint(WebsocketServerEndpoint.class);
 		});
 
-		try
+	}
+
+	public void start() throws Exception
+	{
+		server.start();
+
+		if (config.getReloadIntervalSeconds() > 0)
+		{
+			reloadScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "jep-reload");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			reloadScheduler.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override public void run()
+				{
+					try
+					{
+						reloadIfChanged();
+					}
+					catch (RuntimeException e)
+					{
+						// keep serving the current corpus and try again next time
+						System.out.println("Reload failed: " + e);
+					}
+				}
+			}, config.getReloadIntervalSeconds(), config.getReloadIntervalSeconds(), TimeUnit.SECONDS);
+		}
+
+		printBanner();
+	}
+
+	/**
+	 * Reloads the corpus if any JEP file was added, removed or rewritten since the last load,
+	 * then publishes the changes to subscribers. A change must be seen unchanged on two
+	 * consecutive checks so a directory still being written is not loaded half done.
+	 *
+	 * @return true if the corpus was reloaded
+	 */
+	public synchronized boolean reloadIfChanged()
+	{
+		long fingerprint = getCorpusFingerprint();
+
+		if (fingerprint == corpusFingerprint)
+		{
+			return false;
+		}
+
+		if (fingerprint != pendingFingerprint)
 		{
-			server.start();
+			pendingFingerprint = fingerprint;
+			return false;
+		}
+
+		reloadCount++;
+
+		JEPLoader before = jepLoader;
+
+		JEPLoader after = new JEPLoader(jepDir, Runtime.getRuntime().availableProcessors(), createBodyStoreBuilder());
+
+		corpusFingerprint = fingerprint;
+
+		jepLoader = after;
+
+		Metrics.recordReload(after.getLoadMillis());
+
+		if (!before.getCorpusVersion().equals(after.getCorpusVersion()))
+		{
+			Metrics.recordEvents(subscriptions.publish(before, after));
+		}
+
+		return true;
+	}
 
-			server.join();
+	/**
+	 * @return a hash of the names, sizes and modification times of the JEP files, cheap enough to poll
+	 */
+	private long getCorpusFingerprint()
+	{
+		File[] files = jepDir.toFile().listFiles();
+
+		if (files == null)
+		{
+			return 0;
+		}
+
+		Arrays.sort(files);
+
+		long fingerprint = 17;
+
+		for (File file : files)
+		{
+			if (file.getName().endsWith(".json"))
+			{
+				fingerprint = fingerprint * 31 + file.getName().hashCode();
+				fingerprint = fingerprint * 31 + file.length();
+				fingerprint = fingerprint * 31 + file.lastModified();
+			}
+		}
+
+		return fingerprint;
+	}
+
+	public void join() throws InterruptedException
+	{
+		server.join();
+	}
+
+	public void stop()
+	{
+		try
+		{
+			server.stop();
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			if (reloadScheduler != null)
+			{
+				reloadScheduler.shutdownNow();
+			}
+
+			queryExecutor.shutdown();
+			patternSearcher.shutdown();
+			subscriptions.shutdown();
+		}
+	}
+
+	private BodyStore.Builder createBodyStoreBuilder()
+	{
+		if (config.getBodyStorage() == BodyStore.Storage.HEAP)
+		{
+			return null;
+		}
+
+		Path bodyFile = config.getBodyFile();
+
+		if (bodyFile != null && reloadCount % 2 == 1)
+		{
+			// alternate files so a reload never truncates the file mapped by the corpus still serving queries
+			bodyFile = bodyFile.resolveSibling(bodyFile.getFileName() + ".1");
+		}
+
+		try
+		{
+			return new BodyStore.Builder(config.getBodyStorage(), bodyFile, config.getBodyCacheSize());
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Couldn't create body store", e);
+		}
+	}
+
+	private QueuedThreadPool createThreadPool()
+	{
+		QueuedThreadPool threadPool = new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads());
+
+		threadPool.setName("jepmap-http");
+
+		if (config.getThreadPoolType() == ServerConfig.ThreadPoolType.VIRTUAL)
+		{
+			if (VirtualThreads.areSupported())
+			{
+				threadPool.setVirtualThreadsExecutor(VirtualThreads.getDefaultVirtualThreadsExecutor());
+			}
+			else
+			{
+				System.out.println("WARN: virtual threads requested but not supported by this JVM, using platform threads");
+			}
+		}
+
+		return threadPool;
+	}
+
+	private void printBanner()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		builder.append("FullJEPServer listening on ").append(config.getHost()).append(':').append(config.getPort()).append('\n');
+		builder.append("  JVM ").append(System.getProperty("java.vm.name")).append(' ').append(Runtime.version()).append(", ");
+		builder.append(Runtime.getRuntime().availableProcessors()).append(" cores, ");
+		builder.append(Runtime.getRuntime().maxMemory() / (1024 * 1024)).append("MB max heap\n");
+		builder.append("  JEPs ").append(jepDir.toAbsolutePath()).append(" (version ").append(jepLoader.getCorpusVersion()).append(")\n");
+		builder.append("  Reload ").append(config.getReloadIntervalSeconds() > 0 ? "every " + config.getReloadIntervalSeconds() + "s" : "disabled").append('\n');
+		builder.append("  HTML ").append(htmlDir == null ? "not served" : htmlDir.toAbsolutePath().toString()).append('\n');
+		builder.append("  HTTP virtual threads ").append(VirtualThreads.areSupported() && config.getThreadPoolType() == ServerConfig.ThreadPoolType.VIRTUAL).append('\n');
+		builder.append("  Query virtual threads ").append(queryExecutor.isVirtualThreads()).append('\n');
+		builder.append(config.describe());
+
+		System.out.print(builder);
 	}
-}
\ No newline at end of file
+}
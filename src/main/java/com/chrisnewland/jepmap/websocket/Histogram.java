@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free fixed-bucket histogram of non-negative values.
+ * Bucket upper bounds follow 1, 1.5, 2, 3, 5, 7 per decade which keeps
+ * percentile error under ~50% of the value while staying cheap to export.
+ */
+public class Histogram
+{
+	private static final long[] BOUNDS = createBounds();
+
+	private final String name;
+
+	private final String unit;
+
+	// one extra bucket for values above the last bound
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram(String name, String unit)
+	{
+		this.name = name;
+		this.unit = unit;
+	}
+
+	private static long[] createBounds()
+	{
+		int[] steps = { 10, 15, 20, 30, 50, 70 };
+
+		long[] bounds = new long[10 * steps.length];
+
+		int index = 0;
+
+		long decade = 1;
+
+		for (int d = 0; d < 10; d++)
+		{
+			for (int step : steps)
+			{
+				bounds[index++] = decade * step / 10;
+			}
+
+			decade *= 10;
+		}
+
+		// the first decade rounds 1.5 to 1 and so on, drop the duplicates
+		long[] unique = Arrays.stream(bounds).distinct().toArray();
+
+		return unique;
+	}
+
+	public void record(long value)
+	{
+		if (value < 0)
+		{
+			value = 0;
+		}
+
+		int index = Arrays.binarySearch(BOUNDS, value);
+
+		if (index < 0)
+		{
+			index = -index - 1;
+		}
+
+		counts.incrementAndGet(index);
+		count.increment();
+		sum.add(value);
+
+		long currentMax = max.get();
+
+		while (value > currentMax && !max.compareAndSet(currentMax, value))
+		{
+			currentMax = max.get();
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getUnit()
+	{
+		return unit;
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the value at the quantile, linearly interpolated within its bucket
+	 */
+	public long getQuantile(double quantile)
+	{
+		long[] snapshot = snapshot();
+
+		long total = 0;
+
+		for (long c : snapshot)
+		{
+			total += c;
+		}
+
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		double rank = quantile * total;
+
+		long seen = 0;
+
+		for (int i = 0; i < snapshot.length; i++)
+		{
+			if (snapshot[i] > 0 && seen + snapshot[i] >= rank)
+			{
+				long lower = (i == 0) ? 0 : BOUNDS[i - 1];
+				long upper = (i < BOUNDS.length) ? BOUNDS[i] : Math.max(lower, max.get());
+
+				double fraction = (rank - seen) / snapshot[i];
+
+				return Math.min(max.get(), lower + Math.round((upper - lower) * fraction));
+			}
+
+			seen += snapshot[i];
+		}
+
+		return max.get();
+	}
+
+	private long[] snapshot()
+	{
+		long[] result = new long[counts.length()];
+
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = counts.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes the histogram in Prometheus text exposition format.
+	 */
+	public void writePrometheus(StringBuilder builder, String prefix)
+	{
+		String metric = prefix + name + "_" + unit;
+
+		builder.append("# TYPE ").append(metric).append(" histogram\n");
+
+		long[] snapshot = snapshot();
+
+		long cumulative = 0;
+
+		for (int i = 0; i < BOUNDS.length; i++)
+		{
+			cumulative += snapshot[i];
+
+			builder.append(metric).append("_bucket{le=\"").append(BOUNDS[i]).append("\"} ").append(cumulative).append('\n');
+		}
+
+		cumulative += snapshot[BOUNDS.length];
+
+		builder.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+		builder.append(metric).append("_sum ").append(getSum()).append('\n');
+		builder.append(metric).append("_count ").append(cumulative).append('\n');
+	}
+}
@@ -10,20 +10,119 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
 
-public class JEPLoader
+public class JEPLoader implements ResultEncoder.BodySource
 {
 	private static final String SUFFIX = ".json";
 
+	// for searches and encoding that no newer query can supersede
+	static final BooleanSupplier NEVER_CANCELLED = new BooleanSupplier()
+	{
+		@Override public boolean getAsBoolean()
+		{
+			return false;
+		}
+	};
+
+	private static final Comparator<JEP> BY_NUMBER = new Comparator<JEP>()
+	{
+		@Override public int compare(JEP o1, JEP o2)
+		{
+			return Integer.compare(o1.getNumber(), o2.getNumber());
+		}
+	};
+
 	private final List<JEP> jepList;
 
+	private final List<String> failedFiles = new ArrayList<>();
+
+	// file name -> decode time, for finding slow or corrupt files
+	private final Map<String, Long> decodeMicrosByFile = new HashMap<>();
+
+	private static final int SLOWEST_FILES_LOGGED = 5;
+
+	private final Map<Integer, JEP> jepByNumber = new HashMap<>();
+
+	private final Map<String, List<JEP>> jepsByProject = new HashMap<>();
+
+	private final Map<Integer, Long> contentHashes = new HashMap<>();
+
+	// null when bodies are kept on the JEP objects
+	private final BodyStore bodyStore;
+
+	private FacetIndex facetIndex;
+
+	private DateIndex createdIndex;
+
+	private DateIndex updatedIndex;
+
+	private Vocabulary vocabulary;
+
+	private Autocompleter autocompleter;
+
+	private String corpusVersion;
+
+	private long loadMillis;
+
+	private long maxDecodeMicros;
+
+	private long totalDecodeMicros;
+
+	private static class LoadResult
+	{
+		private final File file;
+		private final JEP jep;
+		private final Exception error;
+		private final long decodeNanos;
+		private final long contentHash;
+
+		LoadResult(File file, JEP jep, Exception error, long decodeNanos, long contentHash)
+		{
+			this.file = file;
+			this.jep = jep;
+			this.error = error;
+			this.decodeNanos = decodeNanos;
+			this.contentHash = contentHash;
+		}
+	}
+
 	public JEPLoader(Path jepDir)
 	{
+		this(jepDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	public JEPLoader(Path jepDir, int threads)
+	{
+		this(jepDir, threads, null);
+	}
+
+	/**
+	 * @param bodies if not null each body is compressed into the store as soon as its file is
+	 *               decoded and dropped from the JEP, so the full corpus text is never on the heap
+	 */
+	public JEPLoader(Path jepDir, int threads, final BodyStore.Builder bodies)
+	{
+		long start = System.nanoTime();
+
 		File[] jepFiles = jepDir.toFile().listFiles(new FilenameFilter()
 		{
 			@Override public boolean accept(File dir, String name)
@@ -32,40 +131,490 @@ public class JEPLoader
 			}
 		});
 
-		jepList = new ArrayList<>();
+		if (jepFiles == null)
+		{
+			throw new IllegalArgumentException("Not a readable directory: " + jepDir);
+		}
+
+		jepList = new ArrayList<>(jepFiles.length);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
 
 		try
 		{
-			for (File jepFile : jepFiles)
-			{
-				String contents = Files.readString(jepFile.toPath());
-
-				JEP jep = JEP.deserialise(new JSONObject(contents));
+			List<Future<LoadResult>> futures = new ArrayList<>(jepFiles.length);
 
-				jepList.add(jep);
+			for (final File jepFile : jepFiles)
+			{
+				futures.add(executor.submit(new Callable<LoadResult>()
+				{
+					@Override public LoadResult call()
+					{
+						return loadJEP(jepFile, bodies);
+					}
+				}));
 			}
 
-			jepList.sort(new Comparator<JEP>()
+			for (Future<LoadResult> future : futures)
 			{
-				@Override public int compare(JEP o1, JEP o2)
+				LoadResult loadResult = future.get();
+
+				long decodeMicros = loadResult.decodeNanos / 1000;
+
+				decodeMicrosByFile.put(loadResult.file.getName(), decodeMicros);
+
+				totalDecodeMicros += decodeMicros;
+				maxDecodeMicros = Math.max(maxDecodeMicros, decodeMicros);
+
+				if (loadResult.jep != null)
 				{
-					return Integer.compare(o1.getNumber(), o2.getNumber());
+					jepList.add(loadResult.jep);
+					contentHashes.put(loadResult.jep.getNumber(), loadResult.contentHash);
 				}
-			});
+				else
+				{
+					failedFiles.add(loadResult.file.getName());
+
+					System.out.println("Skipping corrupt JEP file " + loadResult.file + " : " + loadResult.error);
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted loading JEPs from " + jepDir, ie);
+		}
+		catch (ExecutionException ee)
+		{
+			throw new IllegalStateException("Failed loading JEPs from " + jepDir, ee.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		jepList.sort(BY_NUMBER);
+
+		try
+		{
+			bodyStore = (bodies != null) ? bodies.build() : null;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Couldn't build body store for " + jepDir, e);
+		}
+
+		buildIndexes();
+
+		loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+		System.out.println("Loaded " + jepList.size() + " JEPs in " + loadMillis + "ms using " + threads + " threads (decode total " +
+				totalDecodeMicros + "us, max " + maxDecodeMicros + "us, " + failedFiles.size() + " failed) version " + corpusVersion);
+
+		System.out.println("Slowest decodes: " + getSlowestFiles(SLOWEST_FILES_LOGGED));
+
+		if (bodyStore != null)
+		{
+			System.out.println("Bodies stored " + bodyStore.getStorage() + " " + bodyStore.getRawBytes() + " bytes compressed to " +
+					bodyStore.getCompressedBytes() + " plus " + bodyStore.getSearchableBytes() + " searchable");
+		}
+	}
+
+	private void buildIndexes()
+	{
+		long version = 17;
+
+		for (JEP jep : jepList)
+		{
+			jepByNumber.put(jep.getNumber(), jep);
+
+			for (String projectId : jep.getProjectIds())
+			{
+				jepsByProject.computeIfAbsent(projectId, k -> new ArrayList<>()).add(jep);
+			}
+
+			version = version * 31 + jep.getNumber();
+			version = version * 31 + contentHashes.get(jep.getNumber());
+		}
+
+		corpusVersion = Long.toHexString(version);
+
+		facetIndex = new FacetIndex(jepList);
+
+		createdIndex = new DateIndex(jepList, DateIndex.CREATED);
+		updatedIndex = new DateIndex(jepList, DateIndex.UPDATED);
+
+		vocabulary = new Vocabulary(jepList, new ResultEncoder.BodySource()
+		{
+			@Override public String getBody(JEP jep)
+			{
+				return scanBody(jep);
+			}
+		});
+
+		autocompleter = new Autocompleter(jepList, jepsByProject, vocabulary);
+	}
+
+	/**
+	 * Builds a loader over JEPs already in memory, used by benchmarks and tools.
+	 */
+	public JEPLoader(Collection<JEP> jeps)
+	{
+		long start = System.nanoTime();
+
+		jepList = new ArrayList<>(jeps);
+
+		bodyStore = null;
+
+		for (JEP jep : jepList)
+		{
+			if (jep.getBody() == null)
+			{
+				jep.setBody("");
+			}
+
+			CRC32C crc = new CRC32C();
+
+			crc.update(jep.serialise().getBytes(StandardCharsets.UTF_8));
+
+			contentHashes.put(jep.getNumber(), crc.getValue());
+		}
+
+		jepList.sort(BY_NUMBER);
+
+		buildIndexes();
+
+		loadMillis = (System.nanoTime() - start) / 1_000_000;
+	}
+
+	private static LoadResult loadJEP(File jepFile, BodyStore.Builder bodies)
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			byte[] bytes = Files.readAllBytes(jepFile.toPath());
+
+			CRC32C crc = new CRC32C();
+
+			crc.update(bytes);
+
+			String contents = new String(bytes, StandardCharsets.UTF_8);
+
+			JEP jep = JEP.deserialise(new JSONObject(contents));
+
+			if (jep.getBody() == null)
+			{
+				jep.setBody("");
+			}
+
+			if (bodies != null)
+			{
+				bodies.add(jep.getNumber(), jep.getBody());
+				jep.setBody(null);
+			}
+
+			return new LoadResult(jepFile, jep, null, System.nanoTime() - start, crc.getValue());
+		}
+		catch (Exception e)
+		{
+			return new LoadResult(jepFile, null, e, System.nanoTime() - start, 0);
+		}
+	}
+
+	public List<String> getFailedFiles()
+	{
+		return Collections.unmodifiableList(failedFiles);
+	}
+
+	/**
+	 * @return the decode time in microseconds of every file read, failed or not, keyed by file name
+	 */
+	public Map<String, Long> getDecodeMicrosByFile()
+	{
+		return Collections.unmodifiableMap(decodeMicrosByFile);
+	}
+
+	/**
+	 * @return up to count file names with their decode time in microseconds, slowest first
+	 */
+	public List<Map.Entry<String, Long>> getSlowestFiles(int count)
+	{
+		List<Map.Entry<String, Long>> entries = new ArrayList<>(decodeMicrosByFile.entrySet());
+
+		entries.sort(new Comparator<Map.Entry<String, Long>>()
+		{
+			@Override public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2)
+			{
+				return Long.compare(o2.getValue(), o1.getValue());
+			}
+		});
+
+		return entries.subList(0, Math.min(count, entries.size()));
+	}
+
+	public long getLoadMillis()
+	{
+		return loadMillis;
+	}
+
+	public long getTotalDecodeMicros()
+	{
+		return totalDecodeMicros;
+	}
+
+	public long getMaxDecodeMicros()
+	{
+		return maxDecodeMicros;
+	}
+
+	/**
+	 * @return a hash of the loaded corpus, changes whenever any JEP file changes
+	 */
+	public String getCorpusVersion()
+	{
+		return corpusVersion;
+	}
+
+	/**
+	 * @return a hash of the JEP's file (or serialised form) or null if the JEP is not loaded
+	 */
+	public Long getContentHash(int number)
+	{
+		return contentHashes.get(number);
+	}
+
+	public JEP getJEP(int number)
+	{
+		return jepByNumber.get(number);
+	}
+
+	/**
+	 * @return the loaded JEPs most alike to the JEP, most similar first
+	 */
+	public List<JEP> getSimilarJEPs(JEP jep)
+	{
+		List<JEP> similar = new ArrayList<>(jep.getSimilar().size());
+
+		for (int number : jep.getSimilar())
+		{
+			JEP other = jepByNumber.get(number);
+
+			if (other != null)
+			{
+				similar.add(other);
+			}
 		}
-		catch (IOException ioe)
+
+		return similar;
+	}
+
+	public List<JEP> getJEPsForProject(String projectId)
+	{
+		List<JEP> jeps = jepsByProject.get(projectId);
+
+		return (jeps == null) ? Collections.<JEP>emptyList() : Collections.unmodifiableList(jeps);
+	}
+
+	/**
+	 * @return every JEP in number order
+	 */
+	public List<JEP> getJEPs()
+	{
+		return Collections.unmodifiableList(jepList);
+	}
+
+	/**
+	 * @return the body for snippet building, cached if bodies are stored off-heap
+	 */
+	@Override public String getBody(JEP jep)
+	{
+		return (bodyStore != null) ? bodyStore.getBody(jep.getNumber()) : jep.getBody();
+	}
+
+	/**
+	 * @return the body for a full corpus scan, bypassing the cache
+	 */
+	public String scanBody(JEP jep)
+	{
+		return (bodyStore != null) ? bodyStore.readBody(jep.getNumber()) : jep.getBody();
+	}
+
+	/**
+	 * @param textLower lower cased text
+	 * @return true if the lower cased body contains the text, an off-heap body is matched without inflating it
+	 */
+	public boolean bodyContains(JEP jep, String textLower)
+	{
+		if (bodyStore != null)
+		{
+			return bodyStore.contains(jep.getNumber(), textLower.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return jep.getBody().toLowerCase().contains(textLower);
+	}
+
+	/**
+	 * Lets a pattern scan skip inflating off-heap bodies that cannot hold the literal every match contains.
+	 * Only an ASCII literal is checked, see BodyStore.mayContain.
+	 *
+	 * @return false only if the body cannot contain a match
+	 */
+	public boolean bodyMayMatch(JEP jep, PatternQuery query)
+	{
+		String literal = query.getLiteral();
+
+		if (bodyStore == null || literal == null || !isAscii(literal))
 		{
-			ioe.printStackTrace();
+			return true;
 		}
+
+		return bodyStore.mayContain(jep.getNumber(), literal.toLowerCase().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean isAscii(String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			if (text.charAt(i) > 127)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the JEP bodies in the two loaders are the same, compared without inflating off-heap bodies
+	 */
+	public static boolean sameBody(JEPLoader before, JEP oldJEP, JEPLoader after, JEP newJEP)
+	{
+		if (before.bodyStore != null && after.bodyStore != null && oldJEP.getNumber() == newJEP.getNumber())
+		{
+			return before.bodyStore.sameBody(oldJEP.getNumber(), after.bodyStore);
+		}
+
+		return Objects.equals(before.scanBody(oldJEP), after.scanBody(newJEP));
+	}
+
+	public BodyStore getBodyStore()
+	{
+		return bodyStore;
+	}
+
+	public FacetIndex getFacetIndex()
+	{
+		return facetIndex;
+	}
+
+	public DateIndex getCreatedIndex()
+	{
+		return createdIndex;
+	}
+
+	public DateIndex getUpdatedIndex()
+	{
+		return updatedIndex;
+	}
+
+	public Vocabulary getVocabulary()
+	{
+		return vocabulary;
+	}
+
+	public Autocompleter getAutocompleter()
+	{
+		return autocompleter;
+	}
+
+	/**
+	 * Applies the facet filters, matches the free text within the JEPs that pass them
+	 * and counts the facet values of the hits. A query with no text returns every JEP passing the filters.
+	 *
+	 * @param cancelled checked between JEPs, once true the partial result is returned for the caller to discard
+	 */
+	public FacetIndex.Result search(FacetQuery query, BooleanSupplier cancelled)
+	{
+		List<JEP> candidates = facetIndex.select(query);
+
+		String text = query.getText().toLowerCase();
+
+		List<JEP> hits = text.isEmpty() ? candidates : searchJEPs(text, candidates, cancelled);
+
+		return facetIndex.count(hits);
+	}
+
+	/**
+	 * Like search but each word of the text may match any of its alternatives, see Vocabulary.expand.
+	 */
+	public FacetIndex.Result searchAny(FacetQuery query, Collection<List<String>> alternatives, BooleanSupplier cancelled)
+	{
+		List<JEP> candidates = facetIndex.select(query);
+
+		List<JEP> hits = new ArrayList<>();
+
+		for (JEP jep : candidates)
+		{
+			if (cancelled.getAsBoolean())
+			{
+				break;
+			}
+
+			String name = jep.getName().toLowerCase();
+
+			boolean matches = true;
+
+			for (List<String> words : alternatives)
+			{
+				boolean found = false;
+
+				for (String word : words)
+				{
+					if (name.contains(word) || bodyContains(jep, word))
+					{
+						found = true;
+						break;
+					}
+				}
+
+				if (!found)
+				{
+					matches = false;
+					break;
+				}
+			}
+
+			if (matches)
+			{
+				hits.add(jep);
+			}
+		}
+
+		return facetIndex.count(hits);
 	}
 
 	public List<JEP> searchJEPs(String searchLower)
+	{
+		return searchJEPs(searchLower, jepList, NEVER_CANCELLED);
+	}
+
+	/**
+	 * @param candidates JEPs to test, in the order results should be returned
+	 */
+	public List<JEP> searchJEPs(String searchLower, List<JEP> candidates, BooleanSupplier cancelled)
 	{
 		List<JEP> result = new ArrayList<>();
 
-		for (JEP jep : jepList)
+		for (JEP jep : candidates)
 		{
-			if (jep.getName().toLowerCase().contains(searchLower) || jep.getBody().toLowerCase().contains(searchLower))
+			if (cancelled.getAsBoolean())
+			{
+				// query was superseded, the caller discards the partial result
+				break;
+			}
+
+			if (jep.getName().toLowerCase().contains(searchLower) || bodyContains(jep, searchLower))
 			{
 				result.add(jep);
 			}
@@ -73,4 +622,4 @@ public class JEPLoader
 
 		return result;
 	}
-}
\ No newline at end of file
+}
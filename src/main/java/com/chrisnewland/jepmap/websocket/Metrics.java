@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server telemetry, recorded on the query path with lock-free counters and
+ * histograms and exported by MetricsServlet.
+ */
+public class Metrics
+{
+	private static final String PREFIX = "jepmap_";
+
+	public static final Histogram SEARCH_MICROS = new Histogram("search", "micros");
+	public static final Histogram SNIPPET_MICROS = new Histogram("snippet", "micros");
+	public static final Histogram ENCODE_MICROS = new Histogram("encode", "micros");
+	public static final Histogram SEND_MICROS = new Histogram("send", "micros");
+	public static final Histogram HITS = new Histogram("hits", "count");
+	public static final Histogram RESPONSE_CHARS = new Histogram("response", "chars");
+	public static final Histogram CORRECTION_MICROS = new Histogram("correction", "micros");
+	public static final Histogram COMPLETION_NANOS = new Histogram("completion", "nanos");
+
+	private static final Histogram[] HISTOGRAMS = { SEARCH_MICROS, SNIPPET_MICROS, ENCODE_MICROS, SEND_MICROS, HITS, RESPONSE_CHARS,
+			CORRECTION_MICROS, COMPLETION_NANOS };
+
+	private static final LongAdder queries = new LongAdder();
+	private static final LongAdder rejected = new LongAdder();
+	private static final LongAdder superseded = new LongAdder();
+	private static final LongAdder patternTimeouts = new LongAdder();
+	private static final LongAdder reloads = new LongAdder();
+	private static final LongAdder events = new LongAdder();
+
+	private static final AtomicLong lastReloadMillis = new AtomicLong();
+	private static final AtomicLong lastReloadDurationMillis = new AtomicLong();
+
+	private static final Map<String, CacheCounter> caches = new ConcurrentHashMap<>();
+
+	private static final RateMeter queryRate = new RateMeter();
+
+	private Metrics()
+	{
+	}
+
+	private static class CacheCounter
+	{
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+		double getRatio()
+		{
+			long h = hits.sum();
+			long total = h + misses.sum();
+
+			return (total == 0) ? 0 : (double) h / total;
+		}
+	}
+
+	/**
+	 * Counts events in a ring of one-second slots so the recent rate is
+	 * available without any background thread.
+	 */
+	private static class RateMeter
+	{
+		private static final int SECONDS = 60;
+
+		private final AtomicLongArray slotSecond = new AtomicLongArray(SECONDS);
+		private final AtomicLongArray slotCount = new AtomicLongArray(SECONDS);
+
+		void mark()
+		{
+			long second = System.currentTimeMillis() / 1000;
+
+			int slot = (int) (second % SECONDS);
+
+			long slotTime = slotSecond.get(slot);
+
+			if (slotTime != second && slotSecond.compareAndSet(slot, slotTime, second))
+			{
+				slotCount.set(slot, 0);
+			}
+
+			slotCount.incrementAndGet(slot);
+		}
+
+		/**
+		 * @return events per second averaged over the last full minute
+		 */
+		double getRate()
+		{
+			long now = System.currentTimeMillis() / 1000;
+
+			long total = 0;
+
+			for (int i = 0; i < SECONDS; i++)
+			{
+				long second = slotSecond.get(i);
+
+				if (second != now && now - second <= SECONDS)
+				{
+					total += slotCount.get(i);
+				}
+			}
+
+			return (double) total / (SECONDS - 1);
+		}
+	}
+
+	public static void recordQuery()
+	{
+		queries.increment();
+		queryRate.mark();
+	}
+
+	public static void recordRejected()
+	{
+		rejected.increment();
+	}
+
+	public static void recordSuperseded()
+	{
+		superseded.increment();
+	}
+
+	public static void recordPatternTimeout()
+	{
+		patternTimeouts.increment();
+	}
+
+	public static void recordReload(long durationMillis)
+	{
+		reloads.increment();
+		lastReloadMillis.set(System.currentTimeMillis());
+		lastReloadDurationMillis.set(durationMillis);
+	}
+
+	public static void recordEvents(int count)
+	{
+		events.add(count);
+	}
+
+	public static void recordCache(String cache, boolean hit)
+	{
+		CacheCounter counter = caches.computeIfAbsent(cache, k -> new CacheCounter());
+
+		if (hit)
+		{
+			counter.hits.increment();
+		}
+		else
+		{
+			counter.misses.increment();
+		}
+	}
+
+	public static void writeJSON(ResponseWriter writer) throws IOException
+	{
+		writer.beginObject();
+
+		writer.name("queries").value(queries.sum());
+		writer.name("queryRatePerSecond").value(queryRate.getRate());
+		writer.name("rejected").value(rejected.sum());
+		writer.name("superseded").value(superseded.sum());
+		writer.name("patternTimeouts").value(patternTimeouts.sum());
+		writer.name("activeSessions").value(WebsocketServerEndpoint.getActiveSessions());
+		writer.name("reloads").value(reloads.sum());
+		writer.name("lastReloadMillis").value(lastReloadMillis.get());
+		writer.name("lastReloadDurationMillis").value(lastReloadDurationMillis.get());
+		writer.name("subscriptions").value(FullJEPServer.getSubscriptions().size());
+		writer.name("events").value(events.sum());
+
+		writer.name("histograms").beginObject();
+
+		for (Histogram histogram : HISTOGRAMS)
+		{
+			writer.name(histogram.getName()).beginObject();
+			writer.name("unit").value(histogram.getUnit());
+			writer.name("count").value(histogram.getCount());
+			writer.name("sum").value(histogram.getSum());
+			writer.name("p50").value(histogram.getQuantile(0.50));
+			writer.name("p90").value(histogram.getQuantile(0.90));
+			writer.name("p99").value(histogram.getQuantile(0.99));
+			writer.name("p999").value(histogram.getQuantile(0.999));
+			writer.name("max").value(histogram.getMax());
+			writer.endObject();
+		}
+
+		writer.endObject();
+
+		writer.name("caches").beginObject();
+
+		for (Map.Entry<String, CacheCounter> entry : caches.entrySet())
+		{
+			CacheCounter counter = entry.getValue();
+
+			writer.name(entry.getKey()).beginObject();
+			writer.name("hits").value(counter.hits.sum());
+			writer.name("misses").value(counter.misses.sum());
+			writer.name("ratio").value(counter.getRatio());
+			writer.endObject();
+		}
+
+		writer.endObject();
+
+		writer.endObject();
+	}
+
+	public static String toPrometheus()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		counter(builder, "queries_total", queries.sum());
+		counter(builder, "rejected_total", rejected.sum());
+		counter(builder, "superseded_total", superseded.sum());
+		counter(builder, "pattern_timeouts_total", patternTimeouts.sum());
+		counter(builder, "reloads_total", reloads.sum());
+		counter(builder, "events_total", events.sum());
+
+		gauge(builder, "query_rate_per_second", queryRate.getRate());
+		gauge(builder, "active_sessions", WebsocketServerEndpoint.getActiveSessions());
+		gauge(builder, "last_reload_duration_millis", lastReloadDurationMillis.get());
+		gauge(builder, "subscriptions", FullJEPServer.getSubscriptions().size());
+
+		for (Histogram histogram : HISTOGRAMS)
+		{
+			histogram.writePrometheus(builder, PREFIX);
+		}
+
+		builder.append("# TYPE ").append(PREFIX).append("cache_hits_total counter\n");
+
+		for (Map.Entry<String, CacheCounter> entry : caches.entrySet())
+		{
+			builder.append(PREFIX).append("cache_hits_total{cache=\"").append(entry.getKey()).append("\"} ")
+				   .append(entry.getValue().hits.sum()).append('\n');
+		}
+
+		builder.append("# TYPE ").append(PREFIX).append("cache_misses_total counter\n");
+
+		for (Map.Entry<String, CacheCounter> entry : caches.entrySet())
+		{
+			builder.append(PREFIX).append("cache_misses_total{cache=\"").append(entry.getKey()).append("\"} ")
+				   .append(entry.getValue().misses.sum()).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	private static void counter(StringBuilder builder, String name, long value)
+	{
+		builder.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+		builder.append(PREFIX).append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder builder, String name, double value)
+	{
+		builder.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+		builder.append(PREFIX).append(name).append(' ').append(value).append('\n');
+	}
+}
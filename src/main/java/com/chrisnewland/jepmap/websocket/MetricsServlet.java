@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+
+/**
+ * GET /metrics returns JSON, GET /metrics?format=prometheus returns the Prometheus text format.
+ */
+public class MetricsServlet extends HttpServlet
+{
+	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		response.setHeader("Cache-Control", "no-store");
+
+		if ("prometheus".equals(request.getParameter("format")))
+		{
+			response.setContentType("text/plain;version=0.0.4;charset=utf-8");
+			response.getWriter().write(Metrics.toPrometheus());
+		}
+		else
+		{
+			response.setContentType("application/json;charset=utf-8");
+
+			try (ResponseWriter writer = new ResponseWriter(ApiServlet.toWriter(response.getWriter())))
+			{
+				Metrics.writeJSON(writer);
+				writer.finish();
+			}
+		}
+	}
+}
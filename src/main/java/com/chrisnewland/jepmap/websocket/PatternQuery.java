@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A phrase or regex query compiled once and shared by every segment of a scan.
+ * Where the query implies a literal that any match must contain, texts without
+ * it are rejected by a plain indexOf before the pattern is run.
+ */
+public class PatternQuery
+{
+	private static final String REGEX_META = ".[]()?*+{}^$|";
+
+	private static final int MIN_LITERAL_LENGTH = 2;
+
+	private final Pattern pattern;
+
+	private final String literal;
+
+	private final boolean literalIgnoreCase;
+
+	private PatternQuery(Pattern pattern, String literal, boolean literalIgnoreCase)
+	{
+		this.pattern = pattern;
+		this.literal = literal;
+		this.literalIgnoreCase = literalIgnoreCase;
+	}
+
+	/**
+	 * Words separated by any run of whitespace, case-insensitive.
+	 * The longest word is the prefilter as it is the most selective.
+	 */
+	public static PatternQuery phrase(String phrase)
+	{
+		String[] words = phrase.trim().split("\\s+");
+
+		StringBuilder regex = new StringBuilder();
+
+		String longest = "";
+
+		for (String word : words)
+		{
+			if (regex.length() > 0)
+			{
+				regex.append("\\s+");
+			}
+
+			regex.append(Pattern.quote(word));
+
+			if (word.length() > longest.length())
+			{
+				longest = word;
+			}
+		}
+
+		Pattern pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+		return new PatternQuery(pattern, longest.length() >= MIN_LITERAL_LENGTH ? longest.toLowerCase() : null, true);
+	}
+
+	/**
+	 * Case-sensitive unless the pattern says otherwise with an inline (?i) flag.
+	 *
+	 * @throws PatternSyntaxException if the regex is invalid
+	 */
+	public static PatternQuery regex(String regex)
+	{
+		Pattern pattern = Pattern.compile(regex);
+
+		return new PatternQuery(pattern, getLiteralPrefix(regex), false);
+	}
+
+	public Pattern getPattern()
+	{
+		return pattern;
+	}
+
+	public String getLiteral()
+	{
+		return literal;
+	}
+
+	/**
+	 * @return false only if the text cannot contain a match
+	 */
+	public boolean mayMatch(String text)
+	{
+		if (literal == null)
+		{
+			return true;
+		}
+
+		return literalIgnoreCase ? ResultEncoder.indexOfIgnoreCase(text, literal, 0) != -1 : text.contains(literal);
+	}
+
+	/**
+	 * The run of literal characters every match must start with, e.g. "JEP 4" for "JEP 4\d\d"
+	 * and "-XX:+Use" for "-XX:\+Use\w+GC".
+	 *
+	 * @return the prefix or null if it is too short to be useful or the pattern has alternation
+	 */
+	static String getLiteralPrefix(String regex)
+	{
+		if (hasAlternation(regex))
+		{
+			return null;
+		}
+
+		StringBuilder prefix = new StringBuilder();
+
+		int length = regex.length();
+
+		int i = regex.startsWith("^") ? 1 : 0;
+
+		while (i < length)
+		{
+			char c = regex.charAt(i);
+
+			char literalChar;
+
+			int step;
+
+			if (c == '\\')
+			{
+				if (i + 1 >= length || Character.isLetterOrDigit(regex.charAt(i + 1)))
+				{
+					// character class, boundary, back reference or quoting
+					break;
+				}
+
+				literalChar = regex.charAt(i + 1);
+				step = 2;
+			}
+			else if (REGEX_META.indexOf(c) != -1)
+			{
+				break;
+			}
+			else
+			{
+				literalChar = c;
+				step = 1;
+			}
+
+			char next = (i + step < length) ? regex.charAt(i + step) : 0;
+
+			if (next == '?' || next == '*' || next == '{')
+			{
+				// the character may not be present
+				break;
+			}
+
+			prefix.append(literalChar);
+
+			if (next == '+')
+			{
+				// present but what follows need not be adjacent
+				break;
+			}
+
+			i += step;
+		}
+
+		return prefix.length() >= MIN_LITERAL_LENGTH ? prefix.toString() : null;
+	}
+
+	private static boolean hasAlternation(String regex)
+	{
+		boolean inClass = false;
+
+		for (int i = 0; i < regex.length(); i++)
+		{
+			char c = regex.charAt(i);
+
+			if (c == '\\')
+			{
+				i++;
+			}
+			else if (c == '[')
+			{
+				inClass = true;
+			}
+			else if (c == ']')
+			{
+				inClass = false;
+			}
+			else if (c == '|' && !inClass)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+
+/**
+ * Runs phrase and regex queries over the corpus split into segments scanned in parallel on a ForkJoinPool.
+ * <p>
+ * Each query has a time budget. Pattern matching reads the text through a CharSequence
+ * that checks the budget and the cancellation flag every few thousand characters, so even a
+ * catastrophically backtracking pattern stops soon after the budget is spent.
+ * <p>
+ * Snippet positions are collected during the scan so encoding never runs the pattern again.
+ */
+public class PatternSearcher
+{
+	private static final int SEGMENTS_PER_THREAD = 4;
+
+	private static final int MIN_SEGMENT_SIZE = 8;
+
+	private static final int CHECK_INTERVAL = 4096;
+
+	private static final int[] NO_POSITIONS = new int[0];
+
+	private final ForkJoinPool pool;
+
+	private final long budgetMillis;
+
+	public static class Result
+	{
+		private final List<JEP> jeps;
+
+		private final Map<Integer, int[]> matchStarts;
+
+		private final boolean timedOut;
+
+		Result(List<JEP> jeps, Map<Integer, int[]> matchStarts, boolean timedOut)
+		{
+			this.jeps = jeps;
+			this.matchStarts = matchStarts;
+			this.timedOut = timedOut;
+		}
+
+		/**
+		 * @return matching JEPs in number order, empty if the scan timed out
+		 */
+		public List<JEP> getJEPs()
+		{
+			return jeps;
+		}
+
+		public boolean isTimedOut()
+		{
+			return timedOut;
+		}
+
+		/**
+		 * @return a locator over the body match positions recorded during the scan
+		 */
+		public ResultEncoder.MatchLocator getLocator()
+		{
+			return new ResultEncoder.MatchLocator()
+			{
+				@Override public int indexOf(JEP jep, String body, int fromIndex)
+				{
+					int[] starts = matchStarts.get(jep.getNumber());
+
+					if (starts == null)
+					{
+						return -1;
+					}
+
+					int index = Arrays.binarySearch(starts, fromIndex);
+
+					if (index < 0)
+					{
+						index = -index - 1;
+					}
+
+					return (index < starts.length) ? starts[index] : -1;
+				}
+			};
+		}
+	}
+
+	private static class ScanAbortedException extends RuntimeException
+	{
+		ScanAbortedException()
+		{
+			super("scan aborted", null, false, false);
+		}
+	}
+
+	/**
+	 * Shared by every segment of one scan.
+	 */
+	private static class ScanControl
+	{
+		private final long deadlineNanos;
+
+		private final BooleanSupplier cancelled;
+
+		private volatile boolean stopped = false;
+
+		private volatile boolean timedOut = false;
+
+		ScanControl(long budgetMillis, BooleanSupplier cancelled)
+		{
+			this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+			this.cancelled = cancelled;
+		}
+
+		boolean shouldStop()
+		{
+			if (stopped)
+			{
+				return true;
+			}
+
+			if (System.nanoTime() - deadlineNanos > 0)
+			{
+				timedOut = true;
+				stopped = true;
+			}
+			else if (cancelled.getAsBoolean())
+			{
+				stopped = true;
+			}
+
+			return stopped;
+		}
+
+		void stop()
+		{
+			stopped = true;
+		}
+	}
+
+	/**
+	 * Text seen by the regex engine, checking the scan budget as it is read.
+	 */
+	private static class BudgetedCharSequence implements CharSequence
+	{
+		private final String text;
+
+		private final ScanControl control;
+
+		private int reads = 0;
+
+		BudgetedCharSequence(String text, ScanControl control)
+		{
+			this.text = text;
+			this.control = control;
+		}
+
+		@Override public int length()
+		{
+			return text.length();
+		}
+
+		@Override public char charAt(int index)
+		{
+			if (++reads == CHECK_INTERVAL)
+			{
+				reads = 0;
+
+				if (control.shouldStop())
+				{
+					throw new ScanAbortedException();
+				}
+			}
+
+			return text.charAt(index);
+		}
+
+		@Override public CharSequence subSequence(int start, int end)
+		{
+			return new BudgetedCharSequence(text.substring(start, end), control);
+		}
+
+		@Override public String toString()
+		{
+			return text;
+		}
+	}
+
+	private static class SegmentTask extends RecursiveAction
+	{
+		private final JEPLoader loader;
+
+		private final List<JEP> jeps;
+
+		private final PatternQuery query;
+
+		private final ScanControl control;
+
+		private final int[][] matches;
+
+		private final int from;
+
+		private final int to;
+
+		private final int segmentSize;
+
+		SegmentTask(JEPLoader loader, List<JEP> jeps, PatternQuery query, ScanControl control, int[][] matches, int from, int to,
+				int segmentSize)
+		{
+			this.loader = loader;
+			this.jeps = jeps;
+			this.query = query;
+			this.control = control;
+			this.matches = matches;
+			this.from = from;
+			this.to = to;
+			this.segmentSize = segmentSize;
+		}
+
+		@Override protected void compute()
+		{
+			if (to - from > segmentSize)
+			{
+				int mid = (from + to) >>> 1;
+
+				invokeAll(new SegmentTask(loader, jeps, query, control, matches, from, mid, segmentSize),
+						new SegmentTask(loader, jeps, query, control, matches, mid, to, segmentSize));
+			}
+			else
+			{
+				scan();
+			}
+		}
+
+		private void scan()
+		{
+			try
+			{
+				for (int i = from; i < to; i++)
+				{
+					if (control.shouldStop())
+					{
+						return;
+					}
+
+					JEP jep = jeps.get(i);
+
+					String name = jep.getName();
+
+					boolean nameMatches = query.mayMatch(name) && query.getPattern().matcher(new BudgetedCharSequence(name, control)).find();
+
+					String body = loader.bodyMayMatch(jep, query) ? loader.scanBody(jep) : null;
+
+					int[] bodyStarts = (body != null && query.mayMatch(body)) ? findStarts(body) : NO_POSITIONS;
+
+					if (nameMatches || bodyStarts.length > 0)
+					{
+						matches[i] = bodyStarts;
+					}
+				}
+			}
+			catch (ScanAbortedException e)
+			{
+				// budget spent or query superseded
+			}
+		}
+
+		/**
+		 * Match positions spaced as ResultEncoder consumes them, one per snippet.
+		 */
+		private int[] findStarts(String body)
+		{
+			Matcher matcher = query.getPattern().matcher(new BudgetedCharSequence(body, control));
+
+			int[] starts = NO_POSITIONS;
+
+			int count = 0;
+
+			int pos = 0;
+
+			while (pos <= body.length() && matcher.find(pos))
+			{
+				if (count == starts.length)
+				{
+					starts = Arrays.copyOf(starts, Math.max(8, count * 2));
+				}
+
+				starts[count++] = matcher.start();
+
+				pos = matcher.start() + ResultEncoder.SNIPPET_CONTEXT;
+			}
+
+			return (count == starts.length) ? starts : Arrays.copyOf(starts, count);
+		}
+	}
+
+	public PatternSearcher(int parallelism, long budgetMillis)
+	{
+		this.budgetMillis = budgetMillis;
+
+		this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory()
+		{
+			@Override public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+			{
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("jep-scan-" + thread.getPoolIndex());
+				return thread;
+			}
+		}, null, false);
+
+		System.out.println("PatternSearcher using " + parallelism + " scan threads, budget " + budgetMillis + "ms per query");
+	}
+
+	/**
+	 * Scans the given JEPs of the loader's corpus on the pool and waits for the result.
+	 * If the calling thread is interrupted the scan is stopped and the interrupt is restored.
+	 */
+	public Result search(JEPLoader loader, List<JEP> jeps, PatternQuery query, BooleanSupplier cancelled)
+	{
+		ScanControl control = new ScanControl(budgetMillis, cancelled);
+
+		int[][] matches = new int[jeps.size()][];
+
+		int segmentSize = Math.max(MIN_SEGMENT_SIZE, jeps.size() / (pool.getParallelism() * SEGMENTS_PER_THREAD));
+
+		ForkJoinTask<Void> task = pool.submit(new SegmentTask(loader, jeps, query, control, matches, 0, jeps.size(), segmentSize));
+
+		try
+		{
+			// segments check the deadline themselves, this only covers a task stuck behind other queries
+			task.get(budgetMillis * 2, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			control.stop();
+			Thread.currentThread().interrupt();
+		}
+		catch (TimeoutException e)
+		{
+			control.timedOut = true;
+			control.stop();
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException("Pattern scan failed", e.getCause());
+		}
+
+		if (control.timedOut)
+		{
+			return new Result(new ArrayList<JEP>(), new HashMap<Integer, int[]>(), true);
+		}
+
+		List<JEP> result = new ArrayList<>();
+
+		Map<Integer, int[]> matchStarts = new HashMap<>();
+
+		for (int i = 0; i < matches.length; i++)
+		{
+			if (matches[i] != null)
+			{
+				JEP jep = jeps.get(i);
+
+				result.add(jep);
+				matchStarts.put(jep.getNumber(), matches[i]);
+			}
+		}
+
+		return new Result(result, matchStarts, false);
+	}
+
+	public void shutdown()
+	{
+		pool.shutdownNow();
+	}
+}
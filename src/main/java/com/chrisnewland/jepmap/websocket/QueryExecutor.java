@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import org.eclipse.jetty.util.VirtualThreads;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs search queries away from the websocket container threads.
+ * Admission is bounded by a global permit count so a burst of typists
+ * queues at most maxQueries tasks rather than growing without limit.
+ */
+public class QueryExecutor
+{
+	private final Executor executor;
+
+	private final ExecutorService ownedExecutor;
+
+	private final Semaphore admission;
+
+	private final int maxQueries;
+
+	private final boolean virtualThreads;
+
+	public QueryExecutor(int threads, int maxQueries, boolean useVirtualThreads)
+	{
+		this.maxQueries = maxQueries;
+
+		this.admission = new Semaphore(maxQueries);
+
+		if (useVirtualThreads && VirtualThreads.areSupported())
+		{
+			this.executor = VirtualThreads.getDefaultVirtualThreadsExecutor();
+			this.ownedExecutor = null;
+			this.virtualThreads = true;
+		}
+		else
+		{
+			this.ownedExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "jep-query-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			this.executor = ownedExecutor;
+			this.virtualThreads = false;
+		}
+
+		System.out.println("QueryExecutor using " + (virtualThreads ? "virtual threads" : threads + " platform threads") + ", max " +
+				maxQueries + " queries in flight");
+	}
+
+	/**
+	 * @return the submitted task or null if the executor is at capacity
+	 */
+	public FutureTask<Void> trySubmit(Runnable query)
+	{
+		return trySubmit(query, null);
+	}
+
+	/**
+	 * @param onDone run once the task's thread is done with it, with its permit released, even if it was cancelled
+	 *               before it started, a cancelled query that is still running holds both until it stops
+	 * @return the submitted task or null if the executor is at capacity, in which case onDone is not run
+	 */
+	public FutureTask<Void> trySubmit(final Runnable query, final Runnable onDone)
+	{
+		if (!admission.tryAcquire())
+		{
+			return null;
+		}
+
+		FutureTask<Void> task = new FutureTask<Void>(query, null)
+		{
+			// release on exit from run() rather than in done() so a cancelled
+			// query still holds its permit until its thread has really finished
+			@Override public void run()
+			{
+				try
+				{
+					super.run();
+				}
+				finally
+				{
+					admission.release();
+
+					if (onDone != null)
+					{
+						onDone.run();
+					}
+				}
+			}
+		};
+
+		try
+		{
+			executor.execute(task);
+		}
+		catch (RuntimeException e)
+		{
+			admission.release();
+
+			if (onDone != null)
+			{
+				onDone.run();
+			}
+
+			throw e;
+		}
+
+		return task;
+	}
+
+	public int getInFlight()
+	{
+		return maxQueries - admission.availablePermits();
+	}
+
+	public boolean isVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	public void shutdown()
+	{
+		if (ownedExecutor != null)
+		{
+			ownedExecutor.shutdownNow();
+		}
+	}
+}
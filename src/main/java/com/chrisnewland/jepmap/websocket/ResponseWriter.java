@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes a JSON response straight into a pooled buffer and hands it to a
+ * FragmentSink each time the buffer fills, so a response is never held in
+ * memory as a tree of JSON objects or as one complete String.
+ * Not thread safe, one writer per response.
+ */
+public class ResponseWriter implements AutoCloseable
+{
+	public interface FragmentSink
+	{
+		void sendFragment(String fragment, boolean last) throws IOException;
+	}
+
+	public static final int DEFAULT_FRAGMENT_SIZE = 8192;
+
+	private static final int MAX_DEPTH = 16;
+
+	private static final ArrayBlockingQueue<StringBuilder> POOL = new ArrayBlockingQueue<>(64);
+
+	private final FragmentSink sink;
+
+	private final int fragmentSize;
+
+	private StringBuilder buffer;
+
+	// per nesting level, true until the first member has been written
+	private final boolean[] first = new boolean[MAX_DEPTH];
+
+	private int depth = 0;
+
+	private boolean afterName = false;
+
+	private boolean flushed = false;
+
+	private boolean finished = false;
+
+	private long charsWritten = 0;
+
+	private int fragments = 0;
+
+	public ResponseWriter(FragmentSink sink)
+	{
+		this(sink, DEFAULT_FRAGMENT_SIZE);
+	}
+
+	public ResponseWriter(FragmentSink sink, int fragmentSize)
+	{
+		this.sink = sink;
+		this.fragmentSize = fragmentSize;
+
+		StringBuilder pooled = POOL.poll();
+
+		this.buffer = (pooled != null) ? pooled : new StringBuilder(fragmentSize + fragmentSize / 4);
+
+		first[0] = true;
+	}
+
+	public ResponseWriter beginObject() throws IOException
+	{
+		return open('{');
+	}
+
+	public ResponseWriter endObject() throws IOException
+	{
+		return close('}');
+	}
+
+	public ResponseWriter beginArray() throws IOException
+	{
+		return open('[');
+	}
+
+	public ResponseWriter endArray() throws IOException
+	{
+		return close(']');
+	}
+
+	public ResponseWriter name(String name) throws IOException
+	{
+		separator();
+
+		buffer.append('"');
+		escape(name, 0, name.length());
+		buffer.append("\":");
+
+		afterName = true;
+
+		return this;
+	}
+
+	public ResponseWriter value(String value) throws IOException
+	{
+		if (value == null)
+		{
+			separator();
+			buffer.append("null");
+		}
+		else
+		{
+			beginString();
+			appendEscaped(value, 0, value.length());
+			endString();
+		}
+
+		return this;
+	}
+
+	public ResponseWriter value(long value) throws IOException
+	{
+		separator();
+		buffer.append(value);
+		return maybeFlush();
+	}
+
+	public ResponseWriter value(double value) throws IOException
+	{
+		separator();
+
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{
+			buffer.append("null");
+		}
+		else
+		{
+			buffer.append(value);
+		}
+
+		return maybeFlush();
+	}
+
+	/**
+	 * Opens a string value whose content is supplied by appendRaw / appendEscaped calls.
+	 */
+	public ResponseWriter beginString() throws IOException
+	{
+		separator();
+		buffer.append('"');
+		return this;
+	}
+
+	public ResponseWriter endString() throws IOException
+	{
+		buffer.append('"');
+		return maybeFlush();
+	}
+
+	/**
+	 * Appends characters known not to need JSON escaping, such as fixed markup.
+	 */
+	public ResponseWriter appendRaw(String text) throws IOException
+	{
+		buffer.append(text);
+		return maybeFlush();
+	}
+
+	public ResponseWriter appendEscaped(CharSequence text, int start, int end) throws IOException
+	{
+		escape(text, start, end);
+		return maybeFlush();
+	}
+
+	private ResponseWriter open(char c) throws IOException
+	{
+		separator();
+
+		buffer.append(c);
+
+		depth++;
+
+		if (depth >= MAX_DEPTH)
+		{
+			throw new IllegalStateException("JSON nested too deeply");
+		}
+
+		first[depth] = true;
+
+		return this;
+	}
+
+	private ResponseWriter close(char c) throws IOException
+	{
+		buffer.append(c);
+
+		depth--;
+
+		return maybeFlush();
+	}
+
+	private void separator()
+	{
+		if (afterName)
+		{
+			afterName = false;
+		}
+		else if (first[depth])
+		{
+			first[depth] = false;
+		}
+		else
+		{
+			buffer.append(',');
+		}
+	}
+
+	private void escape(CharSequence text, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			char c = text.charAt(i);
+
+			switch (c)
+			{
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '/':
+				// match org.json and never emit "</" inside a string
+				if (i > start && text.charAt(i - 1) == '<')
+				{
+					buffer.append("\\/");
+				}
+				else
+				{
+					buffer.append(c);
+				}
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100))
+				{
+					buffer.append("\\u");
+
+					String hex = Integer.toHexString(c);
+
+					for (int pad = hex.length(); pad < 4; pad++)
+					{
+						buffer.append('0');
+					}
+
+					buffer.append(hex);
+				}
+				else
+				{
+					buffer.append(c);
+				}
+			}
+		}
+	}
+
+	private ResponseWriter maybeFlush() throws IOException
+	{
+		if (buffer.length() >= fragmentSize)
+		{
+			send(false);
+		}
+
+		return this;
+	}
+
+	private void send(boolean last) throws IOException
+	{
+		charsWritten += buffer.length();
+		fragments++;
+
+		String fragment = buffer.toString();
+
+		buffer.setLength(0);
+
+		flushed = true;
+
+		sink.sendFragment(fragment, last);
+	}
+
+	/**
+	 * @return true if part of the response has already been handed to the sink,
+	 * after which the response must be completed rather than abandoned.
+	 */
+	public boolean isFlushed()
+	{
+		return flushed;
+	}
+
+	/**
+	 * Sends the remaining buffered content as the final fragment.
+	 */
+	public void finish() throws IOException
+	{
+		if (!finished)
+		{
+			finished = true;
+			send(true);
+		}
+	}
+
+	public long getCharsWritten()
+	{
+		return charsWritten;
+	}
+
+	public int getFragments()
+	{
+		return fragments;
+	}
+
+	/**
+	 * Returns the buffer to the pool. Anything not yet finished is discarded.
+	 */
+	@Override public void close()
+	{
+		if (buffer != null)
+		{
+			if (buffer.capacity() <= fragmentSize * 4)
+			{
+				buffer.setLength(0);
+				POOL.offer(buffer);
+			}
+
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Writes search hits with their body snippets to a ResponseWriter.
+ * Snippet text is copied from the body by index range so no per-snippet
+ * substrings or lower-cased copies of the body are created.
+ */
+public class ResultEncoder
+{
+	public static final int SNIPPET_CONTEXT = 80;
+
+	/**
+	 * Finds the next match in a JEP body that a snippet should be centred on.
+	 */
+	public interface MatchLocator
+	{
+		/**
+		 * @return the index of the first match at or after fromIndex or -1 if there is none
+		 */
+		int indexOf(JEP jep, String body, int fromIndex);
+	}
+
+	/**
+	 * Supplies JEP bodies, which may be stored off the JEP objects.
+	 */
+	public interface BodySource
+	{
+		String getBody(JEP jep);
+	}
+
+	public static final BodySource ON_HEAP = new BodySource()
+	{
+		@Override public String getBody(JEP jep)
+		{
+			return jep.getBody();
+		}
+	};
+
+	private final MatchLocator locator;
+
+	private final BodySource bodies;
+
+	// start/end pairs of the snippets for the JEP currently being encoded
+	private int[] ranges = new int[32];
+
+	private long snippetNanos = 0;
+
+	public ResultEncoder(String searchLower)
+	{
+		this(ignoringCase(searchLower));
+	}
+
+	public ResultEncoder(MatchLocator locator)
+	{
+		this(locator, ON_HEAP);
+	}
+
+	public ResultEncoder(MatchLocator locator, BodySource bodies)
+	{
+		this.locator = locator;
+		this.bodies = bodies;
+	}
+
+	public static MatchLocator ignoringCase(final String searchLower)
+	{
+		return new MatchLocator()
+		{
+			@Override public int indexOf(JEP jep, String body, int fromIndex)
+			{
+				return indexOfIgnoreCase(body, searchLower, fromIndex);
+			}
+		};
+	}
+
+	/**
+	 * Locates the earliest match of any of the words.
+	 */
+	public static MatchLocator ignoringCaseAny(final Collection<String> wordsLower)
+	{
+		return new MatchLocator()
+		{
+			@Override public int indexOf(JEP jep, String body, int fromIndex)
+			{
+				int first = -1;
+
+				for (String word : wordsLower)
+				{
+					int index = indexOfIgnoreCase(body, word, fromIndex);
+
+					if (index != -1 && (first == -1 || index < first))
+					{
+						first = index;
+					}
+				}
+
+				return first;
+			}
+		};
+	}
+
+	/**
+	 * @return false if cancelled part way through, in which case the array is closed early
+	 */
+	public boolean writeResults(ResponseWriter writer, List<JEP> jeps, BooleanSupplier cancelled) throws IOException
+	{
+		writer.beginArray();
+
+		for (JEP jep : jeps)
+		{
+			if (cancelled.getAsBoolean())
+			{
+				writer.endArray();
+				return false;
+			}
+
+			writeResult(writer, jep);
+		}
+
+		writer.endArray();
+
+		return true;
+	}
+
+	public void writeResult(ResponseWriter writer, JEP jep) throws IOException
+	{
+		String body = bodies.getBody(jep);
+
+		long start = System.nanoTime();
+
+		int rangeCount = findSnippets(jep, body);
+
+		snippetNanos += System.nanoTime() - start;
+
+		if (rangeCount == -1)
+		{
+			return;
+		}
+
+		writer.beginObject();
+		writer.name("number").value(jep.getNumber());
+		writer.name("name").value(jep.getName());
+		writer.name("snippet").beginString().appendRaw("<ul>");
+
+		for (int i = 0; i < rangeCount; i++)
+		{
+			writer.appendRaw("<li>...");
+			writer.appendEscaped(body, ranges[i * 2], ranges[i * 2 + 1]);
+			writer.appendRaw("...<\\/li>");
+		}
+
+		writer.appendRaw("<\\/ul>").endString();
+		writer.endObject();
+	}
+
+	/**
+	 * @return time spent locating snippets, excluding the time spent encoding them
+	 */
+	public long getSnippetNanos()
+	{
+		return snippetNanos;
+	}
+
+	/**
+	 * Fills ranges with the snippet boundaries, each trimmed to whole words.
+	 *
+	 * @return the number of snippets or -1 if a snippet has no word boundary and the JEP should be skipped
+	 */
+	private int findSnippets(JEP jep, String body)
+	{
+		int count = 0;
+
+		int pos = locator.indexOf(jep, body, 0);
+
+		do
+		{
+			int from = Math.max(0, pos - SNIPPET_CONTEXT);
+			int to = Math.min(pos + SNIPPET_CONTEXT, body.length());
+
+			int firstSpace = body.indexOf(' ', from);
+			int lastSpace = body.lastIndexOf(' ', to - 1);
+
+			if (firstSpace == -1 || firstSpace >= to || lastSpace < from || firstSpace == lastSpace)
+			{
+				return -1;
+			}
+
+			if ((count + 1) * 2 > ranges.length)
+			{
+				ranges = Arrays.copyOf(ranges, ranges.length * 2);
+			}
+
+			ranges[count * 2] = firstSpace + 1;
+			ranges[count * 2 + 1] = lastSpace;
+
+			count++;
+
+			pos = locator.indexOf(jep, body, pos + SNIPPET_CONTEXT);
+
+		} while (pos != -1);
+
+		return count;
+	}
+
+	public static int indexOfIgnoreCase(String text, String searchLower, int fromIndex)
+	{
+		int length = searchLower.length();
+
+		if (length == 0)
+		{
+			return -1;
+		}
+
+		char firstLower = searchLower.charAt(0);
+		char firstUpper = Character.toUpperCase(firstLower);
+
+		int last = text.length() - length;
+
+		for (int i = Math.max(0, fromIndex); i <= last; i++)
+		{
+			char c = text.charAt(i);
+
+			if ((c == firstLower || c == firstUpper || Character.toLowerCase(c) == firstLower) && text.regionMatches(true, i, searchLower, 0,
+					length))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A message received on /fulltext.
+ * Plain text messages are legacy searches that return every match as a JSON array.
+ * JSON object messages of the form {"q":"text","limit":20} or {"cursor":"..."}
+ * return a page of results with the total hit count and a cursor for the next page.
+ * An optional "mode" of "phrase" or "regex" matches q as a whitespace tolerant
+ * phrase or as a java.util.regex pattern instead of a case-insensitive substring.
+ * A "mode" of "fuzzy" matches each word, or the vocabulary terms nearest to a misspelt
+ * word, and the first page lists the corrections made (see Vocabulary).
+ * In every mode q may contain facet filters (see FacetQuery) and the first page
+ * carries per-facet counts of the hits.
+ * <p>
+ * {"subscribe":{"jep":400}}, {"subscribe":{"project":"loom"}} or {"subscribe":{"q":"status:candidate vector"}}
+ * asks for change events when a corpus reload touches a matching JEP (see SubscriptionIndex)
+ * and {"unsubscribe":"id"} cancels one.
+ * <p>
+ * {"complete":"virt","limit":8} asks for the best completions of a prefix (see Autocompleter).
+ * <p>
+ * {"similar":400} asks for the JEPs most alike in text to a JEP (see SimilarJEPs).
+ */
+public class SearchRequest
+{
+	public enum Mode
+	{
+		TEXT, PHRASE, REGEX, FUZZY
+	}
+
+	public static final int DEFAULT_LIMIT = 20;
+
+	public static final int MAX_LIMIT = 100;
+
+	private final String query;
+
+	private final String search;
+
+	private final Mode mode;
+
+	private final int limit;
+
+	private final String cursor;
+
+	private final boolean paged;
+
+	// set only by the factory of the request kind they belong to
+
+	private SubscriptionIndex.Type subscribeType;
+
+	private String subscribeKey;
+
+	private String unsubscribe;
+
+	private String complete;
+
+	private String similar;
+
+	private SearchRequest(String query, Mode mode, int limit, String cursor, boolean paged)
+	{
+		this.query = query;
+		this.search = query.toLowerCase();
+		this.mode = mode;
+		this.limit = limit;
+		this.cursor = cursor;
+		this.paged = paged;
+	}
+
+	/**
+	 * @param type what to watch, null if the message did not say
+	 */
+	public static SearchRequest subscribe(SubscriptionIndex.Type type, String key)
+	{
+		SearchRequest request = new SearchRequest("", Mode.TEXT, 0, null, false);
+
+		request.subscribeType = type;
+		request.subscribeKey = key;
+
+		return request;
+	}
+
+	public static SearchRequest unsubscribe(String id)
+	{
+		SearchRequest request = new SearchRequest("", Mode.TEXT, 0, null, false);
+
+		request.unsubscribe = id;
+
+		return request;
+	}
+
+	public static SearchRequest complete(String prefix, int limit)
+	{
+		SearchRequest request = new SearchRequest("", Mode.TEXT, limit, null, false);
+
+		request.complete = prefix;
+
+		return request;
+	}
+
+	public static SearchRequest similar(String number)
+	{
+		SearchRequest request = new SearchRequest("", Mode.TEXT, 0, null, false);
+
+		request.similar = number;
+
+		return request;
+	}
+
+	public static SearchRequest parse(String message)
+	{
+		String trimmed = message.trim();
+
+		if (trimmed.startsWith("{"))
+		{
+			try
+			{
+				JSONObject jsonObject = new JSONObject(trimmed);
+
+				JSONObject subscribe = jsonObject.optJSONObject("subscribe");
+
+				if (subscribe != null)
+				{
+					return parseSubscribe(subscribe);
+				}
+
+				if (jsonObject.has("unsubscribe"))
+				{
+					return unsubscribe(jsonObject.get("unsubscribe").toString());
+				}
+
+				if (jsonObject.has("complete"))
+				{
+					int limit = Math.max(1, Math.min(jsonObject.optInt("limit", Autocompleter.TOP_K), Autocompleter.TOP_K));
+
+					return complete(jsonObject.get("complete").toString(), limit);
+				}
+
+				if (jsonObject.has("similar"))
+				{
+					return similar(jsonObject.get("similar").toString());
+				}
+
+				int limit = jsonObject.optInt("limit", DEFAULT_LIMIT);
+
+				limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+
+				Mode mode = parseMode(jsonObject.optString("mode", ""));
+
+				return new SearchRequest(jsonObject.optString("q", "").trim(), mode, limit, jsonObject.optString("cursor", null), true);
+			}
+			catch (JSONException e)
+			{
+				// not a protocol message, treat as a search for the literal text
+			}
+		}
+
+		return new SearchRequest(trimmed, Mode.TEXT, Integer.MAX_VALUE, null, false);
+	}
+
+	/**
+	 * @return a subscription request, with no type if the message names none of jep, project or q
+	 */
+	private static SearchRequest parseSubscribe(JSONObject subscribe)
+	{
+		SubscriptionIndex.Type type = null;
+
+		String key = "";
+
+		if (subscribe.has("jep"))
+		{
+			type = SubscriptionIndex.Type.JEP;
+			key = subscribe.get("jep").toString();
+		}
+		else if (subscribe.has("project"))
+		{
+			type = SubscriptionIndex.Type.PROJECT;
+			key = subscribe.get("project").toString();
+		}
+		else if (subscribe.has("q"))
+		{
+			type = SubscriptionIndex.Type.QUERY;
+			key = subscribe.get("q").toString();
+		}
+
+		return subscribe(type, key);
+	}
+
+	private static Mode parseMode(String mode)
+	{
+		for (Mode value : Mode.values())
+		{
+			if (value.name().equalsIgnoreCase(mode))
+			{
+				return value;
+			}
+		}
+
+		// absent or unknown modes search as text
+		return Mode.TEXT;
+	}
+
+	/**
+	 * @return the query as sent, used for phrase and regex modes
+	 */
+	public String getQuery()
+	{
+		return query;
+	}
+
+	/**
+	 * @return the lower cased query, used for text mode
+	 */
+	public String getSearch()
+	{
+		return search;
+	}
+
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	public int getLimit()
+	{
+		return limit;
+	}
+
+	public String getCursor()
+	{
+		return cursor;
+	}
+
+	public boolean isPaged()
+	{
+		return paged;
+	}
+
+	public boolean isNextPage()
+	{
+		return cursor != null;
+	}
+
+	public boolean isSubscribe()
+	{
+		return subscribeKey != null;
+	}
+
+	/**
+	 * @return what to watch, null if the subscribe message did not say
+	 */
+	public SubscriptionIndex.Type getSubscribeType()
+	{
+		return subscribeType;
+	}
+
+	public String getSubscribeKey()
+	{
+		return subscribeKey;
+	}
+
+	/**
+	 * @return the id of the subscription to cancel or null
+	 */
+	public String getUnsubscribe()
+	{
+		return unsubscribe;
+	}
+
+	/**
+	 * @return the prefix to complete or null
+	 */
+	public String getComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * @return the number of the JEP to find similar JEPs for, as sent, or null
+	 */
+	public String getSimilar()
+	{
+		return similar;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runtime settings for FullJEPServer.
+ * Values come from the built-in defaults, then the properties file named by
+ * -Djepmap.config=path (if any), then -D system properties with the same keys.
+ */
+public class ServerConfig
+{
+	public static final String CONFIG_FILE_PROPERTY = "jepmap.config";
+
+	public enum ThreadPoolType
+	{
+		QUEUED, VIRTUAL
+	}
+
+	private final Properties properties = new Properties();
+
+	private final Map<String, String> effective = new LinkedHashMap<>();
+
+	private final String host;
+	private final int port;
+	private final ThreadPoolType threadPoolType;
+	private final int minThreads;
+	private final int maxThreads;
+	private final int maxConnections;
+	private final long idleTimeoutMillis;
+	private final int maxSessions;
+	private final long sessionIdleTimeoutMillis;
+	private final int maxTextMessageSize;
+	private final int maxBinaryMessageSize;
+	private final int maxSubscriptionsPerSession;
+	private final int eventThreads;
+	private final int maxQueuedMessages;
+	private final long sendTimeoutMillis;
+	private final long reloadIntervalSeconds;
+	private final int queryThreads;
+	private final int maxQueriesInFlight;
+	private final int maxQueriesPerSession;
+	private final boolean queryVirtualThreads;
+	private final int scanParallelism;
+	private final long patternBudgetMillis;
+	private final int fuzzyExpansions;
+	private final BodyStore.Storage bodyStorage;
+	private final String bodyFile;
+	private final int bodyCacheSize;
+
+	public static ServerConfig load()
+	{
+		Properties properties = new Properties();
+
+		String configFile = System.getProperty(CONFIG_FILE_PROPERTY);
+
+		if (configFile != null)
+		{
+			try (Reader reader = new FileReader(configFile))
+			{
+				properties.load(reader);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Couldn't load server config: " + configFile, e);
+			}
+		}
+
+		for (String key : System.getProperties().stringPropertyNames())
+		{
+			if (key.startsWith("jepmap.") && !CONFIG_FILE_PROPERTY.equals(key))
+			{
+				properties.setProperty(key, System.getProperty(key));
+			}
+		}
+
+		return new ServerConfig(properties);
+	}
+
+	public ServerConfig(Properties source)
+	{
+		properties.putAll(source);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		host = getString("jepmap.server.host", "127.0.0.1");
+		port = getInt("jepmap.server.port", 8080);
+		threadPoolType = ThreadPoolType.valueOf(getString("jepmap.server.threadPool", "queued").toUpperCase());
+		minThreads = getInt("jepmap.server.minThreads", 8);
+		maxThreads = getInt("jepmap.server.maxThreads", 200);
+		maxConnections = getInt("jepmap.server.maxConnections", 10_000);
+		idleTimeoutMillis = getLong("jepmap.server.idleTimeoutMillis", 30_000);
+
+		maxSessions = getInt("jepmap.websocket.maxSessions", 5_000);
+		sessionIdleTimeoutMillis = getLong("jepmap.websocket.idleTimeoutMillis", 120_000);
+		maxTextMessageSize = getInt("jepmap.websocket.maxTextMessageSize", 1024);
+		maxBinaryMessageSize = getInt("jepmap.websocket.maxBinaryMessageSize", 256);
+		maxSubscriptionsPerSession = getInt("jepmap.websocket.maxSubscriptions", 20);
+		eventThreads = getInt("jepmap.websocket.eventThreads", 2);
+		maxQueuedMessages = getInt("jepmap.websocket.maxQueuedMessages", 64);
+		sendTimeoutMillis = getLong("jepmap.websocket.sendTimeoutMillis", 10_000);
+
+		reloadIntervalSeconds = getLong("jepmap.reload.intervalSeconds", 30);
+
+		queryThreads = getInt("jepmap.query.threads", cores);
+		maxQueriesInFlight = getInt("jepmap.query.maxInFlight", cores * 16);
+		maxQueriesPerSession = getInt("jepmap.query.maxPerSession", 2);
+		queryVirtualThreads = getBoolean("jepmap.query.virtualThreads", true);
+		scanParallelism = getInt("jepmap.query.scanParallelism", cores);
+		patternBudgetMillis = getLong("jepmap.query.patternBudgetMillis", 1_000);
+		fuzzyExpansions = getInt("jepmap.query.fuzzyExpansions", 3);
+
+		bodyStorage = BodyStore.Storage.valueOf(getString("jepmap.bodies.storage", "heap").toUpperCase());
+		bodyFile = getString("jepmap.bodies.file", "");
+		bodyCacheSize = getInt("jepmap.bodies.cacheSize", 64);
+	}
+
+	private String getString(String key, String defaultValue)
+	{
+		String value = properties.getProperty(key, defaultValue).trim();
+
+		effective.put(key, value);
+
+		return value;
+	}
+
+	private int getInt(String key, int defaultValue)
+	{
+		String value = getString(key, Integer.toString(defaultValue));
+
+		try
+		{
+			return Integer.parseInt(value.replace("_", ""));
+		}
+		catch (NumberFormatException nfe)
+		{
+			throw new IllegalArgumentException("Invalid int for " + key + ": " + value);
+		}
+	}
+
+	private long getLong(String key, long defaultValue)
+	{
+		String value = getString(key, Long.toString(defaultValue));
+
+		try
+		{
+			return Long.parseLong(value.replace("_", ""));
+		}
+		catch (NumberFormatException nfe)
+		{
+			throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+		}
+	}
+
+	private boolean getBoolean(String key, boolean defaultValue)
+	{
+		return Boolean.parseBoolean(getString(key, Boolean.toString(defaultValue)));
+	}
+
+	/**
+	 * @return the effective settings, one key=value per line
+	 */
+	public String describe()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		for (Map.Entry<String, String> entry : effective.entrySet())
+		{
+			builder.append("  ").append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public ThreadPoolType getThreadPoolType()
+	{
+		return threadPoolType;
+	}
+
+	public int getMinThreads()
+	{
+		return minThreads;
+	}
+
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	public long getIdleTimeoutMillis()
+	{
+		return idleTimeoutMillis;
+	}
+
+	public int getMaxSessions()
+	{
+		return maxSessions;
+	}
+
+	public long getSessionIdleTimeoutMillis()
+	{
+		return sessionIdleTimeoutMillis;
+	}
+
+	public int getMaxTextMessageSize()
+	{
+		return maxTextMessageSize;
+	}
+
+	public int getMaxBinaryMessageSize()
+	{
+		return maxBinaryMessageSize;
+	}
+
+	public int getMaxSubscriptionsPerSession()
+	{
+		return maxSubscriptionsPerSession;
+	}
+
+	public int getEventThreads()
+	{
+		return eventThreads;
+	}
+
+	/**
+	 * @return how many messages may wait to be sent on a session before it is closed
+	 */
+	public int getMaxQueuedMessages()
+	{
+		return maxQueuedMessages;
+	}
+
+	/**
+	 * @return how long one send may take before the session is aborted
+	 */
+	public long getSendTimeoutMillis()
+	{
+		return sendTimeoutMillis;
+	}
+
+	/**
+	 * @return how often the JEP directory is checked for changes, 0 to never reload
+	 */
+	public long getReloadIntervalSeconds()
+	{
+		return reloadIntervalSeconds;
+	}
+
+	public int getQueryThreads()
+	{
+		return queryThreads;
+	}
+
+	public int getMaxQueriesInFlight()
+	{
+		return maxQueriesInFlight;
+	}
+
+	public int getMaxQueriesPerSession()
+	{
+		return maxQueriesPerSession;
+	}
+
+	public boolean isQueryVirtualThreads()
+	{
+		return queryVirtualThreads;
+	}
+
+	public int getScanParallelism()
+	{
+		return scanParallelism;
+	}
+
+	public long getPatternBudgetMillis()
+	{
+		return patternBudgetMillis;
+	}
+
+	/**
+	 * @return the most vocabulary terms a misspelt word is expanded to in fuzzy mode
+	 */
+	public int getFuzzyExpansions()
+	{
+		return fuzzyExpansions;
+	}
+
+	public BodyStore.Storage getBodyStorage()
+	{
+		return bodyStorage;
+	}
+
+	/**
+	 * @return the backing file for MAPPED body storage or null for a temporary file
+	 */
+	public Path getBodyFile()
+	{
+		return bodyFile.isEmpty() ? null : Paths.get(bodyFile);
+	}
+
+	public int getBodyCacheSize()
+	{
+		return bodyCacheSize;
+	}
+}
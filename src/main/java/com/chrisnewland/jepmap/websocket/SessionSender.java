@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import org.eclipse.jetty.websocket.jakarta.common.JakartaWebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+/**
+ * Orders everything sent on one websocket session so messages never interleave with the partial frames of a
+ * streamed response, without blocking the threads that send whole messages.
+ * <p>
+ * Whole messages are queued and sent asynchronously one after another. A streamed response takes the
+ * connection with acquire() once the message being sent has completed, and the messages queued meanwhile
+ * are sent when it calls release(). A session whose queue overflows is closed, its client is not reading.
+ * <p>
+ * Every send, whole or partial, is bounded by the send timeout after which the session is aborted,
+ * so a slow client cannot hold a query thread or leave a streamed message unterminated.
+ */
+public class SessionSender
+{
+	private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+	{
+		@Override public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "jep-send-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static
+	{
+		// nearly every timeout is cancelled so do not keep them queued until they are due
+		WATCHDOG.setRemoveOnCancelPolicy(true);
+	}
+
+	private final Session session;
+
+	private final int maxQueued;
+
+	private final long timeoutMillis;
+
+	private final Runnable onTimeout = new Runnable()
+	{
+		@Override public void run()
+		{
+			abort("send timed out");
+		}
+	};
+
+	// the timeout of the asynchronous send in progress
+	private volatile ScheduledFuture<?> asyncTimeout;
+
+	private final AtomicBoolean aborted = new AtomicBoolean();
+
+	// guards sending and is waited on by acquire()
+	private final ArrayDeque<String> queue = new ArrayDeque<>();
+
+	// an asynchronous send or a streamed response has the connection
+	private boolean sending = false;
+
+	private final SendHandler onSent = new SendHandler()
+	{
+		@Override public void onResult(SendResult sendResult)
+		{
+			asyncTimeout.cancel(false);
+
+			if (!sendResult.isOK())
+			{
+				System.out.println("Send failed: " + sendResult.getException());
+			}
+
+			sendNext();
+		}
+	};
+
+	public SessionSender(Session session, int maxQueued, long timeoutMillis)
+	{
+		this.session = session;
+		this.maxQueued = maxQueued;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Sends a whole message after any message or streamed response in progress, without waiting for it.
+	 */
+	public void send(String text)
+	{
+		boolean overflowed = false;
+
+		synchronized (queue)
+		{
+			if (!sending)
+			{
+				sending = true;
+			}
+			else if (queue.size() < maxQueued)
+			{
+				queue.add(text);
+				return;
+			}
+			else
+			{
+				overflowed = true;
+			}
+		}
+
+		// aborted outside the lock as it may complete the send in progress on this thread
+		if (overflowed)
+		{
+			abort(maxQueued + " messages waiting to be sent");
+		}
+		else
+		{
+			sendAsync(text);
+		}
+	}
+
+	private void sendAsync(String text)
+	{
+		asyncTimeout = WATCHDOG.schedule(onTimeout, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		session.getAsyncRemote().sendText(text, onSent);
+	}
+
+	private void sendNext()
+	{
+		String text;
+
+		synchronized (queue)
+		{
+			if (!session.isOpen())
+			{
+				queue.clear();
+			}
+
+			text = queue.poll();
+
+			if (text == null)
+			{
+				sending = false;
+				queue.notifyAll();
+				return;
+			}
+		}
+
+		sendAsync(text);
+	}
+
+	/**
+	 * Waits up to the send timeout for the connection so a streamed response can send partial frames,
+	 * it is held until release().
+	 *
+	 * @return false if the connection did not become free in time or the thread was interrupted while waiting
+	 */
+	public boolean acquire()
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		synchronized (queue)
+		{
+			while (sending)
+			{
+				long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0)
+				{
+					return false;
+				}
+
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait(queue, remaining);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+
+			sending = true;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Sends a partial frame of a streamed response while holding the connection,
+	 * aborting the session if the frame is not written within the send timeout.
+	 */
+	public void sendPartial(String fragment, boolean last) throws IOException
+	{
+		ScheduledFuture<?> timeout = WATCHDOG.schedule(onTimeout, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		try
+		{
+			session.getBasicRemote().sendText(fragment, last);
+		}
+		finally
+		{
+			timeout.cancel(false);
+		}
+	}
+
+	/**
+	 * Hands the connection back after a streamed response and sends any messages queued meanwhile.
+	 */
+	public void release()
+	{
+		sendNext();
+	}
+
+	/**
+	 * Drops the connection without a close handshake, for a client that has stopped reading.
+	 */
+	public void abort(String reason)
+	{
+		if (!aborted.compareAndSet(false, true))
+		{
+			// the sends failed by an abort report it again
+			return;
+		}
+
+		System.out.println("Closing session " + session.getId() + ": " + reason);
+
+		if (session instanceof JakartaWebSocketSession)
+		{
+			// a close frame would only queue behind the writes that are not completing
+			((JakartaWebSocketSession) session).abort();
+		}
+		else
+		{
+			try
+			{
+				session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, reason));
+			}
+			catch (IOException e)
+			{
+				System.out.println("Close failed: " + e.getMessage());
+			}
+		}
+	}
+}
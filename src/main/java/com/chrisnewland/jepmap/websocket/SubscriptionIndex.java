@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Websocket subscriptions to a JEP, a project or a query, indexed by JEP number, project id
+ * and query text so a reload only visits the subscriptions its changed JEPs can affect.
+ * Query subscriptions with the same text are evaluated once per changed JEP however many
+ * sessions hold them.
+ * <p>
+ * On a reload each listener receives all of its events in one message:
+ * {"events":[{"subscription":"1","change":"changed","number":400,"name":"...","status":"...",
+ * "release":"...","updated":"...","fields":["status"]}],"version":"..."}
+ * where change is added, changed or removed and query events also carry "matches",
+ * false when the change took the JEP out of the query's results.
+ */
+public class SubscriptionIndex
+{
+	public enum Type
+	{
+		JEP, PROJECT, QUERY
+	}
+
+	/**
+	 * Receives the event message for one session, called on an event thread.
+	 */
+	public interface Listener
+	{
+		void onEvents(String message);
+	}
+
+	public static class Subscription
+	{
+		private final String id;
+		private final Type type;
+		private final String key;
+		private final Listener listener;
+
+		Subscription(String id, Type type, String key, Listener listener)
+		{
+			this.id = id;
+			this.type = type;
+			this.key = key;
+			this.listener = listener;
+		}
+
+		public String getId()
+		{
+			return id;
+		}
+
+		public Type getType()
+		{
+			return type;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+	}
+
+	private static final String[] FIELDS = { "name", "status", "release", "created", "updated", "discussion", "issue", "related",
+			"depends", "projectIds" };
+
+	private final Map<Integer, Set<Subscription>> byJEP = new ConcurrentHashMap<>();
+
+	private final Map<String, Set<Subscription>> byProject = new ConcurrentHashMap<>();
+
+	private final Map<String, Set<Subscription>> byQuery = new ConcurrentHashMap<>();
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	private final ExecutorService eventExecutor;
+
+	public SubscriptionIndex(int eventThreads)
+	{
+		eventExecutor = Executors.newFixedThreadPool(eventThreads, new ThreadFactory()
+		{
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "jep-events-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param key a JEP number, a project id or query text
+	 * @throws IllegalArgumentException if a JEP key is not a number or a query is too short
+	 */
+	public Subscription subscribe(String id, Type type, String key, Listener listener)
+	{
+		String trimmed = key.trim();
+
+		Subscription subscription;
+
+		switch (type)
+		{
+		case JEP:
+			int number = Integer.parseInt(trimmed);
+			subscription = new Subscription(id, type, Integer.toString(number), listener);
+			byJEP.computeIfAbsent(number, k -> ConcurrentHashMap.newKeySet()).add(subscription);
+			break;
+		case PROJECT:
+			subscription = new Subscription(id, type, trimmed.toLowerCase(), listener);
+			byProject.computeIfAbsent(subscription.key, k -> ConcurrentHashMap.newKeySet()).add(subscription);
+			break;
+		default:
+			if (trimmed.length() < 3)
+			{
+				throw new IllegalArgumentException("Query must be at least 3 characters");
+			}
+
+			subscription = new Subscription(id, type, trimmed, listener);
+			byQuery.computeIfAbsent(trimmed, k -> ConcurrentHashMap.newKeySet()).add(subscription);
+			break;
+		}
+
+		count.incrementAndGet();
+
+		return subscription;
+	}
+
+	public void unsubscribe(Subscription subscription)
+	{
+		Map<?, Set<Subscription>> index;
+
+		Object key;
+
+		switch (subscription.type)
+		{
+		case JEP:
+			index = byJEP;
+			key = Integer.parseInt(subscription.key);
+			break;
+		case PROJECT:
+			index = byProject;
+			key = subscription.key;
+			break;
+		default:
+			index = byQuery;
+			key = subscription.key;
+			break;
+		}
+
+		Set<Subscription> subscriptions = index.get(key);
+
+		if (subscriptions != null && subscriptions.remove(subscription))
+		{
+			count.decrementAndGet();
+
+			if (subscriptions.isEmpty())
+			{
+				// a racing subscribe re-creates the set via computeIfAbsent
+				index.remove(key, subscriptions);
+			}
+		}
+	}
+
+	public int size()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Finds the JEPs that differ between the two corpora and queues the events for every affected
+	 * subscription, one message per listener.
+	 *
+	 * @return the number of events queued
+	 */
+	public int publish(JEPLoader before, JEPLoader after)
+	{
+		if (count.get() == 0)
+		{
+			return 0;
+		}
+
+		Set<Integer> changed = getChangedNumbers(before, after);
+
+		Map<String, FacetQuery> queries = new HashMap<>();
+
+		for (String text : byQuery.keySet())
+		{
+			queries.put(text, FacetQuery.parse(text));
+		}
+
+		Map<Listener, JSONArray> events = new LinkedHashMap<>();
+
+		int eventCount = 0;
+
+		for (int number : changed)
+		{
+			JEP oldJEP = before.getJEP(number);
+			JEP newJEP = after.getJEP(number);
+
+			String change = (oldJEP == null) ? "added" : (newJEP == null) ? "removed" : "changed";
+
+			JSONObject event = createEvent(number, change, (newJEP != null) ? newJEP : oldJEP, getChangedFields(before, oldJEP, after, newJEP));
+
+			Set<Subscription> direct = new HashSet<>();
+
+			Set<Subscription> jepSubscriptions = byJEP.get(number);
+
+			if (jepSubscriptions != null)
+			{
+				direct.addAll(jepSubscriptions);
+			}
+
+			Set<String> projectIds = new HashSet<>();
+
+			if (oldJEP != null)
+			{
+				projectIds.addAll(oldJEP.getProjectIds());
+			}
+
+			if (newJEP != null)
+			{
+				projectIds.addAll(newJEP.getProjectIds());
+			}
+
+			for (String projectId : projectIds)
+			{
+				Set<Subscription> projectSubscriptions = byProject.get(projectId);
+
+				if (projectSubscriptions != null)
+				{
+					direct.addAll(projectSubscriptions);
+				}
+			}
+
+			for (Subscription subscription : direct)
+			{
+				addEvent(events, subscription, event, null);
+				eventCount++;
+			}
+
+			for (Map.Entry<String, FacetQuery> query : queries.entrySet())
+			{
+				Set<Subscription> querySubscriptions = byQuery.get(query.getKey());
+
+				if (querySubscriptions == null)
+				{
+					continue;
+				}
+
+				boolean matchedBefore = (oldJEP != null) && matches(before, oldJEP, query.getValue());
+				boolean matchesAfter = (newJEP != null) && matches(after, newJEP, query.getValue());
+
+				if (matchedBefore || matchesAfter)
+				{
+					for (Subscription subscription : querySubscriptions)
+					{
+						addEvent(events, subscription, event, matchesAfter);
+						eventCount++;
+					}
+				}
+			}
+		}
+
+		final String version = after.getCorpusVersion();
+
+		for (final Map.Entry<Listener, JSONArray> entry : events.entrySet())
+		{
+			eventExecutor.execute(new Runnable()
+			{
+				@Override public void run()
+				{
+					JSONObject message = new JSONObject();
+
+					message.put("events", entry.getValue());
+					message.put("version", version);
+
+					entry.getKey().onEvents(message.toString());
+				}
+			});
+		}
+
+		System.out.println("Reload changed " + changed.size() + " JEPs, queued " + eventCount + " events for " + events.size() + " sessions");
+
+		return eventCount;
+	}
+
+	private static void addEvent(Map<Listener, JSONArray> events, Subscription subscription, JSONObject event, Boolean matches)
+	{
+		JSONObject copy = new JSONObject(event.toMap());
+
+		copy.put("subscription", subscription.id);
+
+		if (matches != null)
+		{
+			copy.put("matches", matches.booleanValue());
+		}
+
+		events.computeIfAbsent(subscription.listener, k -> new JSONArray()).put(copy);
+	}
+
+	private static JSONObject createEvent(int number, String change, JEP jep, List<String> fields)
+	{
+		JSONObject event = new JSONObject();
+
+		event.put("change", change);
+		event.put("number", number);
+		event.put("name", jep.getName());
+		event.put("status", jep.getStatus());
+		event.put("release", jep.getRelease());
+		event.put("updated", jep.getUpdated());
+		event.put("fields", fields);
+
+		return event;
+	}
+
+	private static boolean matches(JEPLoader loader, JEP jep, FacetQuery query)
+	{
+		if (!FacetIndex.matches(query, jep))
+		{
+			return false;
+		}
+
+		String text = query.getText().toLowerCase();
+
+		return text.isEmpty() || jep.getName().toLowerCase().contains(text) || loader.bodyContains(jep, text);
+	}
+
+	private static Set<Integer> getChangedNumbers(JEPLoader before, JEPLoader after)
+	{
+		Set<Integer> changed = new TreeSet<>();
+
+		for (JEP jep : after.getJEPs())
+		{
+			if (!Objects.equals(before.getContentHash(jep.getNumber()), after.getContentHash(jep.getNumber())))
+			{
+				changed.add(jep.getNumber());
+			}
+		}
+
+		for (JEP jep : before.getJEPs())
+		{
+			if (after.getJEP(jep.getNumber()) == null)
+			{
+				changed.add(jep.getNumber());
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * @return the names of the fields that differ, every field for an added or removed JEP
+	 */
+	private static List<String> getChangedFields(JEPLoader before, JEP oldJEP, JEPLoader after, JEP newJEP)
+	{
+		List<String> fields = new ArrayList<>();
+
+		for (String field : FIELDS)
+		{
+			if (oldJEP == null || newJEP == null || !Objects.equals(get(oldJEP, field), get(newJEP, field)))
+			{
+				fields.add(field);
+			}
+		}
+
+		if (oldJEP == null || newJEP == null || !JEPLoader.sameBody(before, oldJEP, after, newJEP))
+		{
+			fields.add("body");
+		}
+
+		return fields;
+	}
+
+	private static Object get(JEP jep, String field)
+	{
+		switch (field)
+		{
+		case "name":
+			return jep.getName();
+		case "status":
+			return jep.getStatus();
+		case "release":
+			return jep.getRelease();
+		case "created":
+			return jep.getCreated();
+		case "updated":
+			return jep.getUpdated();
+		case "discussion":
+			return jep.getDiscussion();
+		case "issue":
+			return jep.getIssue();
+		case "related":
+			return new HashSet<>(jep.getRelated());
+		case "depends":
+			return new HashSet<>(jep.getDepends());
+		default:
+			return new HashSet<>(jep.getProjectIds());
+		}
+	}
+
+	public void shutdown()
+	{
+		eventExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2021 Chris Newland.
+ * Licensed under https://github.com/chriswhocodes/JEPMap/blob/master/LICENSE
+ */
+package com.chrisnewland.jepmap.websocket;
+
+import com.chrisnewland.jepmap.JEP;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every term in the JEP names and bodies with the number of JEPs containing it, built once per corpus load.
+ * <p>
+ * Terms are held as a sorted array, which is an implicit trie: the terms below a prefix are a
+ * contiguous range. A bounded edit distance lookup walks it in order computing one row of the
+ * Damerau (optimal string alignment) distance table per character, reusing the rows of the
+ * prefix shared with the previous term and skipping the whole range below a prefix as soon as
+ * no cell of its row is within the bound. Only a small part of the vocabulary is ever visited.
+ */
+public class Vocabulary
+{
+	private static final int MAX_TERM_LENGTH = 40;
+
+	private final String[] terms;
+
+	private final int[] documentFrequency;
+
+	// sharedPrefix[i] is the length of the prefix common to terms[i] and terms[i + 1]
+	private final int[] sharedPrefix;
+
+	/**
+	 * A vocabulary term within the edit bound of a query word.
+	 */
+	public static class Candidate
+	{
+		private final String term;
+		private final int distance;
+		private final int frequency;
+
+		Candidate(String term, int distance, int frequency)
+		{
+			this.term = term;
+			this.distance = distance;
+			this.frequency = frequency;
+		}
+
+		public String getTerm()
+		{
+			return term;
+		}
+
+		public int getDistance()
+		{
+			return distance;
+		}
+
+		public int getFrequency()
+		{
+			return frequency;
+		}
+	}
+
+	private static final Comparator<Candidate> NEAREST_FIRST = new Comparator<Candidate>()
+	{
+		@Override public int compare(Candidate o1, Candidate o2)
+		{
+			int byDistance = Integer.compare(o1.distance, o2.distance);
+
+			if (byDistance != 0)
+			{
+				return byDistance;
+			}
+
+			int byFrequency = Integer.compare(o2.frequency, o1.frequency);
+
+			return (byFrequency != 0) ? byFrequency : o1.term.compareTo(o2.term);
+		}
+	};
+
+	public Vocabulary(List<JEP> jeps, ResultEncoder.BodySource bodies)
+	{
+		Map<String, int[]> counts = new HashMap<>();
+
+		for (int i = 0; i < jeps.size(); i++)
+		{
+			JEP jep = jeps.get(i);
+
+			addTerms(counts, jep.getName(), i);
+			addTerms(counts, bodies.getBody(jep), i);
+		}
+
+		terms = counts.keySet().toArray(new String[0]);
+
+		Arrays.sort(terms);
+
+		documentFrequency = new int[terms.length];
+
+		for (int i = 0; i < terms.length; i++)
+		{
+			documentFrequency[i] = counts.get(terms[i])[0];
+		}
+
+		sharedPrefix = new int[Math.max(terms.length - 1, 0)];
+
+		for (int i = 0; i < sharedPrefix.length; i++)
+		{
+			sharedPrefix[i] = commonPrefix(terms[i], terms[i + 1]);
+		}
+	}
+
+	/**
+	 * counts holds {documentFrequency, lastDocument} per term
+	 */
+	private static void addTerms(Map<String, int[]> counts, String text, int document)
+	{
+		if (text == null)
+		{
+			return;
+		}
+
+		for (String term : tokenise(text))
+		{
+			int[] count = counts.computeIfAbsent(term, k -> new int[] { 0, -1 });
+
+			if (count[1] != document)
+			{
+				count[0]++;
+				count[1] = document;
+			}
+		}
+	}
+
+	/**
+	 * @return the lower cased runs of letters and digits of 2 to 40 characters
+	 */
+	public static List<String> tokenise(String text)
+	{
+		List<String> tokens = new ArrayList<>();
+
+		int length = text.length();
+
+		int start = -1;
+
+		for (int i = 0; i <= length; i++)
+		{
+			boolean termChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+
+			if (termChar && start == -1)
+			{
+				start = i;
+			}
+			else if (!termChar && start != -1)
+			{
+				if (i - start > 1 && i - start <= MAX_TERM_LENGTH)
+				{
+					tokens.add(text.substring(start, i).toLowerCase());
+				}
+
+				start = -1;
+			}
+		}
+
+		return tokens;
+	}
+
+	private static int commonPrefix(String a, String b)
+	{
+		int length = Math.min(a.length(), b.length());
+
+		int i = 0;
+
+		while (i < length && a.charAt(i) == b.charAt(i))
+		{
+			i++;
+		}
+
+		return i;
+	}
+
+	public int size()
+	{
+		return terms.length;
+	}
+
+	/**
+	 * @return the term at the index in sorted order
+	 */
+	public String getTerm(int index)
+	{
+		return terms[index];
+	}
+
+	/**
+	 * @return the number of JEPs containing the term at the index in sorted order
+	 */
+	public int getFrequency(int index)
+	{
+		return documentFrequency[index];
+	}
+
+	/**
+	 * @return the number of JEPs containing the term, 0 if it is not in the vocabulary
+	 */
+	public int getFrequency(String term)
+	{
+		int index = Arrays.binarySearch(terms, term);
+
+		return (index >= 0) ? documentFrequency[index] : 0;
+	}
+
+	/**
+	 * The edit budget grows with the word: none below 4 characters, 1 up to 7, otherwise 2.
+	 */
+	public static int getMaxEdits(String word)
+	{
+		return (word.length() < 4) ? 0 : (word.length() < 8) ? 1 : 2;
+	}
+
+	/**
+	 * @return up to maxCandidates terms within maxEdits of the word, nearest and then most frequent first
+	 */
+	public List<Candidate> nearest(String word, int maxEdits, int maxCandidates)
+	{
+		List<Candidate> candidates = new ArrayList<>();
+
+		char[] wordChars = word.toCharArray();
+
+		int width = wordChars.length + 1;
+
+		int maxDepth = word.length() + maxEdits;
+
+		// rows[d] is the distance row for the first d characters of the current term
+		int[][] rows = new int[maxDepth + 1][width];
+
+		for (int j = 0; j < width; j++)
+		{
+			rows[0][j] = j;
+		}
+
+		int validDepth = 0;
+
+		int i = 0;
+
+		while (i < terms.length)
+		{
+			String term = terms[i];
+
+			int depth = (i > 0) ? Math.min(sharedPrefix[i - 1], validDepth) : 0;
+
+			int limit = Math.min(term.length(), maxDepth);
+
+			boolean pruned = false;
+
+			while (depth < limit)
+			{
+				depth++;
+
+				if (fillRow(rows, depth, term, wordChars, maxEdits) > maxEdits)
+				{
+					pruned = true;
+					break;
+				}
+			}
+
+			if (pruned)
+			{
+				// no term below this prefix can come within the bound
+				validDepth = depth - 1;
+				i = skipPrefix(i, depth);
+				continue;
+			}
+
+			validDepth = depth;
+
+			if (term.length() > maxDepth)
+			{
+				// this term and the longer ones after it sharing its first maxDepth characters are too long
+				i = skipPrefix(i, maxDepth);
+				continue;
+			}
+
+			// the last column is only filled when it lies within the band
+			if (word.length() - depth <= maxEdits && rows[depth][word.length()] <= maxEdits)
+			{
+				candidates.add(new Candidate(term, rows[depth][word.length()], documentFrequency[i]));
+			}
+
+			i++;
+		}
+
+		candidates.sort(NEAREST_FIRST);
+
+		return (candidates.size() > maxCandidates) ? candidates.subList(0, maxCandidates) : candidates;
+	}
+
+	/**
+	 * Expands each word of the text to itself if it is a vocabulary term, otherwise to its nearest terms.
+	 * Words with no candidates are kept so they still match as substrings.
+	 *
+	 * @return word -> alternatives in query order
+	 */
+	public Map<String, List<String>> expand(String textLower, int maxCandidates)
+	{
+		Map<String, List<String>> expansions = new LinkedHashMap<>();
+
+		for (String word : tokenise(textLower))
+		{
+			if (expansions.containsKey(word))
+			{
+				continue;
+			}
+
+			List<String> alternatives = new ArrayList<>();
+
+			int maxEdits = getMaxEdits(word);
+
+			if (maxEdits > 0 && getFrequency(word) == 0)
+			{
+				for (Candidate candidate : nearest(word, maxEdits, maxCandidates))
+				{
+					alternatives.add(candidate.term);
+				}
+			}
+
+			if (alternatives.isEmpty())
+			{
+				alternatives.add(word);
+			}
+
+			expansions.put(word, alternatives);
+		}
+
+		return expansions;
+	}
+
+	/**
+	 * @return the words of an expansion that were replaced, with their replacements
+	 */
+	public static Map<String, List<String>> getCorrections(Map<String, List<String>> expansions)
+	{
+		Map<String, List<String>> corrections = new LinkedHashMap<>();
+
+		for (Map.Entry<String, List<String>> expansion : expansions.entrySet())
+		{
+			if (!expansion.getValue().contains(expansion.getKey()))
+			{
+				corrections.put(expansion.getKey(), expansion.getValue());
+			}
+		}
+
+		return corrections;
+	}
+
+	/**
+	 * @return every alternative of every word, for locating snippets
+	 */
+	public static Set<String> getAlternatives(Map<String, List<String>> expansions)
+	{
+		Set<String> alternatives = new LinkedHashSet<>();
+
+		for (List<String> words : expansions.values())
+		{
+			alternatives.addAll(words);
+		}
+
+		return alternatives;
+	}
+
+	/**
+	 * Writes the corrections as {"foriegn":["foreign"],...}
+	 */
+	public static void writeCorrections(ResponseWriter writer, Map<String, List<String>> corrections) throws IOException
+	{
+		writer.beginObject();
+
+		for (Map.Entry<String, List<String>> correction : corrections.entrySet())
+		{
+			writer.name(correction.getKey()).beginArray();
+
+			for (String term : correction.getValue())
+			{
+				writer.value(term);
+			}
+
+			writer.endArray();
+		}
+
+		writer.endObject();
+	}
+
+	/**
+	 * Computes rows[depth] for the character term[depth - 1]. Only the diagonal band within maxEdits
+	 * of depth can stay within the bound, the cells either side of it are set out of bounds.
+	 *
+	 * @return the smallest value in the row
+	 */
+	private static int fillRow(int[][] rows, int depth, String term, char[] word, int maxEdits)
+	{
+		int[] row = rows[depth];
+		int[] above = rows[depth - 1];
+		int[] twoAbove = (depth > 1) ? rows[depth - 2] : null;
+
+		char c = term.charAt(depth - 1);
+		char previous = (depth > 1) ? term.charAt(depth - 2) : 0;
+
+		int outOfBounds = maxEdits + 1;
+
+		int first = Math.max(1, depth - maxEdits);
+		int last = Math.min(word.length, depth + maxEdits);
+
+		row[first - 1] = (first == 1) ? depth : outOfBounds;
+
+		if (last + 1 < row.length)
+		{
+			row[last + 1] = outOfBounds;
+		}
+
+		int min = outOfBounds;
+
+		for (int j = first; j <= last; j++)
+		{
+			char w = word[j - 1];
+
+			int value = Math.min(Math.min(above[j], row[j - 1]) + 1, above[j - 1] + ((w == c) ? 0 : 1));
+
+			if (twoAbove != null && j > 1 && c == word[j - 2] && previous == w)
+			{
+				// adjacent transposition
+				value = Math.min(value, twoAbove[j - 2] + 1);
+			}
+
+			row[j] = value;
+
+			if (value < min)
+			{
+				min = value;
+			}
+		}
+
+		return min;
+	}
+
+	/**
+	 * @return the position of the first term after from that does not share the first length characters of terms[from]
+	 */
+	private int skipPrefix(int from, int length)
+	{
+		int i = from;
+
+		while (i < sharedPrefix.length && sharedPrefix[i] >= length)
+		{
+			i++;
+		}
+
+		return i + 1;
+	}
+}
@@ -5,11 +5,23 @@
 package com.chrisnewland.jepmap.websocket;
 
 import com.chrisnewland.jepmap.JEP;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.regex.PatternSyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import jakarta.websocket.CloseReason;
 import jakarta.websocket.OnClose;
 import jakarta.websocket.OnError;
@@ -20,84 +32,635 @@ import jakarta.websocket.server.ServerEndpoint;
 
 @ServerEndpoint(value = "/fulltext") public class WebsocketServerEndpoint
 {
-	@OnOpen public void onWebSocketConnect(Session session)
+	// a new endpoint instance is created per session so these fields are per-session state
+
+	private static final AtomicInteger activeSessions = new AtomicInteger();
+
+	private static final String RESPONSE_BUSY = "{\"error\":\"busy\"}";
+
+	private static final String RESPONSE_EXPIRED = "{\"error\":\"expired\"}";
+
+	private static final String RESPONSE_INVALID_PATTERN = "{\"error\":\"invalid pattern\"}";
+
+	private static final String RESPONSE_TIMEOUT = "{\"error\":\"timeout\"}";
+
+	private static final String RESPONSE_INVALID_SUBSCRIPTION = "{\"error\":\"invalid subscription\"}";
+
+	private static final String RESPONSE_UNKNOWN_JEP = "{\"error\":\"unknown jep\"}";
+
+	private static final String RESPONSE_TOO_MANY_SUBSCRIPTIONS = "{\"error\":\"too many subscriptions\"}";
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	// orders every message sent on the session around the partial frames of streamed responses
+	private volatile SessionSender sender;
+
+	private volatile Future<?> currentQuery;
+
+	private volatile ResultState resultState;
+
+	private volatile boolean counted = false;
+
+	private final Map<String, SubscriptionIndex.Subscription> subscriptions = new ConcurrentHashMap<>();
+
+	private final AtomicInteger subscriptionIds = new AtomicInteger();
+
+	private SubscriptionIndex.Listener listener;
+
+	/**
+	 * The full hit list of the latest paged query, retained so follow-up pages
+	 * only need snippets built for the requested slice.
+	 */
+	private static class ResultState
 	{
+		private final long generation;
+		private final ResultEncoder.MatchLocator locator;
+		private final List<JEP> jeps;
+		private final Map<String, Map<String, Integer>> facetCounts;
+		private final Map<String, List<String>> corrections;
+
+		ResultState(long generation, ResultEncoder.MatchLocator locator, List<JEP> jeps, Map<String, Map<String, Integer>> facetCounts,
+				Map<String, List<String>> corrections)
+		{
+			this.generation = generation;
+			this.locator = locator;
+			this.jeps = jeps;
+			this.facetCounts = facetCounts;
+			this.corrections = corrections;
+		}
+
+		String encodeCursor(int offset)
+		{
+			String plain = Long.toString(generation, 36) + ":" + Integer.toString(offset, 36);
+
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @return the offset encoded in the cursor or -1 if the cursor does not belong to this result
+		 */
+		int decodeCursor(String cursor)
+		{
+			try
+			{
+				String plain = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+
+				int colon = plain.indexOf(':');
+
+				if (colon == -1 || Long.parseLong(plain.substring(0, colon), 36) != generation)
+				{
+					return -1;
+				}
+
+				int offset = Integer.parseInt(plain.substring(colon + 1), 36);
+
+				return (offset >= 0 && offset <= jeps.size()) ? offset : -1;
+			}
+			catch (IllegalArgumentException e)
+			{
+				return -1;
+			}
+		}
 	}
 
-	@OnMessage public void onWebSocketText(Session session, String search) throws IOException
+	@OnOpen public void onWebSocketConnect(Session session) throws IOException
 	{
-		if (search.length() >= 3)
+		ServerConfig config = FullJEPServer.getConfig();
+
+		sender = new SessionSender(session, config.getMaxQueuedMessages(), config.getSendTimeoutMillis());
+
+		if (activeSessions.incrementAndGet() > config.getMaxSessions())
 		{
-			search = search.toLowerCase();
+			activeSessions.decrementAndGet();
 
-			long start = System.currentTimeMillis();
-			List<JEP> jeps = FullJEPServer.getJEPLoader().searchJEPs(search.trim());
-			long stop = System.currentTimeMillis();
+			session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too many sessions"));
+		}
+		else
+		{
+			counted = true;
+		}
+	}
 
-			System.out.println(search + " in " + (stop - start) + "ms found " + jeps.size() + " results");
+	public static int getActiveSessions()
+	{
+		return activeSessions.get();
+	}
 
-			JSONArray result = new JSONArray();
+	@OnMessage public void onWebSocketText(final Session session, String message)
+	{
+		final SearchRequest request = SearchRequest.parse(message);
 
-			int context = 80;
+		if (request.isSubscribe())
+		{
+			subscribe(request);
+		}
+		else if (request.getUnsubscribe() != null)
+		{
+			unsubscribe(request.getUnsubscribe());
+		}
+		else if (request.getComplete() != null)
+		{
+			complete(request);
+		}
+		else if (request.getSimilar() != null)
+		{
+			similar(request.getSimilar());
+		}
+		else if (request.isNextPage())
+		{
+			submit(new Runnable()
+			{
+				@Override public void run()
+				{
+					runNextPage(session, request);
+				}
+			});
+		}
+		else if (request.getSearch().length() >= 3)
+		{
+			final long queryGeneration = generation.incrementAndGet();
+
+			Future<?> previous = currentQuery;
 
-			if (!jeps.isEmpty())
+			// not interrupted as the client may send this as soon as the last frame of the previous
+			// response arrives and an interrupted send aborts the session, the new generation stops
+			// a running query at its next check and cancelling stops a queued one from starting
+			if (previous != null)
 			{
-				forlabel:
-				for (JEP jep : jeps)
+				previous.cancel(false);
+			}
+
+			Future<?> query = submit(new Runnable()
+			{
+				@Override public void run()
 				{
-					try
-					{
-						String body = jep.getBody();
+					runQuery(session, request, queryGeneration);
+				}
+			});
 
-						String bodyLower = body.toLowerCase();
+			if (query != null)
+			{
+				currentQuery = query;
+			}
+		}
+	}
 
-						StringBuilder builder = new StringBuilder();
+	private void subscribe(SearchRequest request)
+	{
+		if (request.getSubscribeType() == null)
+		{
+			sender.send(RESPONSE_INVALID_SUBSCRIPTION);
+			return;
+		}
 
-						int pos = bodyLower.indexOf(search);
+		if (subscriptions.size() >= FullJEPServer.getConfig().getMaxSubscriptionsPerSession())
+		{
+			sender.send(RESPONSE_TOO_MANY_SUBSCRIPTIONS);
+			return;
+		}
 
-						builder.append("<ul>");
+		if (listener == null)
+		{
+			// one listener per session so a reload sends it a single message, queued so an event
+			// thread never waits behind a streamed response
+			listener = new SubscriptionIndex.Listener()
+			{
+				@Override public void onEvents(String message)
+				{
+					sender.send(message);
+				}
+			};
+		}
 
-						do
-						{
-							String snippet = body.substring(Math.max(0, pos - context), Math.min(pos + context, body.length()));
+		SubscriptionIndex.Subscription subscription;
 
-							int firstSpace = snippet.indexOf(' ');
-							int lastSpace = snippet.lastIndexOf(' ');
+		try
+		{
+			subscription = FullJEPServer.getSubscriptions()
+										.subscribe(Integer.toString(subscriptionIds.incrementAndGet()), request.getSubscribeType(),
+												request.getSubscribeKey(), listener);
+		}
+		catch (IllegalArgumentException e)
+		{
+			sender.send(RESPONSE_INVALID_SUBSCRIPTION);
+			return;
+		}
 
-							if (firstSpace == -1 || lastSpace == -1 || firstSpace == lastSpace)
-							{
-								continue forlabel;
-							}
+		subscriptions.put(subscription.getId(), subscription);
 
-							builder.append("<li>...").append(snippet.substring(firstSpace + 1, lastSpace)).append("...</li>");
+		JSONObject response = new JSONObject();
 
-							pos = bodyLower.indexOf(search, pos + context);
+		response.put("subscribed", subscription.getId());
+		response.put("type", subscription.getType().name().toLowerCase());
+		response.put("key", subscription.getKey());
+		response.put("version", FullJEPServer.getJEPLoader().getCorpusVersion());
 
-						} while (pos != -1);
+		sender.send(response.toString());
+	}
 
-						builder.append("</ul>");
+	private void unsubscribe(String id)
+	{
+		SubscriptionIndex.Subscription subscription = subscriptions.remove(id);
 
-						JSONObject jsonObject = new JSONObject();
+		if (subscription == null)
+		{
+			sender.send(RESPONSE_INVALID_SUBSCRIPTION);
+			return;
+		}
 
-						jsonObject.put("number", jep.getNumber());
-						jsonObject.put("name", jep.getName());
-						jsonObject.put("snippet", builder);
+		FullJEPServer.getSubscriptions().unsubscribe(subscription);
 
-						result.put(jsonObject);
-					}
-					catch (Exception e)
+		sender.send(new JSONObject().put("unsubscribed", id).toString());
+	}
+
+	/**
+	 * Answered on the calling thread, a lookup costs less than handing it to the query executor.
+	 * The reply is queued so the read thread never waits behind a streamed response.
+	 */
+	private void complete(SearchRequest request)
+	{
+		long start = System.nanoTime();
+
+		Autocompleter autocompleter = FullJEPServer.getJEPLoader().getAutocompleter();
+
+		List<Autocompleter.Completion> completions = autocompleter.complete(request.getComplete(), request.getLimit());
+
+		Metrics.COMPLETION_NANOS.record(System.nanoTime() - start);
+
+		sender.send(Autocompleter.toJSON(request.getComplete(), completions).toString());
+	}
+
+	/**
+	 * Similar JEPs are precomputed by JEPProcessor so this is a lookup, also answered on the calling thread.
+	 */
+	private void similar(String number)
+	{
+		JEPLoader jepLoader = FullJEPServer.getJEPLoader();
+
+		JEP jep;
+
+		try
+		{
+			jep = jepLoader.getJEP(Integer.parseInt(number.trim()));
+		}
+		catch (NumberFormatException nfe)
+		{
+			jep = null;
+		}
+
+		if (jep == null)
+		{
+			sender.send(RESPONSE_UNKNOWN_JEP);
+			return;
+		}
+
+		JSONArray jeps = new JSONArray();
+
+		for (JEP other : jepLoader.getSimilarJEPs(jep))
+		{
+			JSONObject summary = new JSONObject();
+
+			summary.put("number", other.getNumber());
+			summary.put("name", other.getName());
+			summary.put("status", other.getStatus());
+			summary.put("release", other.getRelease());
+
+			jeps.put(summary);
+		}
+
+		sender.send(new JSONObject().put("similar", jep.getNumber()).put("jeps", jeps).toString());
+	}
+
+	/**
+	 * A session slot is held until the query's thread is done with it, so a superseded query
+	 * keeps its slot until it has seen the new generation and stopped.
+	 */
+	private Future<?> submit(Runnable runnable)
+	{
+		if (inFlight.incrementAndGet() > FullJEPServer.getConfig().getMaxQueriesPerSession())
+		{
+			inFlight.decrementAndGet();
+			Metrics.recordRejected();
+			sender.send(RESPONSE_BUSY);
+			return null;
+		}
+
+		Future<?> query = FullJEPServer.getQueryExecutor().trySubmit(runnable, new Runnable()
+		{
+			@Override public void run()
+			{
+				inFlight.decrementAndGet();
+			}
+		});
+
+		if (query == null)
+		{
+			inFlight.decrementAndGet();
+			Metrics.recordRejected();
+			sender.send(RESPONSE_BUSY);
+		}
+
+		return query;
+	}
+
+	private boolean isSuperseded(long queryGeneration)
+	{
+		return Thread.currentThread().isInterrupted() || generation.get() != queryGeneration;
+	}
+
+	private void runQuery(final Session session, SearchRequest request, final long queryGeneration)
+	{
+		Metrics.recordQuery();
+
+		// checked by the scans, including on scan threads which are not interrupted when the query is
+		BooleanSupplier superseded = new BooleanSupplier()
+		{
+			@Override public boolean getAsBoolean()
+			{
+				return generation.get() != queryGeneration;
+			}
+		};
+
+		JEPLoader jepLoader = FullJEPServer.getJEPLoader();
+
+		FacetQuery facetQuery = FacetQuery.parse(request.getQuery());
+
+		String text = facetQuery.getText();
+
+		FacetIndex.Result result;
+
+		ResultEncoder.MatchLocator locator;
+
+		Map<String, List<String>> corrections = Collections.emptyMap();
+
+		long start = System.nanoTime();
+
+		Map<String, List<String>> expansions = Collections.emptyMap();
+
+		if (request.getMode() == SearchRequest.Mode.FUZZY)
+		{
+			expansions = jepLoader.getVocabulary().expand(text.toLowerCase(), FullJEPServer.getConfig().getFuzzyExpansions());
+
+			Metrics.CORRECTION_MICROS.record((System.nanoTime() - start) / 1000);
+		}
+
+		if (!expansions.isEmpty())
+		{
+			corrections = Vocabulary.getCorrections(expansions);
+
+			result = jepLoader.searchAny(facetQuery, expansions.values(), superseded);
+
+			locator = ResultEncoder.ignoringCaseAny(Vocabulary.getAlternatives(expansions));
+		}
+		else if (request.getMode() == SearchRequest.Mode.TEXT || request.getMode() == SearchRequest.Mode.FUZZY || text.isEmpty())
+		{
+			result = jepLoader.search(facetQuery, superseded);
+
+			locator = ResultEncoder.ignoringCase(text.toLowerCase());
+		}
+		else
+		{
+			PatternQuery query;
+
+			try
+			{
+				if (request.getMode() == SearchRequest.Mode.REGEX)
+				{
+					query = PatternQuery.regex(text);
+				}
+				else
+				{
+					query = PatternQuery.phrase(text);
+				}
+			}
+			catch (PatternSyntaxException e)
+			{
+				sender.send(RESPONSE_INVALID_PATTERN);
+				return;
+			}
+
+			List<JEP> candidates = jepLoader.getFacetIndex().select(facetQuery);
+
+			PatternSearcher.Result scan = FullJEPServer.getPatternSearcher().search(jepLoader, candidates, query, superseded);
+
+			if (scan.isTimedOut())
+			{
+				Metrics.recordPatternTimeout();
+				sender.send(RESPONSE_TIMEOUT);
+				return;
+			}
+
+			result = jepLoader.getFacetIndex().count(scan.getJEPs());
+
+			locator = scan.getLocator();
+		}
+
+		final List<JEP> jeps = result.getJEPs();
+
+		long stop = System.nanoTime();
+
+		if (isSuperseded(queryGeneration))
+		{
+			Metrics.recordSuperseded();
+			return;
+		}
+
+		Metrics.SEARCH_MICROS.record((stop - start) / 1000);
+		Metrics.HITS.record(jeps.size());
+
+		if (request.isPaged())
+		{
+			ResultState state = new ResultState(queryGeneration, locator, jeps, result.getCounts(), corrections);
+
+			resultState = state;
+
+			streamPage(session, state, 0, request.getLimit());
+		}
+		else
+		{
+			stream(session, queryGeneration, locator, new ResponseBody()
+			{
+				@Override public void write(ResponseWriter writer, ResultEncoder encoder, BooleanSupplier cancelled) throws IOException
+				{
+					encoder.writeResults(writer, jeps, cancelled);
+				}
+			});
+		}
+	}
+
+	private void runNextPage(Session session, SearchRequest request)
+	{
+		ResultState state = resultState;
+
+		int offset = (state == null) ? -1 : state.decodeCursor(request.getCursor());
+
+		if (offset < 0 || isSuperseded(state.generation))
+		{
+			Metrics.recordCache("page", false);
+			sender.send(RESPONSE_EXPIRED);
+			return;
+		}
+
+		Metrics.recordCache("page", true);
+
+		streamPage(session, state, offset, request.getLimit());
+	}
+
+	private void streamPage(Session session, final ResultState state, final int offset, int limit)
+	{
+		final int total = state.jeps.size();
+
+		final int end = (int) Math.min((long) offset + limit, total);
+
+		stream(session, state.generation, state.locator, new ResponseBody()
+		{
+			@Override public void write(ResponseWriter writer, ResultEncoder encoder, BooleanSupplier cancelled) throws IOException
+			{
+				writer.beginObject();
+				writer.name("total").value(total);
+				writer.name("offset").value(offset);
+
+				if (end < total)
+				{
+					writer.name("cursor").value(state.encodeCursor(end));
+				}
+
+				if (offset == 0)
+				{
+					writer.name("facets");
+					FacetIndex.writeCounts(writer, state.facetCounts);
+
+					if (!state.corrections.isEmpty())
 					{
-						e.printStackTrace();
+						writer.name("corrections");
+						Vocabulary.writeCorrections(writer, state.corrections);
 					}
 				}
+
+				writer.name("results");
+
+				encoder.writeResults(writer, state.jeps.subList(Math.min(offset, total), end), cancelled);
+
+				writer.endObject();
 			}
+		});
+	}
 
-			session.getBasicRemote().sendText(result.toString());
+	private interface ResponseBody
+	{
+		void write(ResponseWriter writer, ResultEncoder encoder, BooleanSupplier cancelled) throws IOException;
+	}
+
+	/**
+	 * Streams a response as partial text frames while it is being encoded.
+	 * If the query is superseded before the first fragment is flushed the response is dropped,
+	 * after that point the JSON is closed early so the message stays well formed.
+	 */
+	private void stream(final Session session, final long queryGeneration, ResultEncoder.MatchLocator locator, ResponseBody body)
+	{
+		if (!session.isOpen())
+		{
+			return;
+		}
+
+		BooleanSupplier cancelled = new BooleanSupplier()
+		{
+			@Override public boolean getAsBoolean()
+			{
+				return isSuperseded(queryGeneration);
+			}
+		};
+
+		final long[] sendNanos = new long[1];
+
+		ResponseWriter.FragmentSink timedSink = new ResponseWriter.FragmentSink()
+		{
+			@Override public void sendFragment(String fragment, boolean last) throws IOException
+			{
+				long start = System.nanoTime();
+
+				sender.sendPartial(fragment, last);
+
+				sendNanos[0] += System.nanoTime() - start;
+			}
+		};
+
+		ResultEncoder encoder = new ResultEncoder(locator, FullJEPServer.getJEPLoader());
+
+		if (!sender.acquire())
+		{
+			// if not superseded the send in progress has timed out and is aborting the session
+			if (cancelled.getAsBoolean())
+			{
+				Metrics.recordSuperseded();
+			}
+
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		try (ResponseWriter writer = new ResponseWriter(timedSink))
+		{
+			body.write(writer, encoder, cancelled);
+
+			if (writer.isFlushed() || !cancelled.getAsBoolean())
+			{
+				writer.finish();
+
+				long totalNanos = System.nanoTime() - start;
+
+				long snippetNanos = encoder.getSnippetNanos();
+
+				Metrics.SNIPPET_MICROS.record(snippetNanos / 1000);
+				Metrics.ENCODE_MICROS.record((totalNanos - snippetNanos - sendNanos[0]) / 1000);
+				Metrics.SEND_MICROS.record(sendNanos[0] / 1000);
+				Metrics.RESPONSE_CHARS.record(writer.getCharsWritten());
+			}
+			else
+			{
+				Metrics.recordSuperseded();
+			}
+		}
+		catch (IOException e)
+		{
+			// part of the message may have been sent and it cannot be terminated now
+			sender.abort("stream failed: " + e);
+		}
+		finally
+		{
+			sender.release();
 		}
 	}
 
 	@OnClose public void onWebSocketClose(CloseReason reason)
 	{
+		for (SubscriptionIndex.Subscription subscription : subscriptions.values())
+		{
+			FullJEPServer.getSubscriptions().unsubscribe(subscription);
+		}
+
+		subscriptions.clear();
+
+		if (counted)
+		{
+			counted = false;
+			activeSessions.decrementAndGet();
+		}
+
+		generation.incrementAndGet();
+
+		resultState = null;
+
+		Future<?> query = currentQuery;
+
+		if (query != null)
+		{
+			query.cancel(true);
+		}
+
 		//System.out.println("Socket Closed: " + reason);
 	}
 
@@ -108,4 +671,4 @@ import jakarta.websocket.server.ServerEndpoint;
 			System.out.println("onWebSocketError: " + cause.getMessage());
 		}
 	}
-}
\ No newline at end of file
+}
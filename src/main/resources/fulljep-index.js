@@ -0,0 +1,289 @@
+/*
+ * Searches the index written by JEPProcessor -Djepmap.clientIndex=true in the browser.
+ *
+ * index.json lists the first term of each shard, shards hold contiguous ranges of the sorted
+ * vocabulary so a word or prefix lookup fetches only the shards covering it, each once.
+ * The docs and shards are read from the directory of the version index.json names, so shards
+ * fetched later always belong to the docs already loaded.
+ *
+ * Text mode queries are answered locally: every complete word must be a term of the JEP and
+ * the word being typed matches as a prefix. Facet filters follow the server's rules.
+ * Phrase and regex queries, and browsers without DecompressionStream, use the websocket.
+ */
+class JEPIndex {
+
+    static async load(base) {
+        if (typeof DecompressionStream === 'undefined') {
+            throw new Error('DecompressionStream not supported');
+        }
+
+        let response = await fetch(base + 'index.json', {cache: 'no-cache'});
+
+        if (!response.ok) {
+            throw new Error('No client index: ' + response.status);
+        }
+
+        let index = new JEPIndex(base, await response.json());
+
+        index.docs = await index.fetchGzipped('docs.json.gz');
+
+        return index;
+    }
+
+    constructor(base, manifest) {
+        this.base = base;
+        this.version = manifest.version;
+        this.minTermLength = manifest.minTermLength;
+        this.firstTerms = manifest.shards;
+        this.shards = new Map();
+        this.docs = [];
+    }
+
+    async fetchGzipped(file) {
+        let response = await fetch(this.base + this.version + '/' + file);
+
+        if (!response.ok) {
+            throw new Error(file + ' ' + response.status);
+        }
+
+        let stream = response.body.pipeThrough(new DecompressionStream('gzip'));
+
+        return JSON.parse(await new Response(stream).text());
+    }
+
+    static tokenise(text) {
+        return text.toLowerCase().split(/[^\p{L}\p{N}]+/u).filter(term => term.length > 0);
+    }
+
+    static parseFilters(query) {
+        let filters = {};
+
+        let text = query.replace(/(^|\s)(status|release|project|discussion):(\S+)/gi, function (match, space, facet, value) {
+            facet = facet.toLowerCase();
+            (filters[facet] = filters[facet] || []).push(value.toLowerCase());
+            return ' ';
+        });
+
+        return {filters: filters, text: text};
+    }
+
+    canSearch(query, mode) {
+        return mode === 'text';
+    }
+
+    /**
+     * Resolves to the same shape as a websocket response, with every result rather than one page.
+     */
+    async search(query) {
+        let parsed = JEPIndex.parseFilters(query);
+
+        let words = JEPIndex.tokenise(parsed.text);
+
+        // the last word is still being typed unless the query ends with a separator
+        let typing = /[\p{L}\p{N}]$/u.test(parsed.text) ? words.pop() : null;
+
+        words = words.filter(word => word.length >= this.minTermLength);
+
+        let postings = [];
+
+        for (let word of words) {
+            postings.push(await this.lookup(word, false));
+        }
+
+        if (typing && typing.length >= 3) {
+            postings.push(await this.lookup(typing, true));
+        } else if (typing && typing.length >= this.minTermLength) {
+            postings.push(await this.lookup(typing, false));
+        }
+
+        let hits;
+
+        if (postings.length > 0) {
+            postings.sort((a, b) => a.length - b.length);
+            hits = postings.reduce((a, b) => intersect(a, b));
+        } else if (Object.keys(parsed.filters).length > 0) {
+            hits = this.docs.map((doc, i) => i);
+        } else {
+            hits = [];
+        }
+
+        hits = hits.filter(i => this.matchesFilters(this.docs[i], parsed.filters));
+
+        return {
+            total: hits.length,
+            offset: 0,
+            facets: this.countFacets(hits),
+            results: hits.map(i => JEPIndex.toResult(this.docs[i]))
+        };
+
+        function intersect(a, b) {
+            let result = [];
+            let j = 0;
+
+            for (let i = 0; i < a.length && j < b.length; i++) {
+                while (j < b.length && b[j] < a[i]) {
+                    j++;
+                }
+
+                if (b[j] === a[i]) {
+                    result.push(a[i]);
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * @return ascending doc indices containing the term, or any term starting with it
+     */
+    async lookup(term, prefix) {
+        let first = this.shardFor(term);
+        let last = prefix ? this.shardFor(term + '\uffff') : first;
+
+        let docs = new Set();
+
+        for (let s = Math.max(first, 0); s <= last; s++) {
+            let shard = await this.getShard(s);
+
+            for (let key in shard) {
+                if (prefix ? key.startsWith(term) : key === term) {
+                    let doc = 0;
+
+                    for (let delta of shard[key]) {
+                        doc += delta;
+                        docs.add(doc);
+                    }
+                }
+            }
+        }
+
+        return Array.from(docs).sort((a, b) => a - b);
+    }
+
+    /**
+     * @return the last shard whose first term is not after the term, -1 if before all shards
+     */
+    shardFor(term) {
+        let low = 0;
+        let high = this.firstTerms.length;
+
+        while (low < high) {
+            let mid = (low + high) >>> 1;
+
+            if (this.firstTerms[mid] <= term) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low - 1;
+    }
+
+    getShard(s) {
+        let shard = this.shards.get(s);
+
+        if (!shard) {
+            // cache the promise so concurrent keystrokes share one fetch
+            shard = this.fetchGzipped('shard-' + s + '.json.gz');
+            this.shards.set(s, shard);
+            shard.catch(() => this.shards.delete(s));
+        }
+
+        return shard;
+    }
+
+    matchesFilters(doc, filters) {
+        let values = {status: [doc[2]], release: [doc[3]], discussion: [doc[4]], project: doc[5]};
+
+        for (let facet in filters) {
+            let matched = values[facet].some(value => value && filters[facet].some(term => JEPIndex.matchesFacet(facet, value, term)));
+
+            if (!matched) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static matchesFacet(facet, value, term) {
+        switch (facet) {
+            case 'status':
+                return value.toLowerCase().includes(term);
+            case 'release':
+                return JEPIndex.matchesRelease(value, term);
+            case 'discussion':
+                return value.startsWith(term);
+            default:
+                return value.toLowerCase() === term;
+        }
+    }
+
+    static matchesRelease(value, term) {
+        let operator = term.match(/^[<>=]*/)[0];
+        let version = term.substring(operator.length);
+
+        if (operator === '' || operator === '=') {
+            return value.toLowerCase() === version;
+        }
+
+        let valueMajor = /^\d+$/.test(value) ? parseInt(value) : NaN;
+        let termMajor = parseInt(version);
+
+        if (isNaN(valueMajor) || isNaN(termMajor)) {
+            return false;
+        }
+
+        switch (operator) {
+            case '>=':
+                return valueMajor >= termMajor;
+            case '>':
+                return valueMajor > termMajor;
+            case '<=':
+                return valueMajor <= termMajor;
+            case '<':
+                return valueMajor < termMajor;
+            default:
+                return false;
+        }
+    }
+
+    countFacets(hits) {
+        let counts = {status: {}, release: {}, project: {}, discussion: {}};
+
+        let add = function (facet, value) {
+            if (value) {
+                counts[facet][value] = (counts[facet][value] || 0) + 1;
+            }
+        };
+
+        for (let i of hits) {
+            let doc = this.docs[i];
+
+            add('status', doc[2]);
+            add('release', doc[3]);
+            add('discussion', doc[4]);
+            doc[5].forEach(project => add('project', project));
+        }
+
+        for (let facet in counts) {
+            let sorted = {};
+
+            Object.entries(counts[facet]).sort((a, b) => b[1] - a[1]).forEach(entry => sorted[entry[0]] = entry[1]);
+
+            counts[facet] = sorted;
+        }
+
+        return counts;
+    }
+
+    static toResult(doc) {
+        return {number: doc[0], name: doc[1], snippet: '<ul><li>' + escapeHtml(doc[6]) + '</li></ul>'};
+
+        function escapeHtml(text) {
+            return text.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;');
+        }
+    }
+}